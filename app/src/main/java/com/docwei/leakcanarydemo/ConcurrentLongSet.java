@@ -0,0 +1,191 @@
+package com.docwei.leakcanarydemo;
+
+/**
+ * A set of primitive long keys that can be updated from any thread.
+ *
+ * The keys are spread over a fixed number of stripes, each one a small open addressing table with
+ * linear probing guarded by its own lock, so add / remove / contains are O(1) and never copy the
+ * whole set the way a {@link java.util.concurrent.CopyOnWriteArraySet} does. 0 marks an empty
+ * slot and can't be stored.
+ */
+final class ConcurrentLongSet {
+
+    private static final int STRIPE_SHIFT = 4;
+    private static final int STRIPE_COUNT = 1 << STRIPE_SHIFT;
+
+    private final Stripe[] stripes;
+
+    ConcurrentLongSet() {
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Returns true if the key was not already in the set. */
+    boolean add(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return stripeFor(hash).add(key, hash);
+    }
+
+    /** Returns true if the key was in the set. */
+    boolean remove(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return stripeFor(hash).remove(key, hash);
+    }
+
+    boolean contains(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return stripeFor(hash).contains(key, hash);
+    }
+
+    /** Number of keys, only exact if no other thread is updating the set at the same time. */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** A copy of the keys currently in the set, in no particular order. */
+    long[] toArray() {
+        long[] keys = new long[0];
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (count + stripe.size > keys.length) {
+                    long[] grown = new long[Math.max(keys.length * 2, count + stripe.size)];
+                    System.arraycopy(keys, 0, grown, 0, count);
+                    keys = grown;
+                }
+                for (long key : stripe.table) {
+                    if (key != 0) {
+                        keys[count++] = key;
+                    }
+                }
+            }
+        }
+        if (count == keys.length) {
+            return keys;
+        }
+        long[] result = new long[count];
+        System.arraycopy(keys, 0, result, 0, count);
+        return result;
+    }
+
+    private Stripe stripeFor(long hash) {
+        // The top bits pick the stripe, the low bits pick the slot within the stripe.
+        return stripes[(int) (hash >>> (64 - STRIPE_SHIFT))];
+    }
+
+    private static void checkKey(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 is not a valid key");
+        }
+    }
+
+    /** Finalizer from MurmurHash3, monotonic keys would otherwise all land in the same stripe. */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 16;
+
+        long[] table = new long[INITIAL_CAPACITY];
+        int size;
+
+        synchronized boolean add(long key, long hash) {
+            // Keep the load factor at or below 1/2 so probe sequences stay short.
+            if ((size + 1) * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            int mask = table.length - 1;
+            int index = (int) hash & mask;
+            long current;
+            while ((current = table[index]) != 0) {
+                if (current == key) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            table[index] = key;
+            size++;
+            return true;
+        }
+
+        synchronized boolean remove(long key, long hash) {
+            int mask = table.length - 1;
+            int index = (int) hash & mask;
+            long current;
+            while ((current = table[index]) != key) {
+                if (current == 0) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            table[index] = 0;
+            size--;
+            // Backward shift deletion: pull the following entries of the probe sequence into the
+            // hole so that lookups never need tombstones.
+            int hole = index;
+            index = (index + 1) & mask;
+            while ((current = table[index]) != 0) {
+                int home = (int) mix(current) & mask;
+                if (((index - home) & mask) >= ((index - hole) & mask)) {
+                    table[hole] = current;
+                    table[index] = 0;
+                    hole = index;
+                }
+                index = (index + 1) & mask;
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long key, long hash) {
+            int mask = table.length - 1;
+            int index = (int) hash & mask;
+            long current;
+            while ((current = table[index]) != 0) {
+                if (current == key) {
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldTable = table;
+            table = new long[capacity];
+            int mask = capacity - 1;
+            for (long key : oldTable) {
+                if (key == 0) {
+                    continue;
+                }
+                int index = (int) mix(key) & mask;
+                while (table[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                table[index] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.docwei.leakcanarydemo;
+
+import android.content.SharedPreferences;
+
+import com.docwei.leakcanarydemo.analyzer.HeapDump;
+
+/**
+ * Predicts the pause and the file size of a heap dump from the Java heap in use, and decides
+ * whether to take it now.
+ *
+ * Both grow with the heap: the model keeps the milliseconds of pause per MB of used heap and the
+ * file bytes per byte of used heap, as moving averages of the past dumps (their
+ * {@link HeapDump#heapDumpDurationMs} and file length), persisted across processes. Until the
+ * first dump it starts from typical values.
+ *
+ * A dump is skipped if the free space can't take it or if the pause is over
+ * {@code maxPauseMillis}. In the foreground, one pausing longer than
+ * {@code foregroundPauseBudgetMillis} is deferred. Only used from the background handler thread.
+ */
+final class HeapDumpCostPredictor {
+
+    private static final String KEY_MS_PER_MB = "ms_per_mb";
+    private static final String KEY_FILE_BYTES_PER_HEAP_BYTE = "file_bytes_per_heap_byte";
+    private static final String KEY_SAMPLES = "samples";
+    /** Typical of ART: dumps include the zygote and image heaps on top of the app heap. */
+    private static final float DEFAULT_MS_PER_MB = 40f;
+    private static final float DEFAULT_FILE_BYTES_PER_HEAP_BYTE = 1.5f;
+    /** Weight of the latest dump in the moving averages. */
+    private static final float SMOOTHING = 0.3f;
+    private static final long MB = 1024 * 1024;
+
+    private final SharedPreferences history;
+    private final long foregroundPauseBudgetMillis;
+    private final long maxPauseMillis;
+    private float msPerMb;
+    private float fileBytesPerHeapByte;
+    private int samples;
+
+    HeapDumpCostPredictor(SharedPreferences history, long foregroundPauseBudgetMillis,
+                          long maxPauseMillis) {
+        this.history = history;
+        this.foregroundPauseBudgetMillis = foregroundPauseBudgetMillis;
+        this.maxPauseMillis = maxPauseMillis;
+        msPerMb = history.getFloat(KEY_MS_PER_MB, DEFAULT_MS_PER_MB);
+        fileBytesPerHeapByte =
+                history.getFloat(KEY_FILE_BYTES_PER_HEAP_BYTE, DEFAULT_FILE_BYTES_PER_HEAP_BYTE);
+        samples = history.getInt(KEY_SAMPLES, 0);
+    }
+
+    static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    long predictedFileBytes(long usedHeapBytes) {
+        return (long) (usedHeapBytes * fileBytesPerHeapByte);
+    }
+
+    /**
+     * @param deferAllowed false once a deferred dump reached the end of its window.
+     * @param usableBytes free space of the heap dump directory.
+     */
+    HeapDumpDecision decide(long usedHeapBytes, boolean foreground, boolean deferAllowed,
+                            long usableBytes) {
+        long pauseMs = (long) (usedHeapBytes / (float) MB * msPerMb);
+        long fileBytes = predictedFileBytes(usedHeapBytes);
+        HeapDumpDecision.Action action;
+        String reason;
+        // The analyzer writes a stripped copy next to the dump.
+        if (usableBytes < 2 * fileBytes) {
+            action = HeapDumpDecision.Action.SKIP;
+            reason = "not enough storage";
+        } else if (pauseMs > maxPauseMillis) {
+            action = HeapDumpDecision.Action.SKIP;
+            reason = "pause over " + maxPauseMillis + "ms";
+        } else if (foreground && deferAllowed && pauseMs > foregroundPauseBudgetMillis) {
+            action = HeapDumpDecision.Action.DEFER;
+            reason = "foreground pause over " + foregroundPauseBudgetMillis + "ms";
+        } else {
+            action = HeapDumpDecision.Action.DUMP;
+            reason = foreground ? "within the foreground budget" : "background";
+        }
+        return new HeapDumpDecision(action, reason, usedHeapBytes, pauseMs, fileBytes,
+                usableBytes, foreground);
+    }
+
+    /** Learns from a dump taken while usedHeapBytes of Java heap were in use. */
+    void onHeapDumped(HeapDump heapDump, long usedHeapBytes) {
+        long fileBytes = heapDump.heapDumpFile.length();
+        if (usedHeapBytes <= 0 || fileBytes <= 0) {
+            return;
+        }
+        float dumpMsPerMb = heapDump.heapDumpDurationMs / (usedHeapBytes / (float) MB);
+        float dumpFileBytesPerHeapByte = fileBytes / (float) usedHeapBytes;
+        if (samples == 0) {
+            msPerMb = dumpMsPerMb;
+            fileBytesPerHeapByte = dumpFileBytesPerHeapByte;
+        } else {
+            msPerMb += SMOOTHING * (dumpMsPerMb - msPerMb);
+            fileBytesPerHeapByte += SMOOTHING * (dumpFileBytesPerHeapByte - fileBytesPerHeapByte);
+        }
+        samples++;
+        history.edit()
+                .putFloat(KEY_MS_PER_MB, msPerMb)
+                .putFloat(KEY_FILE_BYTES_PER_HEAP_BYTE, fileBytesPerHeapByte)
+                .putInt(KEY_SAMPLES, samples)
+                .apply();
+    }
+}
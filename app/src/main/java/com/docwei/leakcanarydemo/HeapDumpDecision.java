@@ -0,0 +1,59 @@
+package com.docwei.leakcanarydemo;
+
+import android.util.Log;
+
+/**
+ * What {@link RefWatcher} decided to do with a heap dump it was about to take, and the predicted
+ * cost it decided on. Dumping suspends every thread for a time proportional to the heap.
+ */
+public final class HeapDumpDecision {
+
+    public enum Action {
+        DUMP,
+        /** Waits for the app to go to the background, or for the deferral window to end. */
+        DEFER,
+        /** Over budget, the retained references wait for the next dump. */
+        SKIP
+    }
+
+    /** Receives every decision. */
+    public interface Listener {
+        Listener LOG = new Listener() {
+            @Override public void onHeapDumpDecision(HeapDumpDecision decision) {
+                Log.e("leak1", "heap dump decision: " + decision);
+            }
+        };
+
+        void onHeapDumpDecision(HeapDumpDecision decision);
+    }
+
+    public final Action action;
+    public final String reason;
+    /** Java heap in use when the decision was made. */
+    public final long usedHeapBytes;
+    public final long predictedPauseMs;
+    public final long predictedFileBytes;
+    /** Free space of the heap dump directory. */
+    public final long usableBytes;
+    public final boolean foreground;
+
+    HeapDumpDecision(Action action, String reason, long usedHeapBytes, long predictedPauseMs,
+                     long predictedFileBytes, long usableBytes, boolean foreground) {
+        this.action = action;
+        this.reason = reason;
+        this.usedHeapBytes = usedHeapBytes;
+        this.predictedPauseMs = predictedPauseMs;
+        this.predictedFileBytes = predictedFileBytes;
+        this.usableBytes = usableBytes;
+        this.foreground = foreground;
+    }
+
+    @Override public String toString() {
+        return action + " (" + reason + ")"
+                + " usedHeap=" + usedHeapBytes
+                + " predictedPause=" + predictedPauseMs + "ms"
+                + " predictedFile=" + predictedFileBytes
+                + " usable=" + usableBytes
+                + " foreground=" + foreground;
+    }
+}
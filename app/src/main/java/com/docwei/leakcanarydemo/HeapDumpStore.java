@@ -0,0 +1,151 @@
+package com.docwei.leakcanarydemo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Owns the directory heap dumps are written to, and keeps it within a quota.
+ *
+ * The directory holds the dumps waiting for their analysis ({@code xxx_pending.hprof}), the
+ * archives of the analyzed ones ({@code xxx.hprofz}) and the files the analyzer keeps next to
+ * them (indexes, temporary files). Dumps waiting for their analysis are queued and outlive the
+ * process. Kept archives are evicted oldest first (first in, first out), down to
+ * {@code maxStoredDumps} and {@code quotaBytes}: reading an archive doesn't renew it, touching
+ * it would invalidate its index. A dump is refused when the free space can't take
+ * it, and files left by an analysis that died with the process are swept on startup. Only used
+ * from the background handler thread.
+ */
+final class HeapDumpStore {
+
+    static final String HPROF_SUFFIX = ".hprof";
+    static final String PENDING_SUFFIX = "_pending" + HPROF_SUFFIX;
+    /** Written by the analyzer, see HprofArchive. */
+    private static final String ARCHIVE_SUFFIX = ".hprofz";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final File directory;
+    private final long quotaBytes;
+    private final int maxStoredDumps;
+
+    /** directory may be null when external storage isn't available, every dump is refused. */
+    HeapDumpStore(File directory, long quotaBytes, int maxStoredDumps) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+        this.maxStoredDumps = maxStoredDumps;
+    }
+
+    /**
+     * Returns the file to dump the heap to, or null if the free space can't take a dump of
+     * estimatedDumpBytes. Archives are evicted first to leave room for the new one.
+     */
+    File newHeapDumpFile(long estimatedDumpBytes) {
+        if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+            Log.e("leak1", "无法创建dump目录 " + directory);
+            return null;
+        }
+        // Kept archives make room for the one this dump will become.
+        trim(maxStoredDumps - 1, quotaBytes);
+        // The analyzer writes the stripped copy next to the dump before deleting it.
+        long requiredBytes = 2 * estimatedDumpBytes;
+        long usableBytes = directory.getUsableSpace();
+        if (usableBytes < requiredBytes) {
+            Log.e("leak1", "存储空间不足, 需要 " + requiredBytes + " 字节, 剩余 " + usableBytes);
+            return null;
+        }
+        return new File(directory, UUID.randomUUID().toString() + PENDING_SUFFIX);
+    }
+
+    /** Free space for the dumps, 0 when there is no directory. */
+    long usableBytes() {
+        return directory == null ? 0 : directory.getUsableSpace();
+    }
+
+    /** Bytes taken by every file of the directory. */
+    long totalBytes() {
+        long total = 0;
+        for (File file : listFiles()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    /**
+     * Deletes what an analysis left behind when the process died: dumps that are no longer
+     * queued, temporary files, and indexes of deleted dumps. Indexes of queued dumps are kept. Must run before the first dump and
+     * the first analysis of the process. Then trims the archives to the quota.
+     *
+     * @param queuedDumps dumps still waiting for their analysis, kept.
+     */
+    void sweepOrphans(Collection<File> queuedDumps) {
+        for (File file : listFiles()) {
+            String name = file.getName();
+            boolean orphan;
+            if (name.endsWith(ARCHIVE_SUFFIX) || queuedDumps.contains(file)) {
+                orphan = false;
+            } else if (name.endsWith(INDEX_SUFFIX)) {
+                File dump = new File(directory,
+                        name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                // A queued dump may have been indexed before the process died.
+                orphan = !queuedDumps.contains(dump)
+                        && (!dump.getName().endsWith(ARCHIVE_SUFFIX) || !dump.exists());
+            } else {
+                // Dumps no longer queued, stripped copies and half written archives or indexes.
+                orphan = true;
+            }
+            if (orphan && file.delete()) {
+                Log.e("leak1", "清理遗留的dump文件 " + name);
+            }
+        }
+        trim(maxStoredDumps, quotaBytes);
+    }
+
+    /**
+     * Evicts the oldest archives by their write time, with their index, until at most maxArchives
+     * are left and the directory takes at most maxBytes. Pending dumps are never evicted.
+     */
+    private void trim(int maxArchives, long maxBytes) {
+        File[] files = listFiles();
+        List<File> archives = new ArrayList<>();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+            if (file.getName().endsWith(ARCHIVE_SUFFIX)) {
+                archives.add(file);
+            }
+        }
+        File[] oldestFirst = archives.toArray(new File[archives.size()]);
+        Arrays.sort(oldestFirst, new Comparator<File>() {
+            @Override public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        int count = oldestFirst.length;
+        for (File archive : oldestFirst) {
+            if (count <= Math.max(0, maxArchives) && total <= maxBytes) {
+                break;
+            }
+            File index = new File(directory, archive.getName() + INDEX_SUFFIX);
+            long freed = archive.length() + index.length();
+            if (archive.delete()) {
+                index.delete();
+                total -= freed;
+                count--;
+                Log.e("leak1", "超出dump配额, 删除 " + archive.getName());
+            }
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = directory == null ? null : directory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+}
@@ -0,0 +1,103 @@
+package com.docwei.leakcanarydemo;
+
+import android.os.Handler;
+
+import com.docwei.leakcanarydemo.analyzer.KeyedWeakReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides when the references confirmed as retained are worth a heap dump.
+ *
+ * Retained references accumulate until there are {@code retainedThreshold} of them, or until
+ * {@code maxWaitMillis} went by since the first one was added, and are then all handed to the
+ * {@link Dumper} together so that a single dump covers them. Only used from the background handler
+ * thread, except {@link #retainedCount()}.
+ */
+final class HeapDumpTrigger {
+
+    interface Dumper {
+        /** Dumps the heap for the provided references, returns how long the dump took. */
+        long dumpHeap(List<KeyedWeakReference> retained);
+    }
+
+    private final Handler handler;
+    private final ConcurrentLongSet retainedKeys;
+    private final int retainedThreshold;
+    private final long maxWaitMillis;
+    private final Dumper dumper;
+    private final List<KeyedWeakReference> pending = new ArrayList<>();
+    private boolean maxWaitScheduled;
+    /** pending.size(), for the threads that can't read pending. */
+    private volatile int retainedCount;
+
+    private final Runnable maxWaitReached = new Runnable() {
+        @Override public void run() {
+            maxWaitScheduled = false;
+            removeCollected();
+            if (!pending.isEmpty()) {
+                dumpPending();
+            }
+        }
+    };
+
+    HeapDumpTrigger(Handler handler, ConcurrentLongSet retainedKeys, int retainedThreshold,
+                    long maxWaitMillis, Dumper dumper) {
+        this.handler = handler;
+        this.retainedKeys = retainedKeys;
+        this.retainedThreshold = retainedThreshold;
+        this.maxWaitMillis = maxWaitMillis;
+        this.dumper = dumper;
+    }
+
+    /**
+     * Adds references that survived a GC. Returns how long the heap dump took if this pushed the
+     * retained count to the threshold, 0 if the dump is deferred.
+     */
+    long onRetained(List<KeyedWeakReference> retained) {
+        pending.addAll(retained);
+        removeCollected();
+        if (pending.isEmpty()) {
+            cancelMaxWait();
+            return 0;
+        }
+        if (pending.size() >= retainedThreshold) {
+            return dumpPending();
+        }
+        if (!maxWaitScheduled) {
+            maxWaitScheduled = true;
+            handler.postDelayed(maxWaitReached, maxWaitMillis);
+        }
+        return 0;
+    }
+
+    /** Number of retained references waiting for a heap dump, from any thread. */
+    int retainedCount() {
+        return retainedCount;
+    }
+
+    private long dumpPending() {
+        cancelMaxWait();
+        List<KeyedWeakReference> retained = new ArrayList<>(pending);
+        pending.clear();
+        retainedCount = 0;
+        return dumper.dumpHeap(retained);
+    }
+
+    private void removeCollected() {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (!retainedKeys.contains(pending.get(i).key)) {
+                pending.remove(i);
+            }
+        }
+        retainedCount = pending.size();
+    }
+
+    private void cancelMaxWait() {
+        if (maxWaitScheduled) {
+            maxWaitScheduled = false;
+            handler.removeCallbacks(maxWaitReached);
+        }
+    }
+}
@@ -15,6 +15,8 @@ public class MyApplication extends Application {
     public void onCreate() {
         super.onCreate();
         instance=this;
+        //进程一启动就装好，分析服务可能在新进程里被拉起，上个进程留下的分析任务也要接着跑
+        RefWatcher.install(RefWatcher.Config.builder().build());
         registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacksAdapter(){
             @Override
             public void onActivityDestroyed(Activity activity) {
@@ -1,28 +1,32 @@
 package com.docwei.leakcanarydemo;
 
-import android.content.Intent;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.core.content.ContextCompat;
-
-import com.docwei.leakcanarydemo.analyzer.HeapAnalyzerService;
+import com.docwei.leakcanarydemo.analyzer.AnalysisPolicy;
+import com.docwei.leakcanarydemo.analyzer.AnalysisQueue;
+import com.docwei.leakcanarydemo.analyzer.AndroidExcludedRefs;
+import com.docwei.leakcanarydemo.analyzer.HeapDump;
 import com.docwei.leakcanarydemo.analyzer.KeyedWeakReference;
+import com.docwei.leakcanarydemo.analyzer.Reachability;
 
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
-import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
-
-import static com.docwei.leakcanarydemo.analyzer.HeapAnalyzerService.HEAPDUMP_EXTRA;
-import static com.docwei.leakcanarydemo.analyzer.HeapAnalyzerService.REFERENCE_KEY_EXTRA;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* When active:   NULL
  *     pending:   this
@@ -31,97 +35,354 @@ import static com.docwei.leakcanarydemo.analyzer.HeapAnalyzerService.REFERENCE_K
  */
 
 public class RefWatcher {
-    private static final String HPROF_SUFFIX = ".hprof";
-    private static final String PENDING_HEAPDUMP_SUFFIX = "_pending" + HPROF_SUFFIX;
+    /** Objects visited to estimate the retained size of each leak. */
+    private static final int RETAINED_HEAP_SIZE_NODE_BUDGET = 200000;
    public static volatile RefWatcher sInstance;
     public static  RefWatcher  getInstance(){
         if(sInstance==null){
             synchronized (RefWatcher.class){
                 if(sInstance==null){
-                    return new RefWatcher(new CopyOnWriteArraySet<String>(),new ReferenceQueue<>());
+                    sInstance = new RefWatcher(Config.builder().build(),new ConcurrentLongSet(),new ReferenceQueue<>());
                 }
             }
         }
         return sInstance;
     }
+
+    /**
+     * Creates the instance returned by {@link #getInstance()} with a custom config. Must be called
+     * before the first {@link #getInstance()}, typically from {@link android.app.Application#onCreate()}.
+     */
+    public static RefWatcher install(Config config) {
+        synchronized (RefWatcher.class) {
+            if (sInstance != null) {
+                throw new IllegalStateException("RefWatcher already installed");
+            }
+            sInstance = new RefWatcher(config, new ConcurrentLongSet(), new ReferenceQueue<>());
+            return sInstance;
+        }
+    }
+
     private final Handler mBackgroundHander;
     private final Handler mMainHandler;
+    private final RetentionWheel mRetentionWheel;
+    private final ReferenceQueueDrainer mQueueDrainer;
+    private final HeapDumpTrigger mHeapDumpTrigger;
+    private final boolean mArchiveHeapDumps;
+    private final HeapDumpStore mHeapDumpStore;
+    private final AnalysisQueue mAnalysisQueue;
+    private final long mForegroundHeapDumpPauseBudgetMillis;
+    private final long mMaxHeapDumpPauseMillis;
+    private final long mMaxHeapDumpDeferMillis;
+    //只在watch_leak线程读写
+    private long mLastGcDurationMs;
+    //读dump历史要读磁盘，在watch_leak线程创建
+    private HeapDumpCostPredictor mCostPredictor;
+    //推迟或者跳过的dump里的泄露对象，并入下一次dump
+    private final List<KeyedWeakReference> mDeferredRefs = new ArrayList<>();
+    private boolean mDeferredDumpScheduled;
+    private final Runnable mDeferredDumpWindowEnd = new Runnable() {
+        @Override public void run() {
+            //推迟窗口结束，不再等到后台
+            dumpDeferred(false);
+        }
+    };
+    //检测时对象都已被回收、不需要强制GC的次数，以及不得不GC的次数
+    private final AtomicLong mGcAvoidedCount = new AtomicLong();
+    private final AtomicLong mGcForcedCount = new AtomicLong();
+    private volatile RetentionTimings.Listener mRetentionTimingsListener = RetentionTimings.Listener.LOG;
+    private volatile HeapDumpDecision.Listener mHeapDumpDecisionListener = HeapDumpDecision.Listener.LOG;
 
-    private  RefWatcher(Set<String> retainedKeys, ReferenceQueue<Object> queue) {
+    private  RefWatcher(Config config, ConcurrentLongSet retainedKeys, ReferenceQueue<Object> queue) {
         this.retainedKeys = retainedKeys;
         this.queue = queue;
+        mArchiveHeapDumps = config.archiveHeapDumps;
+        mHeapDumpStore = new HeapDumpStore(MyApplication.getInstance().getExternalFilesDir("dump"),
+                config.heapDumpQuotaBytes, config.maxStoredHeapDumps);
+        mForegroundHeapDumpPauseBudgetMillis = config.foregroundHeapDumpPauseBudgetMillis;
+        mMaxHeapDumpPauseMillis = config.maxHeapDumpPauseMillis;
+        mMaxHeapDumpDeferMillis = config.maxHeapDumpDeferMillis;
+        mAnalysisQueue = AnalysisQueue.install(MyApplication.getInstance(), config.analysisPolicy);
         HandlerThread handlerThread=new HandlerThread("watch_leak");
         handlerThread.start();
         mBackgroundHander = new Handler(handlerThread.getLooper());
         mMainHandler = new Handler(Looper.getMainLooper());
+        mRetentionWheel = new RetentionWheel(mBackgroundHander, config.tickMillis,
+                config.watchDelayMillis, new RetentionWheel.Sweeper() {
+            @Override public void onExpired(List<KeyedWeakReference> expired) {
+                ensureGoneAsync(expired);
+            }
+        });
+        mHeapDumpTrigger = new HeapDumpTrigger(mBackgroundHander, retainedKeys,
+                config.retainedThreshold, config.maxDumpWaitMillis, new HeapDumpTrigger.Dumper() {
+            @Override public long dumpHeap(List<KeyedWeakReference> retained) {
+                return RefWatcher.this.dumpHeap(retained, true);
+            }
+        });
+        //进程刚启动，没有分析在进行，除了还在队列里等待分析的，上次崩溃留下的dump都是孤儿
+        mBackgroundHander.post(new Runnable() {
+            @Override public void run() {
+                mHeapDumpStore.sweepOrphans(mAnalysisQueue.queuedHeapDumpFiles());
+                //清理完才开始分析，否则会删掉正在进行的分析的临时文件
+                mAnalysisQueue.start();
+                mCostPredictor = new HeapDumpCostPredictor(MyApplication.getInstance()
+                        .getSharedPreferences("leak_heap_dump_cost", Context.MODE_PRIVATE),
+                        mForegroundHeapDumpPauseBudgetMillis, mMaxHeapDumpPauseMillis);
+            }
+        });
+        //退到后台是dump的好时机，推迟的dump在这时执行
+        MyApplication.getInstance().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    mBackgroundHander.post(new Runnable() {
+                        @Override public void run() {
+                            dumpDeferred(true);
+                        }
+                    });
+                }
+            }
 
+            @Override public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override public void onLowMemory() {
+            }
+        });
+        if (config.drainReferenceQueue) {
+            mQueueDrainer = new ReferenceQueueDrainer(queue, retainedKeys);
+            mQueueDrainer.start();
+        } else {
+            mQueueDrainer = null;
+        }
+    }
+
+    /** Number of retention checks that found every reference already collected, without a GC. */
+    public long getGcAvoidedCount() {
+        return mGcAvoidedCount.get();
     }
 
-    private final Set<String> retainedKeys;
+    /** Number of retention checks that had to call {@link GcTrigger#runGc()}. */
+    public long getGcForcedCount() {
+        return mGcForcedCount.get();
+    }
+
+    /** Number of references cleared by the reference queue thread, 0 if it isn't enabled. */
+    public long getQueueDrainedCount() {
+        return mQueueDrainer == null ? 0 : mQueueDrainer.drainedCount();
+    }
+
+    private final ConcurrentLongSet retainedKeys;
     private final ReferenceQueue<Object> queue;
+    //单调递增的key，0留给ConcurrentLongSet表示空槽
+    private final AtomicLong keyGenerator = new AtomicLong();
     public void watch(Object object) {
         if(object==null) {
             return;
         }
-        String key = UUID.randomUUID().toString();
+        long key = keyGenerator.incrementAndGet();
         retainedKeys.add(key);
         //将key与object绑定，所以新建了这个KeyedWeakReference;
-        KeyedWeakReference weakReference=new KeyedWeakReference(object,key,queue);
-        ensureGoneAsync(weakReference);
+        KeyedWeakReference weakReference=new KeyedWeakReference(object,key,SystemClock.uptimeMillis(),queue);
+        //不再每个对象单独post，交给时间轮，同一个tick到期的对象一起检查
+        mRetentionWheel.schedule(weakReference);
     }
-    private void ensureGoneAsync(final KeyedWeakReference weakReference) {
-        //leakCanary大概等了5秒时间，再去检测是否泄露的
-        //参考leakCanary的搞法
-        mBackgroundHander.postDelayed(new Runnable() {
+    private void ensureGoneAsync(final List<KeyedWeakReference> expired) {
+        //主线程只用来等待空闲，GC和dump都回到watch_leak线程执行，不能卡住UI
+        //一批到期的对象只占用一个IdleHandler
+        mMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                mMainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
-                            @Override public boolean queueIdle() {
-                                ensureGone(weakReference);
-                                return false;
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override public boolean queueIdle() {
+                        mBackgroundHander.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                ensureGone(expired);
                             }
                         });
+                        return false;
                     }
                 });
             }
-        },5000);
+        });
+    }
+
+    public void setRetentionTimingsListener(RetentionTimings.Listener listener) {
+        mRetentionTimingsListener = listener == null ? RetentionTimings.Listener.LOG : listener;
+    }
 
+    public void setHeapDumpDecisionListener(HeapDumpDecision.Listener listener) {
+        mHeapDumpDecisionListener = listener == null ? HeapDumpDecision.Listener.LOG : listener;
     }
-    public void ensureGone(KeyedWeakReference weakReference){
+
+    private void ensureGone(List<KeyedWeakReference> expired){
+        long checkStartUptimeMillis = SystemClock.uptimeMillis();
+        long watchDurationMs = checkStartUptimeMillis - oldestWatchUptimeMillis(expired);
         removeWeaklyReachableReferences();
         //说明对象被正常回收了
-        if(!retainedKeys.contains(weakReference.key)){
+        List<KeyedWeakReference> retainedRefs = retainedReferences(expired);
+        if(retainedRefs.isEmpty()){
+            mGcAvoidedCount.incrementAndGet();
+            reportTimings(watchDurationMs, SystemClock.uptimeMillis() - checkStartUptimeMillis, 0, 0,
+                    false);
             return;
         }
-        //Gc一次之后
+        long retainedCheckDurationMs = SystemClock.uptimeMillis() - checkStartUptimeMillis;
+        //整批对象只Gc一次
+        mGcForcedCount.incrementAndGet();
+        long gcStartUptimeMillis = SystemClock.uptimeMillis();
         GcTrigger.DEFAULT.runGc();
+        long gcDurationMs = SystemClock.uptimeMillis() - gcStartUptimeMillis;
+        mLastGcDurationMs = gcDurationMs;
         //再清理操作
+        long recheckStartUptimeMillis = SystemClock.uptimeMillis();
         removeWeaklyReachableReferences();
+        retainedRefs = retainedReferences(retainedRefs);
+        retainedCheckDurationMs += SystemClock.uptimeMillis() - recheckStartUptimeMillis;
 
-        if(retainedKeys.contains(weakReference.key)){
-            Log.e("leak1", "catch a leak point "+weakReference );
-            //进行内存快照 key还在说明 reference不在这个ReferenceQueue里面，可能就发生内存泄露了
-            //就直接手动给存储权限
-            File file=new File(MyApplication.getInstance().getExternalFilesDir("dump"),UUID.randomUUID().toString()+PENDING_HEAPDUMP_SUFFIX);
-            try {
-                Debug.dumpHprofData(file.getAbsolutePath());
-                //leakcanary启动一个服务去解析这个profile文件
-                Intent intent = new Intent(MyApplication.getInstance(), HeapAnalyzerService.class);
-                intent.putExtra(HEAPDUMP_EXTRA, file.getAbsolutePath());
-                intent.putExtra(REFERENCE_KEY_EXTRA, weakReference.key);
-                ContextCompat.startForegroundService(MyApplication.getInstance(), intent);
+        //不是每个泄露对象都dump一次，攒够阈值或者等待超时后一次dump全部
+        long heapDumpDurationMs = 0;
+        if (!retainedRefs.isEmpty()) {
+            heapDumpDurationMs = mHeapDumpTrigger.onRetained(retainedRefs);
+        }
+        reportTimings(watchDurationMs, retainedCheckDurationMs, gcDurationMs, heapDumpDurationMs,
+                !retainedRefs.isEmpty());
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Returns how long the dump took, 0 if it failed, was not needed, or was deferred or skipped.
+     * A deferred or skipped dump leaves its references to the next one.
+     *
+     * @param deferAllowed false when a deferred dump reached the end of its window.
+     */
+    private long dumpHeap(List<KeyedWeakReference> retained, boolean deferAllowed) {
+        if (!mDeferredRefs.isEmpty()) {
+            List<KeyedWeakReference> merged = new ArrayList<>(mDeferredRefs);
+            merged.addAll(retained);
+            mDeferredRefs.clear();
+            retained = merged;
+        }
+        // Some references may have been collected while waiting for the threshold.
+        removeWeaklyReachableReferences();
+        retained = retainedReferences(retained);
+        if (retained.isEmpty()) {
+            return 0;
+        }
+        //dump会暂停所有线程，时间和堆大小成正比，先预估代价
+        long usedHeapBytes = HeapDumpCostPredictor.usedHeapBytes();
+        HeapDumpDecision decision = mCostPredictor.decide(usedHeapBytes, isForeground(),
+                deferAllowed, mHeapDumpStore.usableBytes());
+        mHeapDumpDecisionListener.onHeapDumpDecision(decision);
+        if (decision.action != HeapDumpDecision.Action.DUMP) {
+            mDeferredRefs.addAll(retained);
+            if (decision.action == HeapDumpDecision.Action.DEFER && !mDeferredDumpScheduled) {
+                mDeferredDumpScheduled = true;
+                mBackgroundHander.postDelayed(mDeferredDumpWindowEnd, mMaxHeapDumpDeferMillis);
             }
+            return 0;
+        }
+        Log.e("leak1", "catch " + retained.size() + " leak points, dumping the heap");
+        //进行内存快照 key还在说明 reference不在这个ReferenceQueue里面，可能就发生内存泄露了
+        //就直接手动给存储权限
+        File file = mHeapDumpStore.newHeapDumpFile(decision.predictedFileBytes);
+        if (file == null) {
+            return 0;
+        }
+        long heapDumpStartUptimeMillis = SystemClock.uptimeMillis();
+        try {
+            Debug.dumpHprofData(file.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return 0;
+        }
+        long heapDumpDurationMs = SystemClock.uptimeMillis() - heapDumpStartUptimeMillis;
+        long[] referenceKeys = new long[retained.size()];
+        for (int i = 0; i < referenceKeys.length; i++) {
+            referenceKeys[i] = retained.get(i).key;
+            //已经进了快照，不再算作待dump的泄露对象
+            retainedKeys.remove(referenceKeys[i]);
+        }
+        HeapDump heapDump = HeapDump.builder()
+                .heapDumpFile(file)
+                .referenceKeys(referenceKeys)
+                .excludedRefs(AndroidExcludedRefs.createAppDefaults().build())
+                .watchDurationMs(heapDumpStartUptimeMillis - oldestWatchUptimeMillis(retained))
+                .gcDurationMs(mLastGcDurationMs)
+                .heapDumpDurationMs(heapDumpDurationMs)
+                // A dominator tree of the whole heap is too expensive on the device, estimate.
+                .computeRetainedHeapSize(true)
+                .retainedHeapSizeNodeBudget(RETAINED_HEAP_SIZE_NODE_BUDGET)
+                // 分析的同时压缩成.hprofz保存
+                .archiveHeapDump(mArchiveHeapDumps)
+                .reachabilityInspectorClasses(Collections.<Class<? extends Reachability.Inspector>>emptyList())
+                .build();
+        mCostPredictor.onHeapDumped(heapDump, usedHeapBytes);
+        //不再马上启动分析服务，存进队列，满足约束时再分析，进程被杀也不会丢
+        try {
+            mAnalysisQueue.enqueue(heapDump);
+        } catch (IOException e) {
+            Log.e("leak1", "分析任务入队失败", e);
+            file.delete();
+        }
+        return heapDumpDurationMs;
+    }
+
+    /** Number of references confirmed as retained and waiting for the next heap dump. */
+    public int getRetainedCount() {
+        return mHeapDumpTrigger.retainedCount();
+    }
+
+    /** Dumps the references of deferred or skipped dumps, if any. */
+    private void dumpDeferred(boolean deferAllowed) {
+        mBackgroundHander.removeCallbacks(mDeferredDumpWindowEnd);
+        mDeferredDumpScheduled = false;
+        if (!mDeferredRefs.isEmpty()) {
+            dumpHeap(Collections.<KeyedWeakReference>emptyList(), deferAllowed);
+        }
+    }
+
+    /** Whether the user can see the app, a dump then freezes the UI. */
+    private static boolean isForeground() {
+        ActivityManager.RunningAppProcessInfo processInfo = new ActivityManager.RunningAppProcessInfo();
+        ActivityManager.getMyMemoryState(processInfo);
+        return processInfo.importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE;
+    }
+
+    /** Bytes taken by the heap dump directory. Reads the directory, don't call from the main thread. */
+    public long getHeapDumpStoreBytes() {
+        return mHeapDumpStore.totalBytes();
+    }
+
+    private List<KeyedWeakReference> retainedReferences(List<KeyedWeakReference> references) {
+        List<KeyedWeakReference> retained = new ArrayList<>();
+        for (KeyedWeakReference reference : references) {
+            if (retainedKeys.contains(reference.key)) {
+                retained.add(reference);
+            }
+        }
+        return retained;
+    }
 
+    private static long oldestWatchUptimeMillis(List<KeyedWeakReference> references) {
+        long oldest = Long.MAX_VALUE;
+        for (KeyedWeakReference reference : references) {
+            oldest = Math.min(oldest, reference.watchUptimeMillis);
         }
+        return oldest;
+    }
+
+    private void reportTimings(long watchDurationMs, long retainedCheckDurationMs, long gcDurationMs,
+                               long heapDumpDurationMs, boolean retained) {
+        boolean ranOnMainThread = Looper.myLooper() == Looper.getMainLooper();
+        mRetentionTimingsListener.onRetentionChecked(new RetentionTimings(watchDurationMs,
+                retainedCheckDurationMs, gcDurationMs, heapDumpDurationMs, retained, ranOnMainThread,
+                Thread.currentThread().getName()));
     }
 
     private void removeWeaklyReachableReferences() {
+        // With the ReferenceQueueDrainer running this usually finds the queue empty: keys are
+        // removed as soon as the VM enqueues their reference.
         // WeakReferences are enqueued as soon as the object to which they point to becomes weakly
         // reachable. This is before finalization or garbage collection has actually happened.
         //正常情况下 如果一个对象不可达了，那么这个对象的弱引用就会被加入指定的ReferenceQueue（我们可以基于此去查询对象的内存状态）中
@@ -132,4 +393,186 @@ public class RefWatcher {
             retainedKeys.remove(ref.key);
         }
     }
+
+    /** Tuning for {@link RefWatcher}, see {@link #install(Config)}. */
+    public static final class Config {
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        /** Resolution of the retention wheel: references due in the same tick are checked together. */
+        public final long tickMillis;
+        /** How long a watched object gets to be garbage collected before it's considered retained. */
+        public final long watchDelayMillis;
+        /**
+         * Whether a daemon thread should block on the reference queue and clear keys as soon as
+         * their reference is enqueued, so retention checks rarely need to force a GC.
+         */
+        public final boolean drainReferenceQueue;
+        /** Number of retained objects that triggers a heap dump covering all of them. */
+        public final int retainedThreshold;
+        /** Longest time a retained object waits for the threshold before the heap is dumped anyway. */
+        public final long maxDumpWaitMillis;
+        /**
+         * Whether analyzed heap dumps are kept for offline investigation, as block compressed
+         * archives compressed while the dump is analyzed. Otherwise they are deleted.
+         */
+        public final boolean archiveHeapDumps;
+        /** Most bytes the heap dump directory should take, older archives are evicted beyond. */
+        public final long heapDumpQuotaBytes;
+        /** Most archives kept, the oldest ones are evicted beyond. */
+        public final int maxStoredHeapDumps;
+        /**
+         * Longest predicted heap dump pause allowed while the app is visible. Longer dumps are
+         * deferred until the app goes to the background, at most {@link #maxHeapDumpDeferMillis}.
+         */
+        public final long foregroundHeapDumpPauseBudgetMillis;
+        /** Heap dumps predicted to pause the app longer are skipped. */
+        public final long maxHeapDumpPauseMillis;
+        /** Longest time a heap dump is deferred before it's taken in the foreground anyway. */
+        public final long maxHeapDumpDeferMillis;
+        /** When the queued heap dumps are analyzed. */
+        public final AnalysisPolicy analysisPolicy;
+
+        Config(Builder builder) {
+            this.tickMillis = builder.tickMillis;
+            this.watchDelayMillis = builder.watchDelayMillis;
+            this.drainReferenceQueue = builder.drainReferenceQueue;
+            this.retainedThreshold = builder.retainedThreshold;
+            this.maxDumpWaitMillis = builder.maxDumpWaitMillis;
+            this.archiveHeapDumps = builder.archiveHeapDumps;
+            this.heapDumpQuotaBytes = builder.heapDumpQuotaBytes;
+            this.maxStoredHeapDumps = builder.maxStoredHeapDumps;
+            this.foregroundHeapDumpPauseBudgetMillis = builder.foregroundHeapDumpPauseBudgetMillis;
+            this.maxHeapDumpPauseMillis = builder.maxHeapDumpPauseMillis;
+            this.maxHeapDumpDeferMillis = builder.maxHeapDumpDeferMillis;
+            this.analysisPolicy = builder.analysisPolicy;
+        }
+
+        public static final class Builder {
+            long tickMillis;
+            long watchDelayMillis;
+            boolean drainReferenceQueue;
+            int retainedThreshold;
+            long maxDumpWaitMillis;
+            boolean archiveHeapDumps;
+            long heapDumpQuotaBytes;
+            int maxStoredHeapDumps;
+            long foregroundHeapDumpPauseBudgetMillis;
+            long maxHeapDumpPauseMillis;
+            long maxHeapDumpDeferMillis;
+            AnalysisPolicy analysisPolicy;
+
+            Builder() {
+                tickMillis = 500;
+                //leakCanary大概等了5秒时间，再去检测是否泄露的
+                watchDelayMillis = 5000;
+                drainReferenceQueue = false;
+                retainedThreshold = 5;
+                maxDumpWaitMillis = 30000;
+                archiveHeapDumps = true;
+                heapDumpQuotaBytes = 200L * 1024 * 1024;
+                maxStoredHeapDumps = 5;
+                foregroundHeapDumpPauseBudgetMillis = 500;
+                maxHeapDumpPauseMillis = 20000;
+                maxHeapDumpDeferMillis = 10 * 60 * 1000;
+                analysisPolicy = AnalysisPolicy.builder().build();
+            }
+
+            public Builder tickMillis(long tickMillis) {
+                if (tickMillis <= 0) {
+                    throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+                }
+                this.tickMillis = tickMillis;
+                return this;
+            }
+
+            public Builder watchDelayMillis(long watchDelayMillis) {
+                if (watchDelayMillis < 0) {
+                    throw new IllegalArgumentException("watchDelayMillis must not be negative: " + watchDelayMillis);
+                }
+                this.watchDelayMillis = watchDelayMillis;
+                return this;
+            }
+
+            public Builder drainReferenceQueue(boolean drainReferenceQueue) {
+                this.drainReferenceQueue = drainReferenceQueue;
+                return this;
+            }
+
+            public Builder retainedThreshold(int retainedThreshold) {
+                if (retainedThreshold < 1) {
+                    throw new IllegalArgumentException("retainedThreshold must be at least 1: " + retainedThreshold);
+                }
+                this.retainedThreshold = retainedThreshold;
+                return this;
+            }
+
+            public Builder archiveHeapDumps(boolean archiveHeapDumps) {
+                this.archiveHeapDumps = archiveHeapDumps;
+                return this;
+            }
+
+            public Builder heapDumpQuotaBytes(long heapDumpQuotaBytes) {
+                if (heapDumpQuotaBytes < 0) {
+                    throw new IllegalArgumentException("heapDumpQuotaBytes must not be negative: " + heapDumpQuotaBytes);
+                }
+                this.heapDumpQuotaBytes = heapDumpQuotaBytes;
+                return this;
+            }
+
+            public Builder maxStoredHeapDumps(int maxStoredHeapDumps) {
+                if (maxStoredHeapDumps < 0) {
+                    throw new IllegalArgumentException("maxStoredHeapDumps must not be negative: " + maxStoredHeapDumps);
+                }
+                this.maxStoredHeapDumps = maxStoredHeapDumps;
+                return this;
+            }
+
+            public Builder foregroundHeapDumpPauseBudgetMillis(long foregroundHeapDumpPauseBudgetMillis) {
+                if (foregroundHeapDumpPauseBudgetMillis < 0) {
+                    throw new IllegalArgumentException("foregroundHeapDumpPauseBudgetMillis must not be negative: " + foregroundHeapDumpPauseBudgetMillis);
+                }
+                this.foregroundHeapDumpPauseBudgetMillis = foregroundHeapDumpPauseBudgetMillis;
+                return this;
+            }
+
+            public Builder maxHeapDumpPauseMillis(long maxHeapDumpPauseMillis) {
+                if (maxHeapDumpPauseMillis < 0) {
+                    throw new IllegalArgumentException("maxHeapDumpPauseMillis must not be negative: " + maxHeapDumpPauseMillis);
+                }
+                this.maxHeapDumpPauseMillis = maxHeapDumpPauseMillis;
+                return this;
+            }
+
+            public Builder maxHeapDumpDeferMillis(long maxHeapDumpDeferMillis) {
+                if (maxHeapDumpDeferMillis < 0) {
+                    throw new IllegalArgumentException("maxHeapDumpDeferMillis must not be negative: " + maxHeapDumpDeferMillis);
+                }
+                this.maxHeapDumpDeferMillis = maxHeapDumpDeferMillis;
+                return this;
+            }
+
+            public Builder analysisPolicy(AnalysisPolicy analysisPolicy) {
+                if (analysisPolicy == null) {
+                    throw new IllegalArgumentException("analysisPolicy must not be null");
+                }
+                this.analysisPolicy = analysisPolicy;
+                return this;
+            }
+
+            public Builder maxDumpWaitMillis(long maxDumpWaitMillis) {
+                if (maxDumpWaitMillis < 0) {
+                    throw new IllegalArgumentException("maxDumpWaitMillis must not be negative: " + maxDumpWaitMillis);
+                }
+                this.maxDumpWaitMillis = maxDumpWaitMillis;
+                return this;
+            }
+
+            public Config build() {
+                return new Config(this);
+            }
+        }
+    }
 }
@@ -0,0 +1,44 @@
+package com.docwei.leakcanarydemo;
+
+import com.docwei.leakcanarydemo.analyzer.KeyedWeakReference;
+
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * Daemon thread blocking on the {@link ReferenceQueue} so that the key of a watched reference
+ * leaves the retained keys as soon as the VM enqueues it, instead of waiting for the next
+ * retention check to poll the queue. Most checks then find their references already gone and
+ * don't need to force a GC.
+ */
+final class ReferenceQueueDrainer extends Thread {
+
+    private final ReferenceQueue<Object> queue;
+    private final ConcurrentLongSet retainedKeys;
+    private volatile long drainedCount;
+
+    ReferenceQueueDrainer(ReferenceQueue<Object> queue, ConcurrentLongSet retainedKeys) {
+        super("watch_leak_queue");
+        this.queue = queue;
+        this.retainedKeys = retainedKeys;
+        setDaemon(true);
+    }
+
+    @Override public void run() {
+        while (!isInterrupted()) {
+            KeyedWeakReference ref;
+            try {
+                ref = (KeyedWeakReference) queue.remove();
+            } catch (InterruptedException e) {
+                return;
+            }
+            retainedKeys.remove(ref.key);
+            // Single writer, a plain increment of the volatile is enough.
+            drainedCount++;
+        }
+    }
+
+    /** Number of references this thread removed from the queue. */
+    long drainedCount() {
+        return drainedCount;
+    }
+}
@@ -0,0 +1,58 @@
+package com.docwei.leakcanarydemo;
+
+import android.util.Log;
+
+/**
+ * How long each phase of a single {@link RefWatcher} retention check took, and which thread ran
+ * it. A check that ran on the main thread is a bug: GC and heap dumps must never block the UI.
+ */
+public final class RetentionTimings {
+
+    /** Receives the timings of every retention check. */
+    public interface Listener {
+        Listener LOG = new Listener() {
+            @Override public void onRetentionChecked(RetentionTimings timings) {
+                if (timings.ranOnMainThread) {
+                    Log.e("leak1", "retention check blocked the main thread: " + timings);
+                } else {
+                    Log.d("leak1", "retention check: " + timings);
+                }
+            }
+        };
+
+        void onRetentionChecked(RetentionTimings timings);
+    }
+
+    /** Time from the call to watch() until the retention check started. */
+    public final long watchDurationMs;
+    /** Time spent draining the reference queue and looking up the retained keys. */
+    public final long retainedCheckDurationMs;
+    /** Time spent in {@link GcTrigger#runGc()}, 0 if no GC was needed. */
+    public final long gcDurationMs;
+    /** Time spent writing the heap dump, 0 if nothing was retained. */
+    public final long heapDumpDurationMs;
+    /** True if the references were still retained after the GC. */
+    public final boolean retained;
+    public final boolean ranOnMainThread;
+    public final String threadName;
+
+    RetentionTimings(long watchDurationMs, long retainedCheckDurationMs, long gcDurationMs,
+                     long heapDumpDurationMs, boolean retained, boolean ranOnMainThread, String threadName) {
+        this.watchDurationMs = watchDurationMs;
+        this.retainedCheckDurationMs = retainedCheckDurationMs;
+        this.gcDurationMs = gcDurationMs;
+        this.heapDumpDurationMs = heapDumpDurationMs;
+        this.retained = retained;
+        this.ranOnMainThread = ranOnMainThread;
+        this.threadName = threadName;
+    }
+
+    @Override public String toString() {
+        return "watch=" + watchDurationMs + "ms"
+                + " retainedCheck=" + retainedCheckDurationMs + "ms"
+                + " gc=" + gcDurationMs + "ms"
+                + " heapDump=" + heapDumpDurationMs + "ms"
+                + " retained=" + retained
+                + " thread=" + threadName;
+    }
+}
@@ -0,0 +1,133 @@
+package com.docwei.leakcanarydemo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.docwei.leakcanarydemo.analyzer.KeyedWeakReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel holding the references that are waiting for their retention check.
+ *
+ * Each watched reference lands in the slot of the tick its check is due in. A single tick
+ * runnable on the background handler expires every due reference of the elapsed ticks at once and
+ * hands them to the {@link Sweeper} as one batch, so a burst of destroyed activities costs one
+ * sweep instead of one message (and one GC) per reference. The wheel only ticks while it holds
+ * pending references.
+ */
+final class RetentionWheel {
+
+    /** Receives on the background handler thread the references whose watch delay expired. */
+    interface Sweeper {
+        void onExpired(List<KeyedWeakReference> expired);
+    }
+
+    private final Handler handler;
+    private final long tickMillis;
+    private final long watchDelayMillis;
+    private final Sweeper sweeper;
+    private final List<KeyedWeakReference>[] slots;
+
+    private final Runnable tick = new Runnable() {
+        @Override public void run() {
+            onTick();
+        }
+    };
+
+    // Guarded by this: watch() runs on the main thread, ticks run on the background thread.
+    private int pendingCount;
+    private long lastSweptTick;
+    private boolean ticking;
+
+    @SuppressWarnings("unchecked")
+    RetentionWheel(Handler handler, long tickMillis, long watchDelayMillis, Sweeper sweeper) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        this.handler = handler;
+        this.tickMillis = tickMillis;
+        this.watchDelayMillis = watchDelayMillis;
+        this.sweeper = sweeper;
+        // Enough slots for the watch delay to fit in a single turn of the wheel, so that a slot
+        // usually only holds references that are due together.
+        int slotCount = (int) Math.min(4096, Math.max(8, watchDelayMillis / tickMillis + 2));
+        slots = new List[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        lastSweptTick = SystemClock.uptimeMillis() / tickMillis;
+    }
+
+    synchronized void schedule(KeyedWeakReference reference) {
+        long deadlineTick = deadlineTick(reference);
+        if (pendingCount == 0) {
+            // The wheel was idle, catch up without sweeping anything.
+            lastSweptTick = Math.min(deadlineTick - 1, SystemClock.uptimeMillis() / tickMillis);
+        }
+        // With no watch delay a reference watched on the tick just swept is due in it, and its
+        // slot would only come round again a full turn later: check it on the next tick.
+        slots[slotIndex(Math.max(deadlineTick, lastSweptTick + 1))].add(reference);
+        pendingCount++;
+        if (!ticking) {
+            ticking = true;
+            postNextTick();
+        }
+    }
+
+    synchronized int pendingCount() {
+        return pendingCount;
+    }
+
+    private void onTick() {
+        List<KeyedWeakReference> expired = null;
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            long currentTick = now / tickMillis;
+            // Visit every tick that elapsed since the last sweep, a late tick must not skip slots.
+            long ticksToSweep = Math.min(currentTick - lastSweptTick, slots.length);
+            for (long i = 1; i <= ticksToSweep; i++) {
+                List<KeyedWeakReference> slot = slots[slotIndex(lastSweptTick + i)];
+                for (int j = slot.size() - 1; j >= 0; j--) {
+                    KeyedWeakReference reference = slot.get(j);
+                    // References from a later turn of the wheel share the slot, keep them.
+                    if (deadlineTick(reference) <= currentTick) {
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(reference);
+                        slot.set(j, slot.get(slot.size() - 1));
+                        slot.remove(slot.size() - 1);
+                    }
+                }
+            }
+            lastSweptTick = currentTick;
+            if (expired != null) {
+                pendingCount -= expired.size();
+            }
+            if (pendingCount > 0) {
+                postNextTick();
+            } else {
+                ticking = false;
+            }
+        }
+        if (expired != null) {
+            sweeper.onExpired(expired);
+        }
+    }
+
+    private void postNextTick() {
+        long now = SystemClock.uptimeMillis();
+        handler.postAtTime(tick, (now / tickMillis + 1) * tickMillis);
+    }
+
+    private long deadlineTick(KeyedWeakReference reference) {
+        // Round up so a reference is never checked before its full watch delay elapsed.
+        return (reference.watchUptimeMillis + watchDelayMillis + tickMillis - 1) / tickMillis;
+    }
+
+    private int slotIndex(long tick) {
+        return (int) (tick % slots.length);
+    }
+}
@@ -0,0 +1,41 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import java.io.Serializable;
+
+/** A heap dump waiting in the {@link AnalysisQueue}, immutable: changes make a new job. */
+final class AnalysisJob implements Serializable {
+
+  final String id;
+  final HeapDump heapDump;
+  /** Order of the jobs, first enqueued first analyzed. */
+  final long enqueuedMillis;
+  /** Memory the analysis is expected to take, estimated from the size of the dump. */
+  final long memoryBytes;
+  /** Attempts started so far, counted before running so that a killed process counts too. */
+  final int attempts;
+  /** Wall clock time before which the job doesn't run, to back off after a failure. */
+  final long notBeforeMillis;
+
+  AnalysisJob(String id, HeapDump heapDump, long enqueuedMillis, long memoryBytes, int attempts,
+      long notBeforeMillis) {
+    this.id = id;
+    this.heapDump = heapDump;
+    this.enqueuedMillis = enqueuedMillis;
+    this.memoryBytes = memoryBytes;
+    this.attempts = attempts;
+    this.notBeforeMillis = notBeforeMillis;
+  }
+
+  AnalysisJob started() {
+    return new AnalysisJob(id, heapDump, enqueuedMillis, memoryBytes, attempts + 1,
+        notBeforeMillis);
+  }
+
+  AnalysisJob retryAt(long notBeforeMillis) {
+    return new AnalysisJob(id, heapDump, enqueuedMillis, memoryBytes, attempts, notBeforeMillis);
+  }
+
+  @Override public String toString() {
+    return id + " " + heapDump.heapDumpFile.getName() + " attempts=" + attempts;
+  }
+}
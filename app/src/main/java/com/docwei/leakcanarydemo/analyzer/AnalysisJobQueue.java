@@ -0,0 +1,100 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The jobs of the {@link AnalysisQueue} on disk, a file per job, so that they survive the
+ * process. Jobs are written aside then renamed, a crash never leaves a truncated one. Plain
+ * java.io, it runs off-device.
+ */
+final class AnalysisJobQueue {
+
+  private static final String JOB_SUFFIX = ".job";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private final File directory;
+
+  AnalysisJobQueue(File directory) {
+    this.directory = directory;
+  }
+
+  void put(AnalysisJob job) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File tmpFile = new File(directory, job.id + TMP_SUFFIX);
+    ObjectOutputStream out = null;
+    try {
+      FileOutputStream fileOut = new FileOutputStream(tmpFile);
+      out = new ObjectOutputStream(new BufferedOutputStream(fileOut));
+      out.writeObject(job);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+    if (!tmpFile.renameTo(jobFile(job))) {
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile);
+    }
+  }
+
+  void remove(AnalysisJob job) {
+    jobFile(job).delete();
+  }
+
+  /** Every job, first enqueued first. Files that can't be read are deleted. */
+  List<AnalysisJob> load() {
+    List<AnalysisJob> jobs = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return jobs;
+    }
+    for (File file : files) {
+      if (!file.getName().endsWith(JOB_SUFFIX)) {
+        // Left by a crash while writing.
+        file.delete();
+        continue;
+      }
+      ObjectInputStream in = null;
+      try {
+        in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        jobs.add((AnalysisJob) in.readObject());
+      } catch (IOException | ClassNotFoundException | ClassCastException e) {
+        // Written by another version of the app.
+        file.delete();
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    }
+    Collections.sort(jobs, new Comparator<AnalysisJob>() {
+      @Override public int compare(AnalysisJob lhs, AnalysisJob rhs) {
+        return lhs.enqueuedMillis < rhs.enqueuedMillis ? -1
+            : (lhs.enqueuedMillis == rhs.enqueuedMillis ? 0 : 1);
+      }
+    });
+    return jobs;
+  }
+
+  private File jobFile(AnalysisJob job) {
+    return new File(directory, job.id + JOB_SUFFIX);
+  }
+}
@@ -0,0 +1,127 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+/**
+ * When the heap dumps waiting in the {@link AnalysisQueue} may be analyzed: the state the device
+ * and the app must be in, how many analyses run at once, the memory they may take together, and
+ * how failed analyses are retried.
+ */
+public final class AnalysisPolicy {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Waits for the device not to be in use: screen off or idle mode. */
+  public final boolean requireDeviceIdle;
+  public final boolean requireCharging;
+  /** Waits for the app not to be visible, analyzing competes with the UI for CPU and memory. */
+  public final boolean requireAppInBackground;
+  public final int maxConcurrentAnalyses;
+  /**
+   * Most memory the running analyses may take together, as estimated from their heap dumps. An
+   * analysis estimated over the whole budget runs alone.
+   */
+  public final long memoryBudgetBytes;
+  /** Attempts before a heap dump is given up on, a process killed while analyzing counts as one. */
+  public final int maxAttempts;
+  /** Wait before the first retry, doubled on each further attempt up to maxBackoffMillis. */
+  public final long initialBackoffMillis;
+  public final long maxBackoffMillis;
+
+  AnalysisPolicy(Builder builder) {
+    this.requireDeviceIdle = builder.requireDeviceIdle;
+    this.requireCharging = builder.requireCharging;
+    this.requireAppInBackground = builder.requireAppInBackground;
+    this.maxConcurrentAnalyses = builder.maxConcurrentAnalyses;
+    this.memoryBudgetBytes = builder.memoryBudgetBytes;
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffMillis = builder.initialBackoffMillis;
+    this.maxBackoffMillis = builder.maxBackoffMillis;
+  }
+
+  /** Wait before the attempt after the given one. */
+  long backoffMillis(int attempts) {
+    long backoff = initialBackoffMillis;
+    for (int i = 1; i < attempts && backoff < maxBackoffMillis; i++) {
+      backoff *= 2;
+    }
+    return Math.min(backoff, maxBackoffMillis);
+  }
+
+  public static final class Builder {
+    boolean requireDeviceIdle;
+    boolean requireCharging;
+    boolean requireAppInBackground;
+    int maxConcurrentAnalyses;
+    long memoryBudgetBytes;
+    int maxAttempts;
+    long initialBackoffMillis;
+    long maxBackoffMillis;
+
+    Builder() {
+      requireDeviceIdle = false;
+      requireCharging = false;
+      requireAppInBackground = true;
+      maxConcurrentAnalyses = 1;
+      memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+      maxAttempts = 3;
+      initialBackoffMillis = 30 * 1000;
+      maxBackoffMillis = 30 * 60 * 1000;
+    }
+
+    public Builder requireDeviceIdle(boolean requireDeviceIdle) {
+      this.requireDeviceIdle = requireDeviceIdle;
+      return this;
+    }
+
+    public Builder requireCharging(boolean requireCharging) {
+      this.requireCharging = requireCharging;
+      return this;
+    }
+
+    public Builder requireAppInBackground(boolean requireAppInBackground) {
+      this.requireAppInBackground = requireAppInBackground;
+      return this;
+    }
+
+    public Builder maxConcurrentAnalyses(int maxConcurrentAnalyses) {
+      if (maxConcurrentAnalyses < 1) {
+        throw new IllegalArgumentException(
+            "maxConcurrentAnalyses must be at least 1: " + maxConcurrentAnalyses);
+      }
+      this.maxConcurrentAnalyses = maxConcurrentAnalyses;
+      return this;
+    }
+
+    public Builder memoryBudgetBytes(long memoryBudgetBytes) {
+      if (memoryBudgetBytes <= 0) {
+        throw new IllegalArgumentException(
+            "memoryBudgetBytes must be positive: " + memoryBudgetBytes);
+      }
+      this.memoryBudgetBytes = memoryBudgetBytes;
+      return this;
+    }
+
+    public Builder maxAttempts(int maxAttempts) {
+      if (maxAttempts < 1) {
+        throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+      }
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    public Builder backoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+      if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+        throw new IllegalArgumentException("Invalid backoff: " + initialBackoffMillis + ", "
+            + maxBackoffMillis);
+      }
+      this.initialBackoffMillis = initialBackoffMillis;
+      this.maxBackoffMillis = maxBackoffMillis;
+      return this;
+    }
+
+    public AnalysisPolicy build() {
+      return new AnalysisPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.M;
+
+/**
+ * Heap dumps waiting for their analysis, kept on disk until analyzed so that they survive the
+ * process, and analyzed when the {@link AnalysisPolicy} allows it rather than right after the
+ * dump.
+ *
+ * {@link HeapAnalyzerService} is started only once a job can run, and drains the queue. The queue
+ * is checked again when the device starts charging or its screen goes off, when the app goes to
+ * the background, when a backoff ends, and when the process starts. Checks read and write the
+ * queue on disk, they run on the queue's own thread, {@link #handler}.
+ */
+public final class AnalysisQueue {
+
+  private static volatile AnalysisQueue instance;
+
+  /**
+   * Creates the queue of the process, jobs left by a previous process are loaded on first use.
+   * Nothing is analyzed before {@link #start()}.
+   */
+  public static AnalysisQueue install(Context context, AnalysisPolicy policy) {
+    synchronized (AnalysisQueue.class) {
+      if (instance != null) {
+        throw new IllegalStateException("AnalysisQueue already installed");
+      }
+      instance = new AnalysisQueue(context.getApplicationContext(), policy);
+      return instance;
+    }
+  }
+
+  static AnalysisQueue get() {
+    AnalysisQueue queue = instance;
+    if (queue == null) {
+      throw new IllegalStateException("AnalysisQueue not installed");
+    }
+    return queue;
+  }
+
+  private final Context context;
+  final AnalysisPolicy policy;
+  final AnalysisScheduler scheduler;
+  /** Drives the scheduler, so that neither the queue nor the service blocks the main thread. */
+  final Handler handler;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable startService = new Runnable() {
+    @Override public void run() {
+      ContextCompat.startForegroundService(context, new Intent(context, HeapAnalyzerService.class));
+    }
+  };
+  private final Runnable check = new Runnable() {
+    @Override public void run() {
+      checkNow();
+    }
+  };
+  private volatile boolean started;
+
+  private AnalysisQueue(Context context, AnalysisPolicy policy) {
+    this.context = context;
+    this.policy = policy;
+    HandlerThread thread = new HandlerThread("leak_analysis_queue");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    scheduler = new AnalysisScheduler(
+        new AnalysisJobQueue(new File(context.getFilesDir(), "leak_analysis_queue")), policy,
+        AnalysisScheduler.Clock.SYSTEM, new AndroidConstraints(context));
+  }
+
+  /**
+   * Starts checking the queue, now and whenever the constraints change. Call once the files an
+   * analysis that died with the previous process left behind are swept: the sweep would delete
+   * those of a running analysis.
+   */
+  public void start() {
+    synchronized (this) {
+      if (started) {
+        throw new IllegalStateException("AnalysisQueue already started");
+      }
+      started = true;
+    }
+    BroadcastReceiver constraintsChanged = new BroadcastReceiver() {
+      @Override public void onReceive(Context context, Intent intent) {
+        check();
+      }
+    };
+    IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+    filter.addAction(Intent.ACTION_SCREEN_OFF);
+    if (SDK_INT >= M) {
+      filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+    }
+    context.registerReceiver(constraintsChanged, filter);
+    context.registerComponentCallbacks(new ComponentCallbacks2() {
+      @Override public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+          check();
+        }
+      }
+
+      @Override public void onConfigurationChanged(Configuration newConfig) {
+      }
+
+      @Override public void onLowMemory() {
+      }
+    });
+    check();
+  }
+
+  /** Persists the heap dump for analysis. The dump must stay in place until it's analyzed. */
+  public void enqueue(HeapDump heapDump) throws IOException {
+    scheduler.enqueue(heapDump);
+    Log.e("leak1", "分析任务入队, 待分析 " + scheduler.queuedCount());
+    check();
+  }
+
+  /**
+   * The heap dumps still to analyze. Reads the queue on first use, don't call from the main
+   * thread.
+   */
+  public List<File> queuedHeapDumpFiles() {
+    return scheduler.queuedHeapDumpFiles();
+  }
+
+  /**
+   * Starts the analysis if a job can run now, else waits for its backoff to end. Ignored until
+   * {@link #start()}, which checks.
+   */
+  public void check() {
+    if (!started) {
+      return;
+    }
+    handler.post(check);
+  }
+
+  private void checkNow() {
+    handler.removeCallbacks(check);
+    if (scheduler.canRunNow()) {
+      // Services are started from the main thread.
+      mainHandler.post(startService);
+      return;
+    }
+    long delayMillis = scheduler.nextCheckDelayMillis();
+    if (delayMillis >= 0) {
+      handler.postDelayed(check, delayMillis);
+    }
+  }
+
+  private static final class AndroidConstraints implements AnalysisScheduler.Constraints {
+    private final Context context;
+
+    AndroidConstraints(Context context) {
+      this.context = context;
+    }
+
+    @Override public boolean isDeviceIdle() {
+      PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+      return !powerManager.isInteractive() || (SDK_INT >= M && powerManager.isDeviceIdleMode());
+    }
+
+    @Override public boolean isCharging() {
+      // Sticky, no receiver is registered.
+      Intent battery =
+          context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+      return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @Override public boolean isAppInBackground() {
+      ActivityManager.RunningAppProcessInfo processInfo =
+          new ActivityManager.RunningAppProcessInfo();
+      ActivityManager.getMyMemoryState(processInfo);
+      return processInfo.importance > ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE;
+    }
+  }
+}
@@ -28,19 +28,26 @@ public final class AnalysisResult implements Serializable {
 
   public static @NonNull
   AnalysisResult noLeak(String className, long analysisDurationMs) {
-    return new AnalysisResult(false, false, className, null, null, 0, analysisDurationMs);
+    return new AnalysisResult(false, false, className, null, null, 0, true, analysisDurationMs);
   }
 
   public static @NonNull AnalysisResult leakDetected(boolean excludedLeak,
       @NonNull String className,
       @NonNull LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs) {
-    return new AnalysisResult(true, excludedLeak, className, leakTrace, null, retainedHeapSize,
+    return leakDetected(excludedLeak, className, leakTrace, retainedHeapSize, true,
         analysisDurationMs);
   }
 
+  public static @NonNull AnalysisResult leakDetected(boolean excludedLeak,
+      @NonNull String className, @NonNull LeakTrace leakTrace, long retainedHeapSize,
+      boolean retainedHeapSizeExact, long analysisDurationMs) {
+    return new AnalysisResult(true, excludedLeak, className, leakTrace, null, retainedHeapSize,
+        retainedHeapSizeExact, analysisDurationMs);
+  }
+
   public static @NonNull AnalysisResult failure(@NonNull Throwable failure,
       long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs);
+    return new AnalysisResult(false, false, null, null, failure, 0, true, analysisDurationMs);
   }
 
   /** True if a leak was found in the heap dump. */
@@ -75,6 +82,12 @@ public final class AnalysisResult implements Serializable {
    */
   public final long retainedHeapSize;
 
+  /**
+   * False if {@link #retainedHeapSize} is an estimate that ran out of its node budget, see
+   * {@link HeapDump#retainedHeapSizeNodeBudget}.
+   */
+  public final boolean retainedHeapSizeExact;
+
   /** Total time spent analyzing the heap. */
   public final long analysisDurationMs;
 
@@ -139,13 +152,15 @@ public final class AnalysisResult implements Serializable {
   }
 
   private AnalysisResult(boolean leakFound, boolean excludedLeak, String className,
-                         LeakTrace leakTrace, Throwable failure, long retainedHeapSize, long analysisDurationMs) {
+                         LeakTrace leakTrace, Throwable failure, long retainedHeapSize,
+                         boolean retainedHeapSizeExact, long analysisDurationMs) {
     this.leakFound = leakFound;
     this.excludedLeak = excludedLeak;
     this.className = className;
     this.leakTrace = leakTrace;
     this.failure = failure;
     this.retainedHeapSize = retainedHeapSize;
+    this.retainedHeapSizeExact = retainedHeapSizeExact;
     this.analysisDurationMs = analysisDurationMs;
   }
 
@@ -0,0 +1,217 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides which of the queued heap dumps are analyzed and when, following an
+ * {@link AnalysisPolicy}. The time and the state of the device come from a {@link Clock} and
+ * {@link Constraints}, the scheduling runs off-device with fakes of both.
+ *
+ * Jobs are persisted to an {@link AnalysisJobQueue} on every change and loaded on first use, a
+ * job started by a process that died is retried. Thread safe.
+ */
+final class AnalysisScheduler {
+
+  interface Clock {
+    Clock SYSTEM = new Clock() {
+      @Override public long currentTimeMillis() {
+        return System.currentTimeMillis();
+      }
+    };
+
+    /** Wall clock time, backoffs outlive the process. */
+    long currentTimeMillis();
+  }
+
+  interface Constraints {
+    boolean isDeviceIdle();
+
+    boolean isCharging();
+
+    boolean isAppInBackground();
+  }
+
+  /**
+   * Indexing takes about an int and a long per object, the path finding as much again: about
+   * half the size of the dump once its large arrays are stripped.
+   */
+  private static final float MEMORY_BYTES_PER_DUMP_BYTE = 0.5f;
+
+  private final AnalysisJobQueue queue;
+  private final AnalysisPolicy policy;
+  private final Clock clock;
+  private final Constraints constraints;
+  /** Queued jobs by id, first enqueued first. Null until loaded. */
+  private Map<String, AnalysisJob> jobs;
+  private final Map<String, AnalysisJob> running = new HashMap<>();
+  private long runningMemoryBytes;
+
+  AnalysisScheduler(AnalysisJobQueue queue, AnalysisPolicy policy, Clock clock,
+      Constraints constraints) {
+    this.queue = queue;
+    this.policy = policy;
+    this.clock = clock;
+    this.constraints = constraints;
+  }
+
+  synchronized void enqueue(HeapDump heapDump) throws IOException {
+    long now = clock.currentTimeMillis();
+    long memoryBytes = (long) (heapDump.heapDumpFile.length() * MEMORY_BYTES_PER_DUMP_BYTE);
+    AnalysisJob job =
+        new AnalysisJob(UUID.randomUUID().toString(), heapDump, now, memoryBytes, 0, now);
+    queue.put(job);
+    jobs().put(job.id, job);
+  }
+
+  /** The heap dumps of the queued jobs, the rest of the dump directory can be swept. */
+  synchronized List<File> queuedHeapDumpFiles() {
+    List<File> files = new ArrayList<>();
+    for (AnalysisJob job : jobs().values()) {
+      files.add(job.heapDump.heapDumpFile);
+    }
+    return files;
+  }
+
+  /** Whether {@link #next()} would return a job now. */
+  synchronized boolean canRunNow() {
+    return nextRunnable() != null;
+  }
+
+  /**
+   * Starts the next job allowed to run now, null if none is. The caller must report its outcome
+   * with {@link #onSucceeded} or {@link #onFailed}.
+   */
+  synchronized AnalysisJob next() {
+    AnalysisJob job = nextRunnable();
+    if (job == null) {
+      return null;
+    }
+    job = job.started();
+    try {
+      // Counted before running, a dump that kills the process is given up on eventually.
+      queue.put(job);
+    } catch (IOException e) {
+      // Runs anyway, the attempt just isn't counted if the process dies.
+    }
+    jobs.put(job.id, job);
+    running.put(job.id, job);
+    runningMemoryBytes += job.memoryBytes;
+    return job;
+  }
+
+  synchronized void onSucceeded(AnalysisJob job) {
+    finish(job);
+    remove(job);
+  }
+
+  /** Retries the job after a backoff, or gives it up and deletes its dump after maxAttempts. */
+  synchronized void onFailed(AnalysisJob job) {
+    finish(job);
+    if (job.attempts >= policy.maxAttempts) {
+      giveUp(job);
+      return;
+    }
+    AnalysisJob retry =
+        job.retryAt(clock.currentTimeMillis() + policy.backoffMillis(job.attempts));
+    try {
+      queue.put(retry);
+      jobs.put(retry.id, retry);
+    } catch (IOException e) {
+      giveUp(job);
+    }
+  }
+
+  /**
+   * How long until a waiting job may run as far as time is concerned, -1 if no job waits on a
+   * backoff. Jobs waiting on the constraints or on running jobs are started again when those
+   * change.
+   */
+  synchronized long nextCheckDelayMillis() {
+    long now = clock.currentTimeMillis();
+    long delay = -1;
+    for (AnalysisJob job : jobs().values()) {
+      if (!running.containsKey(job.id) && job.notBeforeMillis > now) {
+        long jobDelay = job.notBeforeMillis - now;
+        delay = delay < 0 ? jobDelay : Math.min(delay, jobDelay);
+      }
+    }
+    return delay;
+  }
+
+  synchronized int queuedCount() {
+    return jobs().size();
+  }
+
+  private AnalysisJob nextRunnable() {
+    if (running.size() >= policy.maxConcurrentAnalyses || !constraintsMet()) {
+      return null;
+    }
+    long now = clock.currentTimeMillis();
+    for (AnalysisJob job : jobs().values()) {
+      if (running.containsKey(job.id) || job.notBeforeMillis > now) {
+        continue;
+      }
+      // First enqueued first: a job that doesn't fit waits for memory rather than being passed
+      // by smaller ones forever. Alone it runs whatever its estimate.
+      if (!running.isEmpty() && runningMemoryBytes + job.memoryBytes > policy.memoryBudgetBytes) {
+        return null;
+      }
+      return job;
+    }
+    return null;
+  }
+
+  private boolean constraintsMet() {
+    return (!policy.requireDeviceIdle || constraints.isDeviceIdle())
+        && (!policy.requireCharging || constraints.isCharging())
+        && (!policy.requireAppInBackground || constraints.isAppInBackground());
+  }
+
+  private Map<String, AnalysisJob> jobs() {
+    if (jobs == null) {
+      jobs = new LinkedHashMap<>();
+      for (AnalysisJob job : queue.load()) {
+        // The process died during its last attempt.
+        if (job.attempts >= policy.maxAttempts) {
+          queue.remove(job);
+          deleteHeapDump(job);
+        } else {
+          jobs.put(job.id, job);
+        }
+      }
+    }
+    return jobs;
+  }
+
+  private void finish(AnalysisJob job) {
+    if (running.remove(job.id) != null) {
+      runningMemoryBytes -= job.memoryBytes;
+    }
+  }
+
+  private void giveUp(AnalysisJob job) {
+    remove(job);
+    deleteHeapDump(job);
+  }
+
+  private void remove(AnalysisJob job) {
+    jobs().remove(job.id);
+    queue.remove(job);
+  }
+
+  private static void deleteHeapDump(AnalysisJob job) {
+    File heapDumpFile = job.heapDump.heapDumpFile;
+    // Kept archives are the dump store's.
+    if (!heapDumpFile.getName().endsWith(HprofArchive.ARCHIVE_SUFFIX)) {
+      heapDumpFile.delete();
+      HprofIndexFile.indexFileFor(heapDumpFile).delete();
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.HahaSpy;
+import com.squareup.haha.perflib.Heap;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.TIntArrayList;
+
+import static com.docwei.leakcanarydemo.analyzer.HahaHelper.threadName;
+
+/**
+ * {@link HeapGraph} built from a parsed haha {@link Snapshot}, with everything held in flat
+ * arrays indexed by node. Outbound references are stored in CSR form: {@link #edgeStarts}
+ * delimits the slice of {@link #edgeTargets} and {@link #edgeReferences} belonging to a node.
+ * Only non null object references are stored.
+ */
+final class CompactHeapGraph extends HeapGraph {
+
+  private final long[] objectIds;
+  private final byte[] kinds;
+  /** Element count and hprof element type of array nodes, 0 for the other nodes. */
+  private final int[] arrayLengths;
+  private final byte[] arrayElementTypes;
+  /** Class ordinal of each node, or the node's own ordinal for class objects. -1 if unknown. */
+  private final int[] classOrdinals;
+  private final ClassLayout[] classLayouts;
+  private final int[] edgeStarts;
+  private final int[] edgeTargets;
+  /**
+   * What each edge goes through: a static field index for class objects, an index in
+   * {@link ClassLayout#instanceFieldNames} for instances, the array index for object arrays.
+   */
+  private final int[] edgeReferences;
+  private final int[] rootNodes;
+  private final RootType[] rootTypes;
+  private final int[] rootThreadNodes;
+  private final String[] rootThreadNames;
+
+  private CompactHeapGraph(long[] objectIds, byte[] kinds, int[] arrayLengths,
+      byte[] arrayElementTypes, int[] classOrdinals, ClassLayout[] classLayouts, int[] edgeStarts,
+      int[] edgeTargets, int[] edgeReferences, int[] rootNodes, RootType[] rootTypes,
+      int[] rootThreadNodes, String[] rootThreadNames) {
+    this.objectIds = objectIds;
+    this.kinds = kinds;
+    this.arrayLengths = arrayLengths;
+    this.arrayElementTypes = arrayElementTypes;
+    this.classOrdinals = classOrdinals;
+    this.classLayouts = classLayouts;
+    this.edgeStarts = edgeStarts;
+    this.edgeTargets = edgeTargets;
+    this.edgeReferences = edgeReferences;
+    this.rootNodes = rootNodes;
+    this.rootTypes = rootTypes;
+    this.rootThreadNodes = rootThreadNodes;
+    this.rootThreadNames = rootThreadNames;
+  }
+
+  @Override int nodeCount() {
+    return objectIds.length;
+  }
+
+  @Override long objectId(int node) {
+    return objectIds[node];
+  }
+
+  @Override int nodeOf(long objectId) {
+    int node = Arrays.binarySearch(objectIds, objectId);
+    return node >= 0 ? node : NO_NODE;
+  }
+
+  @Override byte kind(int node) {
+    return kinds[node];
+  }
+
+  @Override long arrayLength(int node) {
+    return arrayLengths[node];
+  }
+
+  @Override byte arrayElementType(int node) {
+    return arrayElementTypes[node];
+  }
+
+  @Override int classOrdinal(int node) {
+    return classOrdinals[node];
+  }
+
+  @Override ClassLayout classLayoutAt(int ordinal) {
+    return classLayouts[ordinal];
+  }
+
+  @Override int classCount() {
+    return classLayouts.length;
+  }
+
+  @Override void readEdges(int node, Edges edges) {
+    edges.wrap(edgeTargets, edgeReferences, edgeStarts[node], edgeStarts[node + 1]);
+  }
+
+  @Override int rootCount() {
+    return rootNodes.length;
+  }
+
+  @Override int rootNode(int root) {
+    return rootNodes[root];
+  }
+
+  @Override RootType rootType(int root) {
+    return rootTypes[root];
+  }
+
+  @Override int rootThreadNode(int root) {
+    return rootThreadNodes[root];
+  }
+
+  @Override String rootThreadName(int root) {
+    return rootThreadNames[root];
+  }
+
+  /** Builds the graph from a parsed snapshot. */
+  static CompactHeapGraph fromSnapshot(Snapshot snapshot) {
+    List<Instance> instances = new ArrayList<>();
+    for (Heap heap : snapshot.getHeaps()) {
+      instances.addAll(heap.getClasses());
+      instances.addAll(heap.getInstances());
+    }
+    Instance[] nodes = instances.toArray(new Instance[instances.size()]);
+    instances = null;
+    Arrays.sort(nodes, new Comparator<Instance>() {
+      @Override public int compare(Instance lhs, Instance rhs) {
+        long lhsId = lhs.getId();
+        long rhsId = rhs.getId();
+        return lhsId < rhsId ? -1 : (lhsId == rhsId ? 0 : 1);
+      }
+    });
+    int nodeCount = nodes.length;
+    long[] objectIds = new long[nodeCount];
+    for (int node = 0; node < nodeCount; node++) {
+      objectIds[node] = nodes[node].getId();
+    }
+
+    // Class layouts, with one ordinal per class object.
+    Map<ClassObj, Integer> ordinals = new IdentityHashMap<>();
+    List<ClassObj> classes = new ArrayList<>();
+    for (Instance instance : nodes) {
+      if (instance instanceof ClassObj) {
+        ordinals.put((ClassObj) instance, classes.size());
+        classes.add((ClassObj) instance);
+      }
+    }
+    ClassLayout[] classLayouts = new ClassLayout[classes.size()];
+    List<Field[]> staticFieldsByOrdinal = new ArrayList<>();
+    for (int ordinal = 0; ordinal < classLayouts.length; ordinal++) {
+      ClassObj classObj = classes.get(ordinal);
+      ClassObj superClassObj = classObj.getSuperClassObj();
+      Integer superOrdinal = superClassObj == null ? null : ordinals.get(superClassObj);
+      List<Field> instanceFields = new ArrayList<>();
+      for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+        instanceFields.addAll(Arrays.asList(clazz.getFields()));
+      }
+      String[] instanceFieldNames = new String[instanceFields.size()];
+      byte[] instanceFieldTypes = new byte[instanceFields.size()];
+      for (int i = 0; i < instanceFieldNames.length; i++) {
+        instanceFieldNames[i] = instanceFields.get(i).getName();
+        instanceFieldTypes[i] = (byte) instanceFields.get(i).getType().getTypeId();
+      }
+      Field[] staticFields = classObj.getStaticFieldValues().keySet().toArray(new Field[0]);
+      String[] staticFieldNames = new String[staticFields.length];
+      byte[] staticFieldTypes = new byte[staticFields.length];
+      for (int i = 0; i < staticFields.length; i++) {
+        staticFieldNames[i] = staticFields[i].getName();
+        staticFieldTypes[i] = (byte) staticFields[i].getType().getTypeId();
+      }
+      staticFieldsByOrdinal.add(staticFields);
+      classLayouts[ordinal] = new ClassLayout(classObj.getClassName(),
+          superOrdinal == null ? -1 : superOrdinal, Arrays.binarySearch(objectIds, classObj.getId()),
+          instanceFieldNames, instanceFieldTypes, staticFieldNames, staticFieldTypes);
+    }
+
+    byte[] kinds = new byte[nodeCount];
+    int[] arrayLengths = new int[nodeCount];
+    byte[] arrayElementTypes = new byte[nodeCount];
+    int[] classOrdinals = new int[nodeCount];
+    int[] edgeStarts = new int[nodeCount + 1];
+    TIntArrayList edgeTargets = new TIntArrayList(nodeCount * 2);
+    TIntArrayList edgeReferences = new TIntArrayList(nodeCount * 2);
+    for (int node = 0; node < nodeCount; node++) {
+      edgeStarts[node] = edgeTargets.size();
+      Instance instance = nodes[node];
+      // Drop the reference as we go, the graph doesn't need the haha objects.
+      nodes[node] = null;
+      if (instance instanceof ClassObj) {
+        ClassObj classObj = (ClassObj) instance;
+        int ordinal = ordinals.get(classObj);
+        kinds[node] = KIND_CLASS;
+        classOrdinals[node] = ordinal;
+        Map<Field, Object> staticValues = classObj.getStaticFieldValues();
+        Field[] staticFields = staticFieldsByOrdinal.get(ordinal);
+        for (int i = 0; i < staticFields.length; i++) {
+          if (staticFields[i].getType() == Type.OBJECT) {
+            addEdge(objectIds, edgeTargets, edgeReferences, staticValues.get(staticFields[i]), i);
+          }
+        }
+      } else if (instance instanceof ClassInstance) {
+        kinds[node] = KIND_INSTANCE;
+        classOrdinals[node] = ordinalOf(ordinals, instance.getClassObj());
+        List<ClassInstance.FieldValue> values = ((ClassInstance) instance).getValues();
+        for (int i = 0; i < values.size(); i++) {
+          ClassInstance.FieldValue fieldValue = values.get(i);
+          if (fieldValue.getField().getType() == Type.OBJECT) {
+            addEdge(objectIds, edgeTargets, edgeReferences, fieldValue.getValue(), i);
+          }
+        }
+      } else if (instance instanceof ArrayInstance) {
+        ArrayInstance arrayInstance = (ArrayInstance) instance;
+        classOrdinals[node] = ordinalOf(ordinals, arrayInstance.getClassObj());
+        arrayLengths[node] = arrayInstance.getLength();
+        arrayElementTypes[node] = (byte) arrayInstance.getArrayType().getTypeId();
+        if (arrayInstance.getArrayType() == Type.OBJECT) {
+          kinds[node] = KIND_OBJECT_ARRAY;
+          Object[] values = arrayInstance.getValues();
+          for (int i = 0; i < values.length; i++) {
+            addEdge(objectIds, edgeTargets, edgeReferences, values[i], i);
+          }
+        } else {
+          kinds[node] = KIND_PRIMITIVE_ARRAY;
+        }
+      } else {
+        throw new IllegalStateException("Unexpected type for " + instance);
+      }
+    }
+    edgeStarts[nodeCount] = edgeTargets.size();
+
+    // Gc roots. Roots are not nodes, they point to the node they keep alive.
+    RootTable roots = new RootTable();
+    Map<Instance, String> threadNames = new HashMap<>();
+    for (RootObj rootObj : HahaSpy.allGcRoots(snapshot)) {
+      Instance referred = rootObj.getReferredInstance();
+      int rootNode = referred == null ? NO_NODE : Arrays.binarySearch(objectIds, referred.getId());
+      RootType rootType = rootObj.getRootType();
+      if (rootNode < 0 || roots.contains(rootType, rootNode)) {
+        continue;
+      }
+      int threadNode = NO_NODE;
+      String threadName = null;
+      if (rootType == RootType.JAVA_LOCAL) {
+        Instance thread = HahaSpy.allocatingThread(rootObj);
+        threadNode = Math.max(NO_NODE, Arrays.binarySearch(objectIds, thread.getId()));
+        threadName = threadNames.get(thread);
+        if (threadName == null) {
+          threadName = threadName(thread);
+          threadNames.put(thread, threadName);
+        }
+      }
+      roots.add(rootType, rootNode, threadNode, threadName);
+    }
+    roots.finish();
+
+    return new CompactHeapGraph(objectIds, kinds, arrayLengths, arrayElementTypes, classOrdinals,
+        classLayouts, edgeStarts, edgeTargets.toNativeArray(), edgeReferences.toNativeArray(),
+        roots.rootNodes, roots.rootTypes, roots.rootThreadNodes, roots.rootThreadNames);
+  }
+
+  private static int ordinalOf(Map<ClassObj, Integer> ordinals, ClassObj classObj) {
+    Integer ordinal = classObj == null ? null : ordinals.get(classObj);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  private static void addEdge(long[] objectIds, TIntArrayList edgeTargets,
+      TIntArrayList edgeReferences, Object value, int reference) {
+    if (!(value instanceof Instance)) {
+      return;
+    }
+    int target = Arrays.binarySearch(objectIds, ((Instance) value).getId());
+    if (target < 0) {
+      return;
+    }
+    edgeTargets.add(target);
+    edgeReferences.add(reference);
+  }
+}
@@ -0,0 +1,295 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.RootType;
+
+import java.util.Arrays;
+
+import gnu.trove.TIntArrayList;
+
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.NO_NODE;
+
+/**
+ * Immediate dominators and retained sizes of every node of a {@link HeapGraph}, computed with the
+ * Lengauer-Tarjan algorithm (the simple version, with path compression) over int arrays.
+ *
+ * The gc roots hang off a virtual root, so a node dominated by no other node has the virtual root
+ * as immediate dominator. The retained size of a node is the sum of the shallow sizes of the nodes
+ * it dominates, itself included.
+ *
+ * Bitmaps held by a native root (a root of type {@link RootType#UNKNOWN}) are dominated by that
+ * root and never counted in the retained size of a leak, even when the leak is what keeps them
+ * reachable from Java. Like LeakCanary, {@link #ignoredBitmapRetainedSize(int)} adds them back.
+ */
+final class DominatorTree {
+
+  private static final String BITMAP_CLASS_NAME = "android.graphics.Bitmap";
+
+  private final int virtualRoot;
+  /** Immediate dominator of each node, {@link #virtualRoot} for the roots, -1 if unreachable. */
+  private final int[] dominators;
+  private final long[] retainedSizes;
+  /** Bitmaps only held by native roots, with their Java referrers and retained size. */
+  private final int[] nativeBitmaps;
+  private final int[][] nativeBitmapReferrers;
+  private final long[] nativeBitmapSizes;
+
+  private DominatorTree(int virtualRoot, int[] dominators, long[] retainedSizes,
+      int[] nativeBitmaps, int[][] nativeBitmapReferrers, long[] nativeBitmapSizes) {
+    this.virtualRoot = virtualRoot;
+    this.dominators = dominators;
+    this.retainedSizes = retainedSizes;
+    this.nativeBitmaps = nativeBitmaps;
+    this.nativeBitmapReferrers = nativeBitmapReferrers;
+    this.nativeBitmapSizes = nativeBitmapSizes;
+  }
+
+  /** The immediate dominator of the node, {@link HeapGraph#NO_NODE} for the virtual root. */
+  int immediateDominator(int node) {
+    int dominator = dominators[node];
+    return dominator == virtualRoot ? NO_NODE : dominator;
+  }
+
+  /** Bytes that would be freed if the node was, 0 if it can't be reached from the gc roots. */
+  long retainedSize(int node) {
+    return retainedSizes[node];
+  }
+
+  /**
+   * Retained size of the bitmaps that are dominated by a native root but that the node would
+   * dominate without it, with the size of their buffer if the bitmap doesn't dominate it.
+   */
+  long ignoredBitmapRetainedSize(int node) {
+    long size = 0;
+    for (int i = 0; i < nativeBitmaps.length; i++) {
+      int[] referrers = nativeBitmapReferrers[i];
+      boolean dominated = referrers.length > 0;
+      for (int referrer : referrers) {
+        if (!dominates(node, referrer)) {
+          dominated = false;
+          break;
+        }
+      }
+      if (dominated) {
+        size += nativeBitmapSizes[i];
+      }
+    }
+    return size;
+  }
+
+  private boolean dominates(int dominator, int node) {
+    for (int current = node; current != -1 && current != virtualRoot;
+        current = dominators[current]) {
+      if (current == dominator) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static DominatorTree compute(HeapGraph graph) {
+    int nodeCount = graph.nodeCount();
+    int root = nodeCount;
+    int size = nodeCount + 1;
+
+    // Successors and predecessors in CSR form, the virtual root points to every gc root.
+    int[] successorStarts = new int[size + 1];
+    TIntArrayList successorList = new TIntArrayList(nodeCount * 2);
+    HeapGraph.Edges edges = new HeapGraph.Edges();
+    for (int node = 0; node < nodeCount; node++) {
+      successorStarts[node] = successorList.size();
+      graph.readEdges(node, edges);
+      for (int i = edges.start; i < edges.end; i++) {
+        successorList.add(edges.targets[i]);
+      }
+    }
+    successorStarts[root] = successorList.size();
+    for (int i = 0; i < graph.rootCount(); i++) {
+      successorList.add(graph.rootNode(i));
+    }
+    successorStarts[size] = successorList.size();
+    int[] successors = successorList.toNativeArray();
+    successorList = null;
+
+    int[] predecessorStarts = new int[size + 1];
+    for (int successor : successors) {
+      predecessorStarts[successor + 1]++;
+    }
+    for (int i = 0; i < size; i++) {
+      predecessorStarts[i + 1] += predecessorStarts[i];
+    }
+    int[] predecessors = new int[successors.length];
+    int[] fill = Arrays.copyOf(predecessorStarts, size);
+    for (int node = 0; node < size; node++) {
+      for (int i = successorStarts[node]; i < successorStarts[node + 1]; i++) {
+        predecessors[fill[successors[i]]++] = node;
+      }
+    }
+    fill = null;
+
+    // Depth first numbering from the virtual root.
+    int[] semi = new int[size];
+    Arrays.fill(semi, -1);
+    int[] vertex = new int[size];
+    int[] parent = new int[size];
+    int[] stack = new int[size];
+    int[] cursor = Arrays.copyOf(successorStarts, size);
+    int reached = 0;
+    int top = 0;
+    semi[root] = reached;
+    vertex[reached++] = root;
+    parent[root] = -1;
+    stack[top++] = root;
+    while (top > 0) {
+      int node = stack[top - 1];
+      if (cursor[node] == successorStarts[node + 1]) {
+        top--;
+        continue;
+      }
+      int child = successors[cursor[node]++];
+      if (semi[child] == -1) {
+        semi[child] = reached;
+        vertex[reached++] = child;
+        parent[child] = node;
+        stack[top++] = child;
+      }
+    }
+    successors = null;
+    cursor = null;
+
+    // Semi dominators, in reverse depth first order.
+    int[] ancestor = new int[size];
+    Arrays.fill(ancestor, -1);
+    int[] label = new int[size];
+    for (int node = 0; node < size; node++) {
+      label[node] = node;
+    }
+    int[] dominators = new int[size];
+    Arrays.fill(dominators, -1);
+    int[] bucketHeads = new int[size];
+    Arrays.fill(bucketHeads, -1);
+    int[] bucketNext = new int[size];
+    for (int i = reached - 1; i > 0; i--) {
+      int node = vertex[i];
+      for (int p = predecessorStarts[node]; p < predecessorStarts[node + 1]; p++) {
+        int predecessor = predecessors[p];
+        if (semi[predecessor] == -1) {
+          // Unreachable.
+          continue;
+        }
+        int evaluated = eval(predecessor, ancestor, label, semi, stack);
+        if (semi[evaluated] < semi[node]) {
+          semi[node] = semi[evaluated];
+        }
+      }
+      int semiDominator = vertex[semi[node]];
+      bucketNext[node] = bucketHeads[semiDominator];
+      bucketHeads[semiDominator] = node;
+      int nodeParent = parent[node];
+      ancestor[node] = nodeParent;
+      for (int v = bucketHeads[nodeParent]; v != -1; v = bucketNext[v]) {
+        int evaluated = eval(v, ancestor, label, semi, stack);
+        dominators[v] = semi[evaluated] < semi[v] ? evaluated : nodeParent;
+      }
+      bucketHeads[nodeParent] = -1;
+    }
+    for (int i = 1; i < reached; i++) {
+      int node = vertex[i];
+      if (dominators[node] != vertex[semi[node]]) {
+        dominators[node] = dominators[dominators[node]];
+      }
+    }
+
+    // A node is visited after its dominator, sizes add up in reverse order.
+    long[] retainedSizes = new long[size];
+    for (int i = 1; i < reached; i++) {
+      retainedSizes[vertex[i]] = graph.shallowSize(vertex[i]);
+    }
+    for (int i = reached - 1; i > 0; i--) {
+      int node = vertex[i];
+      retainedSizes[dominators[node]] += retainedSizes[node];
+    }
+
+    // Bitmaps dominated by a native root, and their Java referrers.
+    TIntArrayList bitmaps = new TIntArrayList();
+    TIntArrayList bitmapBuffers = new TIntArrayList();
+    int bitmapOrdinal = -1;
+    int bufferField = -1;
+    for (int ordinal = 0; ordinal < graph.classCount(); ordinal++) {
+      HeapGraph.ClassLayout layout = graph.classLayoutAt(ordinal);
+      if (BITMAP_CLASS_NAME.equals(layout.className)) {
+        bitmapOrdinal = ordinal;
+        bufferField = Arrays.asList(layout.instanceFieldNames).indexOf("mBuffer");
+        break;
+      }
+    }
+    if (bitmapOrdinal != -1) {
+      for (int r = graph.firstRoot(RootType.UNKNOWN); r < graph.endRoot(RootType.UNKNOWN); r++) {
+        int node = graph.rootNode(r);
+        if (dominators[node] == root
+            && graph.kind(node) == HeapGraph.KIND_INSTANCE
+            && graph.classOrdinal(node) == bitmapOrdinal) {
+          bitmaps.add(node);
+          graph.readEdges(node, edges);
+          int buffer = NO_NODE;
+          for (int i = edges.start; i < edges.end; i++) {
+            if (edges.references[i] == bufferField) {
+              buffer = edges.targets[i];
+            }
+          }
+          bitmapBuffers.add(buffer);
+        }
+      }
+    }
+    int[] nativeBitmaps = bitmaps.toNativeArray();
+    int[][] nativeBitmapReferrers = new int[nativeBitmaps.length][];
+    long[] nativeBitmapSizes = new long[nativeBitmaps.length];
+    for (int i = 0; i < nativeBitmaps.length; i++) {
+      int bitmap = nativeBitmaps[i];
+      TIntArrayList referrers = new TIntArrayList();
+      for (int p = predecessorStarts[bitmap]; p < predecessorStarts[bitmap + 1]; p++) {
+        if (predecessors[p] != root) {
+          referrers.add(predecessors[p]);
+        }
+      }
+      nativeBitmapReferrers[i] = referrers.toNativeArray();
+      long bitmapSize = retainedSizes[bitmap];
+      int buffer = bitmapBuffers.get(i);
+      // Native bitmaps have mBuffer set to null. We sadly can't account for them.
+      long bufferSize = buffer == NO_NODE ? 0 : retainedSizes[buffer];
+      // The buffer isn't accounted for in the bitmap retained size when the bitmap doesn't
+      // dominate it. Since the buffer is large, it's easy to detect.
+      if (bitmapSize < bufferSize) {
+        bitmapSize += bufferSize;
+      }
+      nativeBitmapSizes[i] = bitmapSize;
+    }
+
+    return new DominatorTree(root, dominators, retainedSizes, nativeBitmaps,
+        nativeBitmapReferrers, nativeBitmapSizes);
+  }
+
+  /**
+   * Returns the node with the smallest semi dominator on the forest path from v, compressing the
+   * path. stack is scratch space.
+   */
+  private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] stack) {
+    if (ancestor[v] == -1) {
+      return v;
+    }
+    int top = 0;
+    int node = v;
+    while (ancestor[ancestor[node]] != -1) {
+      stack[top++] = node;
+      node = ancestor[node];
+    }
+    while (top > 0) {
+      node = stack[--top];
+      int nodeAncestor = ancestor[node];
+      if (semi[label[nodeAncestor]] < semi[label[node]]) {
+        label[node] = label[nodeAncestor];
+      }
+      ancestor[node] = ancestor[nodeAncestor];
+    }
+    return label[v];
+  }
+}
@@ -37,6 +37,11 @@ public final class HahaHelper {
                     Double.class.getName(), Byte.class.getName(), Short.class.getName(),
                     Integer.class.getName(), Long.class.getName()));
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Looked up on first use then reused, every thread name and string value goes through it. */
+    private static volatile Method asRawByteArray;
+
     static String threadName(Instance holder) {
         List<ClassInstance.FieldValue> values = classInstanceValues(holder);
         Object nameField = fieldValue(values, "name");
@@ -129,11 +134,8 @@ public final class HahaHelper {
 
             // HACK - remove when HAHA's perflib is updated to https://goo.gl/Oe7ZwO.
             try {
-                Method asRawByteArray =
-                        ArrayInstance.class.getDeclaredMethod("asRawByteArray", int.class, int.class);
-                asRawByteArray.setAccessible(true);
-                byte[] rawByteArray = (byte[]) asRawByteArray.invoke(array, 0, count);
-                return new String(rawByteArray, Charset.forName("UTF-8"));
+                byte[] rawByteArray = (byte[]) asRawByteArrayMethod().invoke(array, 0, count);
+                return new String(rawByteArray, UTF_8);
             } catch (NoSuchMethodException e) {
                 throw new RuntimeException(e);
             } catch (IllegalAccessException e) {
@@ -146,6 +148,16 @@ public final class HahaHelper {
         }
     }
 
+    private static Method asRawByteArrayMethod() throws NoSuchMethodException {
+        Method method = asRawByteArray;
+        if (method == null) {
+            method = ArrayInstance.class.getDeclaredMethod("asRawByteArray", int.class, int.class);
+            method.setAccessible(true);
+            asRawByteArray = method;
+        }
+        return method;
+    }
+
     public static boolean isPrimitiveWrapper(Object value) {
         if (!(value instanceof ClassInstance)) {
             return false;
@@ -153,6 +165,10 @@ public final class HahaHelper {
         return WRAPPER_TYPES.contains(((ClassInstance) value).getClassObj().getClassName());
     }
 
+    static boolean isPrimitiveWrapperClassName(String className) {
+        return WRAPPER_TYPES.contains(className);
+    }
+
     public static boolean isPrimitiveOrWrapperArray(Object value) {
         if (!(value instanceof ArrayInstance)) {
             return false;
@@ -187,6 +203,16 @@ public final class HahaHelper {
         throw new IllegalArgumentException("Field " + fieldName + " does not exists");
     }
 
+    /** Returns the position of the field in values, or -1. */
+    static int fieldIndex(List<ClassInstance.FieldValue> values, String fieldName) {
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i).getField().getName().equals(fieldName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     static boolean hasField(List<ClassInstance.FieldValue> values, String fieldName) {
         for (ClassInstance.FieldValue fieldValue : values) {
             if (fieldValue.getField().getName().equals(fieldName)) {
@@ -1,16 +1,15 @@
 package com.docwei.leakcanarydemo.analyzer;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.annotation.Nullable;
-
 import com.docwei.leakcanarydemo.analyzer.AndroidExcludedRefs;
 import com.docwei.leakcanarydemo.analyzer.KeyedWeakReference;
 import com.docwei.leakcanarydemo.analyzer.LeakNode;
@@ -30,24 +29,29 @@ import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
 import com.squareup.haha.perflib.io.HprofBuffer;
-import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import gnu.trove.THashMap;
-import gnu.trove.TObjectProcedure;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongHashSet;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.JELLY_BEAN;
 import static android.os.Build.VERSION_CODES.O;
-import static com.docwei.leakcanarydemo.analyzer.HahaHelper.asString;
 import static com.docwei.leakcanarydemo.analyzer.HahaHelper.classInstanceValues;
 import static com.docwei.leakcanarydemo.analyzer.HahaHelper.extendsThread;
+import static com.docwei.leakcanarydemo.analyzer.HahaHelper.fieldIndex;
 import static com.docwei.leakcanarydemo.analyzer.HahaHelper.fieldValue;
 import static com.docwei.leakcanarydemo.analyzer.HahaHelper.threadName;
 import static com.docwei.leakcanarydemo.analyzer.HahaHelper.valueAsString;
@@ -63,31 +67,99 @@ import static com.docwei.leakcanarydemo.analyzer.Reachability.UNKNOWN;
 import static com.docwei.leakcanarydemo.analyzer.Reachability.UNREACHABLE;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-public final class HeapAnalyzerService extends IntentService {
-    public  static final String HEAPDUMP_EXTRA = "heapdump";
-    public  static final String REFERENCE_KEY_EXTRA = "reference_key";
+/**
+ * Drains the {@link AnalysisQueue}: started by the queue once a job can run, analyzes jobs on
+ * worker threads as long as the {@link AnalysisScheduler} gives some, then stops. The scheduler
+ * is driven from the queue's thread, it reads and writes the jobs on disk.
+ */
+public final class HeapAnalyzerService extends Service {
     private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
-    private  List<Reachability.Inspector> reachabilityInspectors;
-    /**
-     * Creates an IntentService.  Invoked by your subclass's constructor.
-     *
-     * @param name Used to name the worker thread, important only for debugging.
-     */
-    public HeapAnalyzerService(String name) {
-        super(name);
-    }
-    public HeapAnalyzerService() {
-        super("heapanalyze");
-    }
+    private static final long ROOT_ID_MASK = (1L << 56) - 1;
+    private static final String STRIPPED_SUFFIX = "_stripped";
+    /** Stripped arrays keep their length: the kept dump is a standard hprof with right sizes. */
+    private static final PrimitiveArrayStripper.Mode STRIP_MODE =
+            PrimitiveArrayStripper.Mode.ZEROED;
     private static final String NOTIFICATION_CHANNEL_ID = "leakcanary";
+    private ExecutorService analysisExecutor;
+    //只在队列线程读写
+    private int runningAnalyses;
+    private boolean destroyed;
+    private volatile int lastStartId;
+    private final Runnable startAnalyses = new Runnable() {
+        @Override public void run() {
+            startAnalyses();
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
-       reachabilityInspectors = new ArrayList<>();
+        analysisExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "heapanalyze");
+            }
+        });
         showForegroundNotification(100, 0, true,
               "LeakCanary is working");
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        AnalysisQueue.get().handler.post(startAnalyses);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /** Starts every job the scheduler allows now, stops once none is running. Queue thread only. */
+    private void startAnalyses() {
+        if (destroyed) {
+            return;
+        }
+        final AnalysisQueue queue = AnalysisQueue.get();
+        AnalysisJob next;
+        while ((next = queue.scheduler.next()) != null) {
+            final AnalysisJob job = next;
+            runningAnalyses++;
+            analysisExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    runAnalysis(queue.scheduler, job);
+                    queue.handler.post(new Runnable() {
+                        @Override public void run() {
+                            runningAnalyses--;
+                            startAnalyses();
+                        }
+                    });
+                }
+            });
+        }
+        if (runningAnalyses == 0) {
+            //之后又有启动请求的话不会停, 它的startAnalyses还在队列线程上排着
+            stopSelf(lastStartId);
+            //剩下的任务等约束满足或者退避结束
+            queue.check();
+        }
+    }
+
+    private void runAnalysis(AnalysisScheduler scheduler, AnalysisJob job) {
+        Log.e("leak1", "runAnalysis: 开始分析 " + job);
+        // An OutOfMemoryError isn't caught: the process is in an unknown state after it. It takes
+        // the process down, and the job is retried in a fresh process, its attempt already
+        // counted by next().
+        try {
+            analyze(job.heapDump);
+        } catch (IOException | RuntimeException e) {
+            Log.e("leak1", "runAnalysis: 分析失败 " + job, e);
+            scheduler.onFailed(job);
+            return;
+        }
+        scheduler.onSucceeded(job);
+    }
+
     protected void showForegroundNotification(int max, int progress, boolean indeterminate,
                                               String contentText) {
         Notification.Builder builder = new Notification.Builder(this)
@@ -122,91 +194,296 @@ public final class HeapAnalyzerService extends IntentService {
             return builder.build();
         }
     }
-    @Override
-    protected void onHandleIntent(@Nullable Intent intent) {
-        Log.e("leak1", "onHandleIntent: "+"启动分析服务" );
-        String  heapDumpPath = (String) intent.getSerializableExtra(HEAPDUMP_EXTRA);
-        String  referenceKey = (String) intent.getSerializableExtra(REFERENCE_KEY_EXTRA);
-        File heapDumpFile=new File(heapDumpPath);
+    /** Throws if the analysis should be retried. */
+    private void analyze(HeapDump heapDump) throws IOException {
+        File heapDumpFile = heapDump.heapDumpFile;
         if(heapDumpFile.exists()){
+            List<Reachability.Inspector> reachabilityInspectors =
+                    createReachabilityInspectors(heapDump);
+            long analysisStartNanoTime = System.nanoTime();
             HprofBuffer buffer = null;
             try {
-                buffer = new MemoryMappedFileBuffer(heapDumpFile);
-                HprofParser parser = new HprofParser(buffer);
-                Snapshot snapshot = parser.parse();
-                deduplicateGcRoots(snapshot);
-                Instance leakingRef = findLeakingReference(referenceKey, snapshot);
-                Log.e("leak1", "泄露的类 "+leakingRef.getClassObj().getClassName());
-                // False alarm, weak reference was cleared in between key check and heap dump.
-                if (leakingRef == null) {
-                    String className = leakingRef.getClassObj().getClassName();
-                    Log.e("leak1", "onHandleIntent: "+className +"----no leak ");
+                // Read through windows of the file, a large heap's dump doesn't fit in one mapping.
+                buffer = WindowedFileBuffer.open(heapDumpFile);
+                // False alarm, every weak reference was cleared in between key check and heap
+                // dump: a pass reading only the weak references tells it before indexing anything.
+                // An up to date index is as cheap to read, no need to scan then. A kept archive
+                // analyzed again is the dump store's, it's never a false alarm to delete.
+                boolean indexed = HprofIndexFile.indexFileFor(heapDumpFile).exists();
+                // A kept dump analyzed again, read without inflating it first.
+                boolean archived = HprofArchive.isArchive(heapDumpFile);
+                if (!indexed && !archived
+                        && KeyedReferenceScanner.allReferentsCleared(buffer, heapDump.referenceKeys)) {
+                    AnalysisResult result = AnalysisResult.noLeak(null,
+                            NANOSECONDS.toMillis(System.nanoTime() - analysisStartNanoTime));
+                    Log.e("leak1", "onHandleIntent: ----no leak, 引用都已被回收 "
+                            + result.analysisDurationMs + "ms");
+                    heapDumpFile.delete();
                     return;
                 }
-                ShortestPathFinder pathFinder = new ShortestPathFinder(AndroidExcludedRefs.createAppDefaults().build());
-                ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
-
-                LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
-                Log.e("leak1", "泄露堆栈:------- "+leakTrace.toString() );
-                heapDumpFile.delete();
+                // Bitmap pixels and other large primitive arrays are most of the dump and path
+                // finding never reads them: the dump that is indexed and kept has them zeroed.
+                // The copy replaces the original only once it's indexed. Only a zeroed dump is
+                // archived, and only it gets an index sidecar: a dump indexed by an earlier
+                // attempt is zeroed.
+                HprofIndex index = null;
+                boolean stripped = false;
+                boolean zeroed = indexed;
+                File strippedFile = new File(heapDumpFile.getPath() + STRIPPED_SUFFIX);
+                if (!indexed && !archived) {
+                    try {
+                        long strippedBytes = PrimitiveArrayStripper.strip(buffer, strippedFile,
+                                STRIP_MODE, PrimitiveArrayStripper.DEFAULT_MIN_STRIPPED_BYTES);
+                        stripped = true;
+                        Log.e("leak1", "onHandleIntent: 裁剪快照 " + strippedBytes + " 字节");
+                    } catch (IOException | RuntimeException e) {
+                        Log.e("leak1", "onHandleIntent: could not strip the heap dump", e);
+                        strippedFile.delete();
+                    }
+                }
+                if (stripped) {
+                    HprofBuffer strippedBuffer = null;
+                    try {
+                        strippedBuffer = WindowedFileBuffer.open(strippedFile);
+                        index = HprofIndexFile.open(strippedFile, strippedBuffer);
+                        HprofIndex.closeQuietly(buffer);
+                        buffer = strippedBuffer;
+                        strippedBuffer = null;
+                        // The sidecar's fingerprint survives the rename, a retry maps it.
+                        if (strippedFile.renameTo(heapDumpFile)) {
+                            HprofIndexFile.indexFileFor(strippedFile)
+                                    .renameTo(HprofIndexFile.indexFileFor(heapDumpFile));
+                            zeroed = true;
+                        } else {
+                            Log.e("leak1", "onHandleIntent: 裁剪后的快照无法替换原快照, 不压缩保存 "
+                                    + strippedFile);
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e("leak1", "onHandleIntent: could not index the stripped heap dump, falling back to haha", e);
+                    } finally {
+                        HprofIndex.closeQuietly(strippedBuffer);
+                        strippedFile.delete();
+                        HprofIndexFile.indexFileFor(strippedFile).delete();
+                    }
+                } else {
+                    try {
+                        // Indexes the dump in one pass instead of modeling every object, fields
+                        // are then decoded from the mapped file as path finding reaches them. The
+                        // index is kept next to the dump, analyzing it again maps it instead of
+                        // re-parsing. A dump that couldn't be stripped gets no sidecar, a retry
+                        // strips it again.
+                        index = indexed || archived
+                                ? HprofIndexFile.open(heapDumpFile, buffer)
+                                : HprofIndex.build(buffer);
+                    } catch (RuntimeException e) {
+                        Log.e("leak1", "onHandleIntent: could not index the heap dump, falling back to haha", e);
+                    }
+                }
+                if (index != null) {
+                    analyze(heapDump, index, reachabilityInspectors, analysisStartNanoTime);
+                } else {
+                    // The original dump, also when its stripped copy couldn't be indexed.
+                    HprofIndex.closeQuietly(buffer);
+                    buffer = WindowedFileBuffer.open(heapDumpFile);
+                    HprofParser parser = new HprofParser(buffer);
+                    analyze(heapDump, parser.parse(), reachabilityInspectors,
+                            analysisStartNanoTime);
+                }
+                // Kept only once analyzed: a failed attempt leaves no archive, a given up dump
+                // none either.
+                if (heapDump.archiveHeapDump && !archived) {
+                    if (zeroed) {
+                        archive(heapDumpFile);
+                    } else {
+                        Log.e("leak1", "onHandleIntent: 快照未裁剪, 不压缩保存 " + heapDumpFile);
+                    }
+                }
+                if (!archived) {
+                    heapDumpFile.delete();
+                    HprofIndexFile.indexFileFor(heapDumpFile).delete();
+                }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e("leak1", "onHandleIntent:e.getMessage()  "+e.getMessage() );
+            } finally {
+                HprofIndex.closeQuietly(buffer);
             }
 
         }
     }
 
-    private long computeIgnoredBitmapRetainedSize(Snapshot snapshot, Instance leakingInstance) {
-        long bitmapRetainedSize = 0;
-        ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
+    /** Compresses the analyzed dump for keeping, the dump can then be deleted. */
+    private static void archive(File heapDumpFile) {
+        File archive = HprofArchive.archiveFileFor(heapDumpFile);
+        try {
+            HprofArchive.compress(heapDumpFile, archive);
+            Log.e("leak1", "onHandleIntent: 快照已压缩 " + archive + " " + archive.length() + " 字节");
+        } catch (IOException e) {
+            Log.e("leak1", "onHandleIntent: could not archive the heap dump", e);
+        }
+    }
 
-        for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
-            if (isIgnoredDominator(leakingInstance, bitmapInstance)) {
-                ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
-                // Native bitmaps have mBuffer set to null. We sadly can't account for them.
-                if (mBufferInstance == null) {
-                    continue;
-                }
-                long bufferSize = mBufferInstance.getTotalRetainedSize();
-                long bitmapSize = bitmapInstance.getTotalRetainedSize();
-                // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
-                // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
-                if (bitmapSize < bufferSize) {
-                    bitmapSize += bufferSize;
-                }
-                bitmapRetainedSize += bitmapSize;
+    private void analyze(HeapDump heapDump, HprofIndex index,
+                         List<Reachability.Inspector> reachabilityInspectors,
+                         long analysisStartNanoTime) {
+        // A single dump covers every reference that was retained when it was taken.
+        Map<Long, Integer> leakingNodes = findLeakingReferences(heapDump.referenceKeys, index);
+        TIntArrayList targets = new TIntArrayList();
+        for (int leakingNode : leakingNodes.values()) {
+            if (leakingNode != HeapGraph.NO_NODE) {
+                targets.add(leakingNode);
             }
         }
-        return bitmapRetainedSize;
+        // One traversal from the gc roots finds the path to every leaking instance.
+        ShortestPathFinder pathFinder = new ShortestPathFinder(heapDump.excludedRefs);
+        Map<Integer, ShortestPathFinder.Result> results =
+                pathFinder.findPaths(index, targets.toNativeArray());
+        RetainedSizes retainedSizes = new RetainedSizes(heapDump, index, !results.isEmpty());
+        for (long referenceKey : heapDump.referenceKeys) {
+            int leakingNode = leakingNodes.get(referenceKey);
+            // False alarm, weak reference was cleared in between key check and heap dump.
+            if (leakingNode == HeapGraph.NO_NODE) {
+                Log.e("leak1", "onHandleIntent: key " + referenceKey + " ----no leak ");
+                continue;
+            }
+            HeapGraph.ClassLayout layout = index.classLayout(leakingNode);
+            Log.e("leak1", "泄露的类 "+(layout == null ? "?" : layout.className));
+            ShortestPathFinder.Result result = results.get(leakingNode);
+            if (result == null) {
+                Log.e("leak1", "onHandleIntent: key " + referenceKey + " is not reachable from the gc roots");
+                continue;
+            }
+            LeakTrace leakTrace = buildLeakTrace(index, result.leakingNode,
+                    reachabilityInspectors);
+            Log.e("leak1", "泄露堆栈:------- "+leakTrace.toString() );
+            logLeak(retainedSizes.leakDetected(result, layout == null ? "?" : layout.className,
+                    leakTrace, leakingNode, analysisStartNanoTime));
+        }
     }
-    private boolean isIgnoredDominator(Instance dominator, Instance instance) {
-        boolean foundNativeRoot = false;
-        while (true) {
-            Instance immediateDominator = instance.getImmediateDominator();
-            if (immediateDominator instanceof RootObj
-                    && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
-                // Ignore native roots
-                instance = instance.getNextInstanceToGcRoot();
-                foundNativeRoot = true;
-            } else {
-                instance = immediateDominator;
+
+    private void analyze(HeapDump heapDump, Snapshot snapshot,
+                         List<Reachability.Inspector> reachabilityInspectors,
+                         long analysisStartNanoTime) {
+        deduplicateGcRoots(snapshot);
+        // A single dump covers every reference that was retained when it was taken.
+        Map<Long, Instance> leakingRefs = findLeakingReferences(heapDump.referenceKeys, snapshot);
+        // Path finding runs on the compact graph: int nodes and bitsets instead of
+        // hash sets of haha instances.
+        HeapGraph graph = HeapGraph.fromSnapshot(snapshot);
+        TIntArrayList leakingNodes = new TIntArrayList();
+        for (Instance leakingRef : leakingRefs.values()) {
+            if (leakingRef != null) {
+                leakingNodes.add(graph.nodeOf(leakingRef.getId()));
             }
-            if (instance == null) {
-                return false;
+        }
+        // One traversal from the gc roots finds the path to every leaking instance.
+        ShortestPathFinder pathFinder = new ShortestPathFinder(heapDump.excludedRefs);
+        Map<Integer, ShortestPathFinder.Result> results =
+                pathFinder.findPaths(graph, leakingNodes.toNativeArray());
+        // Retained sizes come from the compact graph as well, not from haha's dominator fields.
+        RetainedSizes retainedSizes = new RetainedSizes(heapDump, graph, !results.isEmpty());
+        for (long referenceKey : heapDump.referenceKeys) {
+            Instance leakingRef = leakingRefs.get(referenceKey);
+            // False alarm, weak reference was cleared in between key check and heap dump.
+            if (leakingRef == null) {
+                Log.e("leak1", "onHandleIntent: key " + referenceKey + " ----no leak ");
+                continue;
+            }
+            Log.e("leak1", "泄露的类 "+leakingRef.getClassObj().getClassName());
+            int leakingNode = graph.nodeOf(leakingRef.getId());
+            ShortestPathFinder.Result result = results.get(leakingNode);
+            if (result == null) {
+                Log.e("leak1", "onHandleIntent: key " + referenceKey + " is not reachable from the gc roots");
+                continue;
+            }
+            LeakTrace leakTrace = buildLeakTrace(snapshot, graph, result.leakingNode,
+                    reachabilityInspectors);
+            Log.e("leak1", "泄露堆栈:------- "+leakTrace.toString() );
+            logLeak(retainedSizes.leakDetected(result, leakingRef.getClassObj().getClassName(),
+                    leakTrace, leakingNode, analysisStartNanoTime));
+        }
+    }
+
+    private List<Reachability.Inspector> createReachabilityInspectors(HeapDump heapDump) {
+        List<Reachability.Inspector> inspectors = new ArrayList<>();
+        for (Class<? extends Reachability.Inspector> inspectorClass : heapDump.reachabilityInspectorClasses) {
+            try {
+                inspectors.add(inspectorClass.newInstance());
+            } catch (Exception e) {
+                throw new RuntimeException("Could not create " + inspectorClass.getName(), e);
             }
-            if (instance == dominator) {
-                return foundNativeRoot;
+        }
+        return inspectors;
+    }
+
+    /**
+     * Retained sizes the way the heap dump asks for them: skipped, exact from a dominator tree of
+     * the whole heap, or estimated from each leaking instance within a node budget.
+     */
+    private static final class RetainedSizes {
+        private final HeapDump heapDump;
+        private final DominatorTree dominatorTree;
+        private final RetainedSizeEstimator estimator;
+
+        RetainedSizes(HeapDump heapDump, HeapGraph graph, boolean leakFound) {
+            this.heapDump = heapDump;
+            boolean compute = heapDump.computeRetainedHeapSize && leakFound;
+            boolean exact = heapDump.retainedHeapSizeNodeBudget == 0;
+            // The dump comes from this device, objects are sized the way its runtime lays them out.
+            graph.setSizeModel(ObjectSizeModel.forSdk(SDK_INT));
+            dominatorTree = compute && exact ? DominatorTree.compute(graph) : null;
+            estimator = compute && !exact ? new RetainedSizeEstimator(graph) : null;
+        }
+
+        AnalysisResult leakDetected(ShortestPathFinder.Result result, String className,
+                LeakTrace leakTrace, int leakingNode, long analysisStartNanoTime) {
+            long retainedSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
+            boolean retainedSizeExact = true;
+            if (dominatorTree != null) {
+                // With the bitmaps only a native root dominates.
+                retainedSize = dominatorTree.retainedSize(leakingNode)
+                        + dominatorTree.ignoredBitmapRetainedSize(leakingNode);
+            } else if (estimator != null) {
+                RetainedSizeEstimator.Estimate estimate =
+                        estimator.estimate(leakingNode, heapDump.retainedHeapSizeNodeBudget);
+                retainedSize = estimate.retainedSize;
+                retainedSizeExact = estimate.exact;
             }
+            return AnalysisResult.leakDetected(result.excludingKnownLeaks, className, leakTrace,
+                    retainedSize, retainedSizeExact,
+                    NANOSECONDS.toMillis(System.nanoTime() - analysisStartNanoTime));
         }
     }
-    private LeakTrace buildLeakTrace(LeakNode leakingNode) {
+
+    private static void logLeak(AnalysisResult result) {
+        Log.e("leak1", "泄露大小: " + (result.retainedHeapSize == AnalysisResult.RETAINED_HEAP_SKIPPED
+                ? "未计算" : result.retainedHeapSize + " bytes"
+                        + (result.retainedHeapSizeExact ? "" : " (估算, 已截断)"))
+                + ", 分析耗时 " + result.analysisDurationMs + "ms");
+    }
+    private LeakTrace buildLeakTrace(Snapshot snapshot, HeapGraph graph, LeakNode leakingNode,
+                                     List<Reachability.Inspector> reachabilityInspectors) {
+        List<LeakTraceElement> elements = new ArrayList<>();
+        // We iterate from the leak to the GC root
+        LeakNode node = new LeakNode(null, HeapGraph.NO_NODE, leakingNode, null);
+        while (node != null) {
+            LeakTraceElement element = buildLeakElement(snapshot, graph, node);
+            if (element != null) {
+                elements.add(0, element);
+            }
+            node = node.parent;
+        }
+
+        List<Reachability> expectedReachability =
+                computeExpectedReachability(elements, reachabilityInspectors);
+
+        return new LeakTrace(elements, expectedReachability);
+    }
+    private LeakTrace buildLeakTrace(HprofIndex index, LeakNode leakingNode,
+                                     List<Reachability.Inspector> reachabilityInspectors) {
         List<LeakTraceElement> elements = new ArrayList<>();
         // We iterate from the leak to the GC root
-        LeakNode node = new LeakNode(null, null, leakingNode, null);
+        LeakNode node = new LeakNode(null, HeapGraph.NO_NODE, leakingNode, null);
         while (node != null) {
-            LeakTraceElement element = buildLeakElement(node);
+            LeakTraceElement element = buildLeakElement(index, node);
             if (element != null) {
                 elements.add(0, element);
             }
@@ -214,12 +491,12 @@ public final class HeapAnalyzerService extends IntentService {
         }
 
         List<Reachability> expectedReachability =
-                computeExpectedReachability(elements);
+                computeExpectedReachability(elements, reachabilityInspectors);
 
         return new LeakTrace(elements, expectedReachability);
     }
     private List<Reachability> computeExpectedReachability(
-            List<LeakTraceElement> elements) {
+            List<LeakTraceElement> elements, List<Reachability.Inspector> reachabilityInspectors) {
         int lastReachableElement = 0;
         int lastElementIndex = elements.size() - 1;
         int firstUnreachableElement = lastElementIndex;
@@ -255,59 +532,114 @@ public final class HeapAnalyzerService extends IntentService {
         }
         return expectedReachability;
     }
-    private Instance findLeakingReference(String key, Snapshot snapshot) {
+    /**
+     * Resolves the referent of every requested key in a single pass over the
+     * {@link KeyedWeakReference} instances. Keys whose referent was cleared map to null.
+     */
+    private Map<Long, Instance> findLeakingReferences(long[] keys, Snapshot snapshot) {
         ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
         if (refClass == null) {
             throw new IllegalStateException(
                     "Could not find the " + KeyedWeakReference.class.getName() + " class in the heap dump.");
         }
-        List<String> keysFound = new ArrayList<>();
+        Set<Long> keysToFind = new HashSet<>();
+        for (long key : keys) {
+            keysToFind.add(key);
+        }
+        Map<Long, Instance> leakingRefs = new LinkedHashMap<>();
+        List<Long> keysFound = new ArrayList<>();
+        // Every instance has the same field layout, the key and referent positions are looked up
+        // by name once instead of once per instance.
+        int keyIndex = -1;
+        int referentIndex = -1;
         for (Instance instance : refClass.getInstancesList()) {
             List<ClassInstance.FieldValue> values = classInstanceValues(instance);
-            Object keyFieldValue = fieldValue(values, "key");
-            if (keyFieldValue == null) {
-                keysFound.add(null);
-                continue;
+            if (keyIndex == -1) {
+                keyIndex = fieldIndex(values, "key");
+                referentIndex = fieldIndex(values, "referent");
+                if (keyIndex == -1 || referentIndex == -1) {
+                    throw new IllegalStateException("Missing key or referent field in " + values);
+                }
+            }
+            // The key is a primitive long, haha hands it back boxed: no string decoding needed.
+            Long keyCandidate = (Long) values.get(keyIndex).getValue();
+            if (keyCandidate != null && keysToFind.remove(keyCandidate)) {
+                leakingRefs.put(keyCandidate, (Instance) values.get(referentIndex).getValue());
+                if (keysToFind.isEmpty()) {
+                    return leakingRefs;
+                }
             }
-            String keyCandidate = asString(keyFieldValue);
-            if (keyCandidate.equals(key)) {
-                return fieldValue(values, "referent");
+            keysFound.add(keyCandidate);
+        }
+        throw new IllegalStateException(
+                "Could not find weak references with keys " + keysToFind + " in " + keysFound);
+    }
+    /**
+     * Same as {@link #findLeakingReferences(long[], Snapshot)}, reading the key and referent of the
+     * {@link KeyedWeakReference} instances straight from the index. Cleared referents map to
+     * {@link HeapGraph#NO_NODE}.
+     */
+    private Map<Long, Integer> findLeakingReferences(long[] keys, HprofIndex index) {
+        int refClass = index.classOrdinal(KeyedWeakReference.class.getName());
+        if (refClass == -1) {
+            throw new IllegalStateException(
+                    "Could not find the " + KeyedWeakReference.class.getName() + " class in the heap dump.");
+        }
+        int keyField = index.instanceFieldIndex(refClass, "key");
+        int referentField = index.instanceFieldIndex(refClass, "referent");
+        Set<Long> keysToFind = new HashSet<>();
+        for (long key : keys) {
+            keysToFind.add(key);
+        }
+        Map<Long, Integer> leakingNodes = new LinkedHashMap<>();
+        List<Long> keysFound = new ArrayList<>();
+        TIntArrayList instances = index.instancesOf(refClass);
+        for (int i = 0; i < instances.size(); i++) {
+            int instance = instances.get(i);
+            long keyCandidate = index.readInstanceField(instance, keyField);
+            if (keysToFind.remove(keyCandidate)) {
+                long referentId = index.readInstanceField(instance, referentField);
+                leakingNodes.put(keyCandidate, referentId == 0 ? HeapGraph.NO_NODE : index.nodeOf(referentId));
+                if (keysToFind.isEmpty()) {
+                    return leakingNodes;
+                }
             }
             keysFound.add(keyCandidate);
         }
         throw new IllegalStateException(
-                "Could not find weak reference with key " + key + " in " + keysFound);
+                "Could not find weak references with keys " + keysToFind + " in " + keysFound);
     }
     /**
      * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow.
      */
     void deduplicateGcRoots(Snapshot snapshot) {
-        // THashMap has a smaller memory footprint than HashMap.
-        final THashMap<String, RootObj> uniqueRootMap = new THashMap<>();
+        // Packed (root type, object id) keys in a primitive set: no string per root. Object ids
+        // are heap addresses, they fit below the root type ordinal in the top byte.
+        TLongHashSet uniqueRootKeys = new TLongHashSet();
+        List<RootObj> uniqueRoots = new ArrayList<>();
 
-        final Collection<RootObj> gcRoots = snapshot.getGCRoots();
+        Collection<RootObj> gcRoots = snapshot.getGCRoots();
         for (RootObj root : gcRoots) {
-            String key = String.format("%s@0x%08x", root.getRootType().getName(), root.getId());;
-            if (!uniqueRootMap.containsKey(key)) {
-                uniqueRootMap.put(key, root);
+            long key = ((long) root.getRootType().ordinal() << 56) | (root.getId() & ROOT_ID_MASK);
+            if (uniqueRootKeys.add(key)) {
+                uniqueRoots.add(root);
             }
         }
 
         // Repopulate snapshot with unique GC roots.
-        gcRoots.clear();
-        uniqueRootMap.forEach(new TObjectProcedure<String>() {
-            @Override public boolean execute(String key) {
-                return gcRoots.add(uniqueRootMap.get(key));
-            }
-        });
+        if (uniqueRoots.size() < gcRoots.size()) {
+            gcRoots.clear();
+            gcRoots.addAll(uniqueRoots);
+        }
     }
 
-    private LeakTraceElement buildLeakElement(LeakNode node) {
-        if (node.parent == null) {
+    private LeakTraceElement buildLeakElement(Snapshot snapshot, HeapGraph graph, LeakNode node) {
+        if (node.parent == null || node.parent.node == HeapGraph.NO_NODE) {
             // Ignore any root node.
             return null;
         }
-        Instance holder = node.parent.instance;
+        // Only the handful of nodes on the path are mapped back to haha instances.
+        Instance holder = snapshot.findInstance(graph.objectId(node.parent.node));
 
         if (holder instanceof RootObj) {
             return null;
@@ -340,28 +672,8 @@ public final class HeapAnalyzerService extends IntentService {
                 String threadName = threadName(holder);
                 extra = "(named '" + threadName + "')";
             } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
-                String parentClassName = classObj.getSuperClassObj().getClassName();
-                if (rootClassName.equals(parentClassName)) {
-                    holderType = OBJECT;
-                    try {
-                        // This is an anonymous class implementing an interface. The API does not give access
-                        // to the interfaces implemented by the class. We check if it's in the class path and
-                        // use that instead.
-                        Class<?> actualClass = Class.forName(classObj.getClassName());
-                        Class<?>[] interfaces = actualClass.getInterfaces();
-                        if (interfaces.length > 0) {
-                            Class<?> implementedInterface = interfaces[0];
-                            extra = "(anonymous implementation of " + implementedInterface.getName() + ")";
-                        } else {
-                            extra = "(anonymous subclass of java.lang.Object)";
-                        }
-                    } catch (ClassNotFoundException ignored) {
-                    }
-                } else {
-                    holderType = OBJECT;
-                    // Makes it easier to figure out which anonymous class we're looking at.
-                    extra = "(anonymous subclass of " + parentClassName + ")";
-                }
+                holderType = OBJECT;
+                extra = anonymousClassExtra(className, classObj.getSuperClassObj().getClassName());
             } else {
                 holderType = OBJECT;
             }
@@ -369,6 +681,73 @@ public final class HeapAnalyzerService extends IntentService {
         return new LeakTraceElement(node.leakReference, holderType, classHierarchy, extra,
                 node.exclusion, leakReferences);
     }
+
+    private LeakTraceElement buildLeakElement(HprofIndex index, LeakNode node) {
+        if (node.parent == null || node.parent.node == HeapGraph.NO_NODE) {
+            // Ignore any root node.
+            return null;
+        }
+        int holder = node.parent.node;
+        int classOrdinal = index.classOrdinal(holder);
+        HeapGraph.ClassLayout layout = classOrdinal == -1 ? null : index.classLayoutAt(classOrdinal);
+        LeakTraceElement.Holder holderType;
+        String className = layout == null ? "?" : layout.className;
+        String extra = null;
+        List<LeakReference> leakReferences = index.describeFields(holder);
+
+        List<String> classHierarchy = new ArrayList<>();
+        classHierarchy.add(className);
+        String rootClassName = Object.class.getName();
+        byte kind = index.kind(holder);
+        HeapGraph.ClassLayout superLayout = layout == null || layout.superOrdinal == -1 ? null
+                : index.classLayoutAt(layout.superOrdinal);
+        if (kind == HeapGraph.KIND_INSTANCE) {
+            for (HeapGraph.ClassLayout ancestor = superLayout;
+                 ancestor != null && !ancestor.className.equals(rootClassName);
+                 ancestor = ancestor.superOrdinal == -1 ? null : index.classLayoutAt(ancestor.superOrdinal)) {
+                classHierarchy.add(ancestor.className);
+            }
+        }
+
+        if (kind == HeapGraph.KIND_CLASS) {
+            holderType = CLASS;
+        } else if (kind == HeapGraph.KIND_OBJECT_ARRAY) {
+            holderType = ARRAY;
+        } else if (classOrdinal != -1 && index.extendsThread(classOrdinal)) {
+            holderType = THREAD;
+            String threadName = index.threadName(holder);
+            extra = "(named '" + threadName + "')";
+        } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN) && superLayout != null) {
+            holderType = OBJECT;
+            extra = anonymousClassExtra(className, superLayout.className);
+        } else {
+            holderType = OBJECT;
+        }
+        return new LeakTraceElement(node.leakReference, holderType, classHierarchy, extra,
+                node.exclusion, leakReferences);
+    }
+
+    private String anonymousClassExtra(String className, String parentClassName) {
+        if (Object.class.getName().equals(parentClassName)) {
+            try {
+                // This is an anonymous class implementing an interface. The API does not give access
+                // to the interfaces implemented by the class. We check if it's in the class path and
+                // use that instead.
+                Class<?> actualClass = Class.forName(className);
+                Class<?>[] interfaces = actualClass.getInterfaces();
+                if (interfaces.length > 0) {
+                    Class<?> implementedInterface = interfaces[0];
+                    return "(anonymous implementation of " + implementedInterface.getName() + ")";
+                } else {
+                    return "(anonymous subclass of java.lang.Object)";
+                }
+            } catch (ClassNotFoundException ignored) {
+                return null;
+            }
+        }
+        // Makes it easier to figure out which anonymous class we're looking at.
+        return "(anonymous subclass of " + parentClassName + ")";
+    }
     private List<LeakReference> describeFields(Instance instance) {
         List<LeakReference> leakReferences = new ArrayList<>();
         if (instance instanceof ClassObj) {
@@ -421,6 +800,13 @@ public final class HeapAnalyzerService extends IntentService {
     }
     @Override public void onDestroy() {
         super.onDestroy();
+        //在队列线程上关闭, 已经排着的startAnalyses不会再往关闭的线程池提交
+        AnalysisQueue.get().handler.post(new Runnable() {
+            @Override public void run() {
+                destroyed = true;
+                analysisExecutor.shutdown();
+            }
+        });
         stopForeground(true);
     }
 
@@ -44,13 +44,14 @@ public final class HeapDump implements Serializable {
   public final File heapDumpFile;
 
   /**
-   * Key associated to the {@link KeyedWeakReference} used to detect the memory leak.
+   * Keys associated to the {@link KeyedWeakReference}s used to detect the memory leaks.
    * When analyzing a heap dump, search for all {@link KeyedWeakReference} instances, then open
-   * the one that has its "key" field set to this value. Its "referent" field contains the
-   * leaking object. Computing the shortest path to GC roots on that leaking object should enable
-   * you to figure out the cause of the leak.
+   * the ones that have their "key" field set to one of these values. Their "referent" field
+   * contains a leaking object. Computing the shortest path to GC roots on each leaking object
+   * should enable you to figure out the cause of the leaks. A single heap dump covers every
+   * reference retained at the time it was taken.
    */
-  public final String referenceKey;
+  public final long[] referenceKeys;
 
   /**
    * User defined name to help identify the leaking instance.
@@ -65,6 +66,17 @@ public final class HeapDump implements Serializable {
   public final long gcDurationMs;
   public final long heapDumpDurationMs;
   public final boolean computeRetainedHeapSize;
+  /**
+   * How the retained heap size is computed when {@link #computeRetainedHeapSize} is true. 0 builds
+   * a dominator tree of the whole heap, exact but expensive on a device. A positive budget
+   * estimates it from the leaking instance, visiting at most that many objects.
+   */
+  public final int retainedHeapSizeNodeBudget;
+  /**
+   * Keeps the dump once analyzed as a block compressed archive next to it, named after it with
+   * the .hprofz extension, instead of deleting it. The analyzer reads archives directly.
+   */
+  public final boolean archiveHeapDump;
   public final List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses;
 
   /**
@@ -73,10 +85,10 @@ public final class HeapDump implements Serializable {
    * @deprecated Use {@link #HeapDump(Builder)}  instead.
    */
   @Deprecated
-  public HeapDump(File heapDumpFile, String referenceKey, String referenceName,
+  public HeapDump(File heapDumpFile, long referenceKey, String referenceName,
                   ExcludedRefs excludedRefs, long watchDurationMs, long gcDurationMs, long heapDumpDurationMs) {
     this(new Builder().heapDumpFile(heapDumpFile)
-        .referenceKey(referenceKey)
+        .referenceKeys(referenceKey)
         .referenceName(referenceName)
         .excludedRefs(excludedRefs)
         .computeRetainedHeapSize(true)
@@ -87,13 +99,15 @@ public final class HeapDump implements Serializable {
 
   HeapDump(Builder builder) {
     this.heapDumpFile = builder.heapDumpFile;
-    this.referenceKey = builder.referenceKey;
+    this.referenceKeys = builder.referenceKeys;
     this.referenceName = builder.referenceName;
     this.excludedRefs = builder.excludedRefs;
     this.computeRetainedHeapSize = builder.computeRetainedHeapSize;
+    this.retainedHeapSizeNodeBudget = builder.retainedHeapSizeNodeBudget;
     this.watchDurationMs = builder.watchDurationMs;
     this.gcDurationMs = builder.gcDurationMs;
     this.heapDumpDurationMs = builder.heapDumpDurationMs;
+    this.archiveHeapDump = builder.archiveHeapDump;
     this.reachabilityInspectorClasses = builder.reachabilityInspectorClasses;
   }
 
@@ -103,36 +117,42 @@ public final class HeapDump implements Serializable {
 
   public static final class Builder {
     File heapDumpFile;
-    String referenceKey;
+    long[] referenceKeys;
     String referenceName;
     ExcludedRefs excludedRefs;
     long watchDurationMs;
     long gcDurationMs;
     long heapDumpDurationMs;
     boolean computeRetainedHeapSize;
+    int retainedHeapSizeNodeBudget;
+    boolean archiveHeapDump;
     List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses;
 
     Builder() {
       this.heapDumpFile = null;
-      this.referenceKey = null;
+      this.referenceKeys = null;
       referenceName = "";
       excludedRefs = null;
       watchDurationMs = 0;
       gcDurationMs = 0;
       heapDumpDurationMs = 0;
       computeRetainedHeapSize = false;
+      retainedHeapSizeNodeBudget = 0;
+      archiveHeapDump = false;
       reachabilityInspectorClasses = null;
     }
 
     Builder(HeapDump heapDump) {
       this.heapDumpFile = heapDump.heapDumpFile;
-      this.referenceKey = heapDump.referenceKey;
+      this.referenceKeys = heapDump.referenceKeys;
       this.referenceName = heapDump.referenceName;
       this.excludedRefs = heapDump.excludedRefs;
       this.computeRetainedHeapSize = heapDump.computeRetainedHeapSize;
+      this.retainedHeapSizeNodeBudget = heapDump.retainedHeapSizeNodeBudget;
       this.watchDurationMs = heapDump.watchDurationMs;
       this.gcDurationMs = heapDump.gcDurationMs;
       this.heapDumpDurationMs = heapDump.heapDumpDurationMs;
+      this.archiveHeapDump = heapDump.archiveHeapDump;
       this.reachabilityInspectorClasses = heapDump.reachabilityInspectorClasses;
     }
 
@@ -141,8 +161,12 @@ public final class HeapDump implements Serializable {
       return this;
     }
 
-    public Builder referenceKey(String referenceKey) {
-      this.referenceKey = checkNotNull(referenceKey, "referenceKey");
+    public Builder referenceKeys(long... referenceKeys) {
+      checkNotNull(referenceKeys, "referenceKeys");
+      if (referenceKeys.length == 0) {
+        throw new IllegalArgumentException("referenceKeys must not be empty");
+      }
+      this.referenceKeys = referenceKeys.clone();
       return this;
     }
 
@@ -176,6 +200,20 @@ public final class HeapDump implements Serializable {
       return this;
     }
 
+    public Builder retainedHeapSizeNodeBudget(int retainedHeapSizeNodeBudget) {
+      if (retainedHeapSizeNodeBudget < 0) {
+        throw new IllegalArgumentException(
+            "retainedHeapSizeNodeBudget must not be negative: " + retainedHeapSizeNodeBudget);
+      }
+      this.retainedHeapSizeNodeBudget = retainedHeapSizeNodeBudget;
+      return this;
+    }
+
+    public Builder archiveHeapDump(boolean archiveHeapDump) {
+      this.archiveHeapDump = archiveHeapDump;
+      return this;
+    }
+
     public Builder reachabilityInspectorClasses(
         List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses) {
       checkNotNull(reachabilityInspectorClasses, "reachabilityInspectorClasses");
@@ -187,7 +225,7 @@ public final class HeapDump implements Serializable {
     public HeapDump build() {
       checkNotNull(excludedRefs, "excludedRefs");
       checkNotNull(heapDumpFile, "heapDumpFile");
-      checkNotNull(referenceKey, "referenceKey");
+      checkNotNull(referenceKeys, "referenceKeys");
       checkNotNull(reachabilityInspectorClasses, "reachabilityInspectorClasses");
       return new HeapDump(this);
     }
@@ -0,0 +1,367 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongHashSet;
+
+import static com.docwei.leakcanarydemo.analyzer.HahaHelper.isPrimitiveWrapperClassName;
+
+/**
+ * Read only object graph of a heap dump, as seen by the path finder.
+ *
+ * Every object gets a dense int node id (its rank in the sorted hprof object ids), classes get a
+ * dense ordinal and are described once by a {@link ClassLayout}. The outbound references of a node
+ * are read into a reusable {@link Edges}. Implementations either hold the whole graph in memory
+ * ({@link CompactHeapGraph}) or decode objects from the hprof file on demand ({@link HprofIndex}).
+ */
+abstract class HeapGraph {
+
+  static final int NO_NODE = -1;
+
+  static final byte KIND_CLASS = 0;
+  static final byte KIND_INSTANCE = 1;
+  static final byte KIND_OBJECT_ARRAY = 2;
+  static final byte KIND_PRIMITIVE_ARRAY = 3;
+
+  /** Names and flags of a class, shared by all of its instances. */
+  static final class ClassLayout {
+    final String className;
+    /** Ordinal of the superclass, -1 for java.lang.Object. */
+    final int superOrdinal;
+    final int classNode;
+    /** Names of the instance fields of this class and its superclasses, in dump order. */
+    final String[] instanceFieldNames;
+    /** Hprof types of {@link #instanceFieldNames}. */
+    final byte[] instanceFieldTypes;
+    final String[] staticFieldNames;
+    final byte[] staticFieldTypes;
+    final boolean isString;
+    final boolean isPrimitiveWrapper;
+
+    ClassLayout(String className, int superOrdinal, int classNode, String[] instanceFieldNames,
+        byte[] instanceFieldTypes, String[] staticFieldNames, byte[] staticFieldTypes) {
+      this.className = className;
+      this.superOrdinal = superOrdinal;
+      this.classNode = classNode;
+      this.instanceFieldNames = instanceFieldNames;
+      this.instanceFieldTypes = instanceFieldTypes;
+      this.staticFieldNames = staticFieldNames;
+      this.staticFieldTypes = staticFieldTypes;
+      this.isString = String.class.getName().equals(className);
+      this.isPrimitiveWrapper = isPrimitiveWrapperClassName(className);
+    }
+  }
+
+  /**
+   * The non null outbound references of a node, the ones in [{@link #start}, {@link #end}). The
+   * reference of an edge is what it goes through: a static field index for class objects, an
+   * index in {@link ClassLayout#instanceFieldNames} for instances, the array index for object
+   * arrays. Reused across nodes, the content is only valid until the next read.
+   */
+  static final class Edges {
+    int[] targets;
+    int[] references;
+    int start;
+    int end;
+    private int[] ownTargets = new int[16];
+    private int[] ownReferences = new int[16];
+
+    /** Points at a slice of arrays owned by the graph. */
+    void wrap(int[] targets, int[] references, int start, int end) {
+      this.targets = targets;
+      this.references = references;
+      this.start = start;
+      this.end = end;
+    }
+
+    void clear() {
+      targets = ownTargets;
+      references = ownReferences;
+      start = 0;
+      end = 0;
+    }
+
+    /** Appends to the own buffers, {@link #clear()} must have been called first. */
+    void add(int target, int reference) {
+      if (end == ownTargets.length) {
+        ownTargets = Arrays.copyOf(ownTargets, end * 2);
+        ownReferences = Arrays.copyOf(ownReferences, end * 2);
+        targets = ownTargets;
+        references = ownReferences;
+      }
+      ownTargets[end] = target;
+      ownReferences[end] = reference;
+      end++;
+    }
+  }
+
+  /**
+   * Collects the gc roots of a graph, dropping duplicates and grouping the roots by type. Dumps from
+   * Marshmallow on repeat the same root many times. Duplicates are found through a primitive hash
+   * set of (root type ordinal, node) pairs packed in a long.
+   */
+  static final class RootTable {
+    private final TLongHashSet added = new TLongHashSet();
+    private final TIntArrayList nodes = new TIntArrayList();
+    private final List<RootType> types = new ArrayList<>();
+    private final TIntArrayList threadNodes = new TIntArrayList();
+    private final List<String> threadNames = new ArrayList<>();
+
+    int[] rootNodes;
+    RootType[] rootTypes;
+    int[] rootThreadNodes;
+    String[] rootThreadNames;
+
+    boolean contains(RootType type, int node) {
+      return added.contains(rootKey(type, node));
+    }
+
+    /** Ignored if a root of the same type already points to the node. */
+    void add(RootType type, int node, int threadNode, String threadName) {
+      if (!added.add(rootKey(type, node))) {
+        return;
+      }
+      nodes.add(node);
+      types.add(type);
+      threadNodes.add(threadNode);
+      threadNames.add(threadName);
+    }
+
+    /** Fills the root arrays, grouped by root type ordinal and in insertion order within a type. */
+    RootTable finish() {
+      int[] typeStarts = new int[RootType.values().length + 1];
+      for (RootType type : types) {
+        typeStarts[type.ordinal() + 1]++;
+      }
+      for (int i = 1; i < typeStarts.length; i++) {
+        typeStarts[i] += typeStarts[i - 1];
+      }
+      int count = nodes.size();
+      rootNodes = new int[count];
+      rootTypes = new RootType[count];
+      rootThreadNodes = new int[count];
+      rootThreadNames = new String[count];
+      for (int i = 0; i < count; i++) {
+        RootType type = types.get(i);
+        int root = typeStarts[type.ordinal()]++;
+        rootNodes[root] = nodes.get(i);
+        rootTypes[root] = type;
+        rootThreadNodes[root] = threadNodes.get(i);
+        rootThreadNames[root] = threadNames.get(i);
+      }
+      added.clear();
+      return this;
+    }
+
+    private static long rootKey(RootType type, int node) {
+      return ((long) type.ordinal() << 32) | (node & 0xffffffffL);
+    }
+  }
+
+  /** Start of the roots of each type by ordinal, then the root count. Computed on first use. */
+  private int[] rootTypeStarts;
+
+  private ObjectSizeModel sizeModel = ObjectSizeModel.OREO;
+  /** Allocated size of the instances of each class ordinal, 0 until computed. */
+  private long[] instanceSizes;
+  /** With inline strings, the value arrays of Strings: they don't exist in the heap. */
+  private BitSet stringValues;
+  private final Edges sizeEdges = new Edges();
+
+  abstract int nodeCount();
+
+  abstract long objectId(int node);
+
+  /** Returns the node of the provided hprof object id, or {@link #NO_NODE}. */
+  abstract int nodeOf(long objectId);
+
+  abstract byte kind(int node);
+
+  /** Element count of an array node. */
+  abstract long arrayLength(int node);
+
+  /** Hprof type of the elements of an array node, {@link HprofIndex#TYPE_OBJECT} for objects. */
+  abstract byte arrayElementType(int node);
+
+  /** Class ordinal of the node, or the node's own ordinal for class objects. -1 if unknown. */
+  abstract int classOrdinal(int node);
+
+  abstract ClassLayout classLayoutAt(int ordinal);
+
+  abstract int classCount();
+
+  /** Reads the outbound references of the node into edges. */
+  abstract void readEdges(int node, Edges edges);
+
+  abstract int rootCount();
+
+  abstract int rootNode(int root);
+
+  abstract RootType rootType(int root);
+
+  /** For {@link RootType#JAVA_LOCAL} roots, the thread holding the local. Else {@link #NO_NODE}. */
+  abstract int rootThreadNode(int root);
+
+  abstract String rootThreadName(int root);
+
+  /**
+   * The roots of a type are [firstRoot(type), endRoot(type)): implementations store their roots
+   * grouped by type, in root type ordinal order, as {@link RootTable} does.
+   */
+  int firstRoot(RootType type) {
+    return rootTypeStarts()[type.ordinal()];
+  }
+
+  int endRoot(RootType type) {
+    return rootTypeStarts()[type.ordinal() + 1];
+  }
+
+  private int[] rootTypeStarts() {
+    if (rootTypeStarts == null) {
+      int[] starts = new int[RootType.values().length + 1];
+      int ordinal = 0;
+      for (int root = 0, count = rootCount(); root < count; root++) {
+        int rootOrdinal = rootType(root).ordinal();
+        if (rootOrdinal < ordinal) {
+          throw new IllegalStateException("Gc roots are not grouped by type");
+        }
+        while (ordinal < rootOrdinal) {
+          starts[++ordinal] = root;
+        }
+      }
+      while (ordinal < starts.length - 1) {
+        starts[++ordinal] = rootCount();
+      }
+      rootTypeStarts = starts;
+    }
+    return rootTypeStarts;
+  }
+
+  /** Sets how objects are sized, the one of the runtime the heap was dumped on. */
+  void setSizeModel(ObjectSizeModel sizeModel) {
+    this.sizeModel = sizeModel;
+    instanceSizes = null;
+    stringValues = null;
+  }
+
+  /**
+   * Bytes the node takes in the heap, not counting the objects it references, according to the
+   * {@link ObjectSizeModel}. Instance sizes are computed once per class.
+   */
+  long shallowSize(int node) {
+    switch (kind(node)) {
+      case KIND_CLASS: {
+        ClassLayout layout = classLayout(node);
+        return sizeModel.classObjectSize(layout == null ? new byte[0] : layout.staticFieldTypes);
+      }
+      case KIND_INSTANCE: {
+        int ordinal = classOrdinal(node);
+        if (ordinal == -1) {
+          return sizeModel.instanceSize(sizeModel.objectHeaderBytes);
+        }
+        if (sizeModel.stringsInline && classLayoutAt(ordinal).isString) {
+          int value = stringValue(node, classLayoutAt(ordinal));
+          if (value != NO_NODE) {
+            return sizeModel.inlineStringSize(arrayLength(value),
+                arrayElementType(value) == HprofIndex.TYPE_BYTE);
+          }
+        }
+        return sizeModel.instanceSize(fieldsEnd(ordinal));
+      }
+      case KIND_OBJECT_ARRAY:
+        return sizeModel.arraySize(HprofIndex.TYPE_OBJECT, arrayLength(node));
+      case KIND_PRIMITIVE_ARRAY:
+        if (sizeModel.stringsInline && stringValues().get(node)) {
+          // Counted in the String.
+          return 0;
+        }
+        return sizeModel.arraySize(arrayElementType(node), arrayLength(node));
+      default:
+        throw new IllegalStateException("Unknown kind " + kind(node));
+    }
+  }
+
+  /** End of the fields of the instances of a class, header included and not aligned. */
+  private long fieldsEnd(int ordinal) {
+    if (instanceSizes == null) {
+      instanceSizes = new long[classCount()];
+    }
+    long fieldsEnd = instanceSizes[ordinal];
+    if (fieldsEnd == 0) {
+      ClassLayout layout = classLayoutAt(ordinal);
+      // The fields the class declares come first, then the ones of its superclasses.
+      long superFieldsEnd = 0;
+      int declaredCount = layout.instanceFieldTypes.length;
+      if (layout.superOrdinal != -1) {
+        superFieldsEnd = fieldsEnd(layout.superOrdinal);
+        declaredCount -= classLayoutAt(layout.superOrdinal).instanceFieldTypes.length;
+      }
+      fieldsEnd = sizeModel.fieldsEnd(superFieldsEnd, layout.instanceFieldTypes, declaredCount);
+      instanceSizes[ordinal] = fieldsEnd;
+    }
+    return fieldsEnd;
+  }
+
+  /** The primitive array the String points to through its value field, or {@link #NO_NODE}. */
+  private int stringValue(int node, ClassLayout stringLayout) {
+    int valueField = Arrays.asList(stringLayout.instanceFieldNames).indexOf("value");
+    readEdges(node, sizeEdges);
+    for (int i = sizeEdges.start; i < sizeEdges.end; i++) {
+      if (sizeEdges.references[i] == valueField
+          && kind(sizeEdges.targets[i]) == KIND_PRIMITIVE_ARRAY) {
+        return sizeEdges.targets[i];
+      }
+    }
+    return NO_NODE;
+  }
+
+  private BitSet stringValues() {
+    if (stringValues == null) {
+      BitSet values = new BitSet(nodeCount());
+      for (int ordinal = 0; ordinal < classCount(); ordinal++) {
+        if (!classLayoutAt(ordinal).isString) {
+          continue;
+        }
+        for (int node = 0, count = nodeCount(); node < count; node++) {
+          if (kind(node) == KIND_INSTANCE && classOrdinal(node) == ordinal) {
+            int value = stringValue(node, classLayoutAt(ordinal));
+            if (value != NO_NODE) {
+              values.set(value);
+            }
+          }
+        }
+      }
+      stringValues = values;
+    }
+    return stringValues;
+  }
+
+  /** The layout of the node's class, or of the class itself for class objects. May be null. */
+  ClassLayout classLayout(int node) {
+    int ordinal = classOrdinal(node);
+    return ordinal == -1 ? null : classLayoutAt(ordinal);
+  }
+
+  /** Short description of a node, in the spirit of haha's Instance#toString(). */
+  String describe(int node) {
+    ClassLayout layout = classLayout(node);
+    String className = layout == null ? "?" : layout.className;
+    if (kind(node) == KIND_CLASS) {
+      return className;
+    }
+    long objectId = objectId(node);
+    return className + "@" + objectId + " (0x" + Long.toHexString(objectId) + ")";
+  }
+
+  /** Builds the graph from a parsed snapshot. */
+  static HeapGraph fromSnapshot(Snapshot snapshot) {
+    return CompactHeapGraph.fromSnapshot(snapshot);
+  }
+}
@@ -0,0 +1,318 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A heap dump stored as independently deflated blocks, so that it can be read at any position
+ * without inflating the whole file: {@link WindowedFileBuffer#open(File)} reads archives as well,
+ * with a block per window.
+ *
+ * Layout: magic, block size (int), length of the dump (long), block count (int), the deflated
+ * blocks, then the offset of each block in the archive followed by the end of the last one
+ * (longs), and last the offset of that table (long).
+ *
+ * Blocks are read and deflated on a pool of threads while the ones before them are written. A
+ * dump is compressed once its analysis succeeded, a dump that fails is never kept.
+ *
+ * The archived dump is a standard hprof, its large arrays zeroed: {@link #decompress} gives it
+ * back for Android Studio, MAT and other hprof tools.
+ */
+public final class HprofArchive {
+
+  static final String ARCHIVE_SUFFIX = ".hprofz";
+  static final int MAGIC = 0x48505a31;
+  static final int BLOCK_BYTES = 1024 * 1024;
+  /** magic, block size, dump length, block count. */
+  static final int HEADER_SIZE = 20;
+
+  private static final String HPROF_SUFFIX = ".hprof";
+  private static final String PENDING_SUFFIX = "_pending";
+
+  private static final int DEFLATE_THREADS =
+      Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+  private static final ExecutorService deflateExecutor =
+      Executors.newFixedThreadPool(DEFLATE_THREADS, daemonThreads("leak-deflate"));
+
+  /** The archive kept for a heap dump: xxx_pending.hprof becomes xxx.hprofz. */
+  static File archiveFileFor(File heapDumpFile) {
+    String name = heapDumpFile.getName();
+    if (name.endsWith(HPROF_SUFFIX)) {
+      name = name.substring(0, name.length() - HPROF_SUFFIX.length());
+    }
+    if (name.endsWith(PENDING_SUFFIX)) {
+      name = name.substring(0, name.length() - PENDING_SUFFIX.length());
+    }
+    return new File(heapDumpFile.getParentFile(), name + ARCHIVE_SUFFIX);
+  }
+
+  static boolean isArchive(File file) throws IOException {
+    FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      return isArchive(channel);
+    } finally {
+      channel.close();
+    }
+  }
+
+  static boolean isArchive(FileChannel channel) throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(4);
+    while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+    }
+    return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+  }
+
+  static void compress(File source, File archive) throws IOException {
+    // Written aside then renamed, a crash never leaves a truncated archive.
+    File tmpFile = new File(archive.getPath() + ".tmp");
+    FileChannel in = new RandomAccessFile(source, "r").getChannel();
+    FileChannel out = null;
+    ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    boolean written = false;
+    try {
+      out = new RandomAccessFile(tmpFile, "rw").getChannel();
+      out.truncate(0);
+      long length = in.size();
+      int blockCount = (int) ((length + BLOCK_BYTES - 1) / BLOCK_BYTES);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(BLOCK_BYTES).putLong(length).putInt(blockCount);
+      header.flip();
+      writeFully(out, header);
+
+      long[] offsets = new long[blockCount + 1];
+      long offset = HEADER_SIZE;
+      // A few blocks in flight per thread, the ones waiting to be written are bounded.
+      int maxPending = DEFLATE_THREADS * 2;
+      int submitted = 0;
+      for (int block = 0; block < blockCount; block++) {
+        while (submitted < blockCount && pending.size() < maxPending) {
+          pending.add(deflateExecutor.submit(new DeflateBlock(in, submitted++, length)));
+        }
+        byte[] deflated = await(pending.poll());
+        offsets[block] = offset;
+        writeFully(out, ByteBuffer.wrap(deflated));
+        offset += deflated.length;
+      }
+      offsets[blockCount] = offset;
+
+      ByteBuffer table = ByteBuffer.allocate(8 * (blockCount + 2));
+      for (long blockOffset : offsets) {
+        table.putLong(blockOffset);
+      }
+      table.putLong(offset);
+      table.flip();
+      writeFully(out, table);
+      out.force(false);
+      written = true;
+    } finally {
+      for (Future<byte[]> future : pending) {
+        future.cancel(true);
+      }
+      in.close();
+      if (out != null) {
+        out.close();
+      }
+      if (!written) {
+        tmpFile.delete();
+      }
+    }
+    if (!tmpFile.renameTo(archive)) {
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile + " to " + archive);
+    }
+  }
+
+  /**
+   * Writes the heap dump held by archive to hprof, to open it in a hprof tool. Written aside then
+   * renamed, hprof is either complete or left as it was.
+   */
+  public static void decompress(File archive, File hprof) throws IOException {
+    File tmpFile = new File(hprof.getPath() + ".tmp");
+    FileChannel in = new RandomAccessFile(archive, "r").getChannel();
+    FileOutputStream out = null;
+    boolean written = false;
+    try {
+      Table table = Table.read(in);
+      out = new FileOutputStream(tmpFile);
+      byte[] block = new byte[table.blockSize];
+      long remaining = table.length;
+      for (int i = 0; i < table.offsets.length - 1; i++) {
+        int size = table.inflate(in, i, block);
+        if (size != Math.min(table.blockSize, remaining)) {
+          throw new IOException("Block " + i + " of " + archive + " has " + size + " bytes");
+        }
+        out.write(block, 0, size);
+        remaining -= size;
+      }
+      out.getFD().sync();
+      written = true;
+    } finally {
+      in.close();
+      if (out != null) {
+        out.close();
+      }
+      if (!written) {
+        tmpFile.delete();
+      }
+    }
+    if (!tmpFile.renameTo(hprof)) {
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile + " to " + hprof);
+    }
+  }
+
+  /** Reads and deflates one block of the dump. */
+  private static final class DeflateBlock implements Callable<byte[]> {
+    private final FileChannel in;
+    private final int block;
+    private final long length;
+
+    DeflateBlock(FileChannel in, int block, long length) {
+      this.in = in;
+      this.block = block;
+      this.length = length;
+    }
+
+    @Override public byte[] call() throws IOException {
+      long start = (long) block * BLOCK_BYTES;
+      ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(BLOCK_BYTES, length - start));
+      while (bytes.hasRemaining()) {
+        if (in.read(bytes, start + bytes.position()) < 0) {
+          throw new IOException("Heap dump truncated at " + (start + bytes.position()));
+        }
+      }
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(bytes.array(), 0, bytes.limit());
+        deflater.finish();
+        // Zeroed and stripped content deflates well, random content grows a little.
+        byte[] deflated = new byte[bytes.limit() + bytes.limit() / 64 + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+          if (size == deflated.length) {
+            deflated = Arrays.copyOf(deflated, size * 2);
+          }
+          size += deflater.deflate(deflated, size, deflated.length - size);
+        }
+        return Arrays.copyOf(deflated, size);
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+
+  /** The block table of an archive, read from its end. */
+  static final class Table {
+    final int blockSize;
+    final long length;
+    final long[] offsets;
+
+    private Table(int blockSize, long length, long[] offsets) {
+      this.blockSize = blockSize;
+      this.length = length;
+      this.offsets = offsets;
+    }
+
+    static Table read(FileChannel channel) throws IOException {
+      ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a heap dump archive");
+      }
+      int blockSize = header.getInt();
+      long length = header.getLong();
+      int blockCount = header.getInt();
+      long tableOffset = readFully(channel, channel.size() - 8, 8).getLong();
+      ByteBuffer table = readFully(channel, tableOffset, 8 * (blockCount + 1));
+      long[] offsets = new long[blockCount + 1];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = table.getLong();
+      }
+      return new Table(blockSize, length, offsets);
+    }
+
+    /** Inflates a block into into, which must hold blockSize bytes. Returns the block length. */
+    int inflate(FileChannel channel, int block, byte[] into) throws IOException {
+      int deflatedSize = (int) (offsets[block + 1] - offsets[block]);
+      ByteBuffer deflated = readFully(channel, offsets[block], deflatedSize);
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(deflated.array(), 0, deflatedSize);
+        int size = 0;
+        while (!inflater.finished() && size < into.length) {
+          int inflated = inflater.inflate(into, size, into.length - size);
+          if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated block " + block);
+          }
+          size += inflated;
+        }
+        return size;
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted block " + block, e);
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int size)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Heap dump archive truncated at " + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] await(Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private HprofArchive() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,1220 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+
+import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.STATIC_FIELD;
+
+/**
+ * {@link HeapGraph} read straight from an hprof file, without building a haha Snapshot.
+ *
+ * {@link #build} makes a single sequential pass over the dump and only keeps what path finding
+ * needs: the string table, the class names, the class layouts, the gc roots and the position of
+ * every object record. Instances and arrays stay in the (memory mapped) buffer and their fields are
+ * decoded when they are visited, so the memory used is proportional to the number of objects and
+ * not to the size of the heap.
+ *
+ * Not thread safe: reads move the position of the underlying buffer.
+ */
+final class HprofIndex extends HeapGraph {
+
+  // Top level records.
+  static final int TAG_STRING = 0x01;
+  static final int TAG_LOAD_CLASS = 0x02;
+  static final int TAG_HEAP_DUMP = 0x0C;
+  static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+  // Heap dump sub records.
+  private static final int ROOT_UNKNOWN = 0xFF;
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JNI_LOCAL = 0x02;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_NATIVE_STACK = 0x04;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_BLOCK = 0x06;
+  private static final int ROOT_MONITOR_USED = 0x07;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  static final int CLASS_DUMP = 0x20;
+  static final int INSTANCE_DUMP = 0x21;
+  static final int OBJECT_ARRAY_DUMP = 0x22;
+  static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+  // Android specific heap dump sub records.
+  static final int HEAP_DUMP_INFO = 0xFE;
+  private static final int ROOT_INTERNED_STRING = 0x89;
+  private static final int ROOT_FINALIZING = 0x8A;
+  private static final int ROOT_DEBUGGER = 0x8B;
+  private static final int ROOT_REFERENCE_CLEANUP = 0x8C;
+  private static final int ROOT_VM_INTERNAL = 0x8D;
+  private static final int ROOT_JNI_MONITOR = 0x8E;
+  private static final int ROOT_UNREACHABLE = 0x90;
+  static final int PRIMITIVE_ARRAY_NODATA = 0xC3;
+
+  // Basic types of fields and array elements.
+  static final byte TYPE_OBJECT = 2;
+  static final byte TYPE_BOOLEAN = 4;
+  static final byte TYPE_CHAR = 5;
+  static final byte TYPE_FLOAT = 6;
+  static final byte TYPE_DOUBLE = 7;
+  static final byte TYPE_BYTE = 8;
+  static final byte TYPE_SHORT = 9;
+  static final byte TYPE_INT = 10;
+  static final byte TYPE_LONG = 11;
+
+  /** Object record positions keep the kind of the object in their top byte. */
+  private static final int KIND_SHIFT = 56;
+  private static final long POSITION_MASK = (1L << KIND_SHIFT) - 1;
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Smallest chunk of heap dump records worth a parallel task. */
+  private static final long MIN_CHUNK_BYTES = 4 * 1024 * 1024;
+
+  // The tables are package private for HprofIndexFile, which persists them. The large ones are
+  // LongBuffers so that they can be served straight from a memory mapped index file.
+  private final HprofBuffer buffer;
+  final int idSize;
+  /** Sorted string ids, and the position of the length of their STRING record. */
+  final LongBuffer stringIds;
+  final LongBuffer stringPositions;
+  /** Sorted object ids, and the position of the id in their record, with the kind packed in. */
+  final LongBuffer objectIds;
+  final LongBuffer objectPositions;
+  /** Sorted class object ids, the rank of a class is its ordinal. */
+  final long[] classIds;
+  final ClassLayout[] classLayouts;
+  /** Types of {@link ClassLayout#instanceFieldNames}, by class ordinal. */
+  final byte[][] instanceFieldTypes;
+  final byte[][] staticFieldTypes;
+  /** Static field values: object ids, or the bits of primitive values. */
+  final long[][] staticFieldValues;
+
+  int[] rootNodes;
+  RootType[] rootTypes;
+  int[] rootThreadNodes;
+  String[] rootThreadNames;
+
+  /** The class tables and the roots are filled in by the caller. */
+  HprofIndex(HprofBuffer buffer, int idSize, LongBuffer stringIds, LongBuffer stringPositions,
+      LongBuffer objectIds, LongBuffer objectPositions, long[] classIds) {
+    this.buffer = buffer;
+    this.idSize = idSize;
+    this.stringIds = stringIds;
+    this.stringPositions = stringPositions;
+    this.objectIds = objectIds;
+    this.objectPositions = objectPositions;
+    this.classIds = classIds;
+    int classCount = classIds.length;
+    classLayouts = new ClassLayout[classCount];
+    instanceFieldTypes = new byte[classCount][];
+    staticFieldTypes = new byte[classCount][];
+    staticFieldValues = new long[classCount][];
+  }
+
+  /**
+   * Indexes the hprof content of the buffer sequentially. Throws an {@link IllegalStateException}
+   * if the content isn't a heap dump this index understands.
+   */
+  static HprofIndex build(HprofBuffer buffer) {
+    return build(buffer, null, 1);
+  }
+
+  /**
+   * Like {@link #build(HprofBuffer)}, decoding the heap dump segments on up to parallelism threads.
+   * A first pass only records where the heap dump records are, consecutive records are then grouped
+   * into chunks that are each decoded with a buffer of their own from source, and the per chunk
+   * tables are merged.
+   */
+  static HprofIndex build(HprofBuffer buffer, BufferSource source, int parallelism) {
+    int idSize = readHeader(buffer);
+    Indexer indexer = new Indexer(buffer, idSize);
+    TLongArrayList heapDumpStarts = new TLongArrayList();
+    TLongArrayList heapDumpEnds = new TLongArrayList();
+    while (buffer.hasRemaining()) {
+      int tag = buffer.readByte() & 0xff;
+      // Time offset.
+      buffer.readInt();
+      long lengthPosition = buffer.position();
+      long length = buffer.readInt() & 0xffffffffL;
+      switch (tag) {
+        case TAG_STRING:
+          indexer.stringIds.add(indexer.readId());
+          indexer.stringPositions.add(lengthPosition);
+          skip(buffer, length - idSize);
+          break;
+        case TAG_LOAD_CLASS:
+          // Class serial number.
+          buffer.readInt();
+          indexer.loadClassIds.add(indexer.readId());
+          // Stack trace serial number.
+          buffer.readInt();
+          indexer.loadClassNameIds.add(indexer.readId());
+          break;
+        case TAG_HEAP_DUMP:
+        case TAG_HEAP_DUMP_SEGMENT:
+          heapDumpStarts.add(buffer.position());
+          heapDumpEnds.add(buffer.position() + length);
+          skip(buffer, length);
+          break;
+        default:
+          skip(buffer, length);
+          break;
+      }
+    }
+    long[] starts = heapDumpStarts.toNativeArray();
+    long[] ends = heapDumpEnds.toNativeArray();
+    int[] chunks = chunks(starts, ends, parallelism);
+    HeapTables heap;
+    if (source == null || chunks.length <= 2) {
+      heap = new HeapDumpReader(buffer, idSize).read(starts, ends, 0, starts.length);
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        heap = pool.invoke(new HeapDumpTask(source, idSize, starts, ends, chunks, 0,
+            chunks.length - 1));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return indexer.finish(heap);
+  }
+
+  /** Reads the hprof header from the start of the buffer, returns the size of ids. */
+  static int readHeader(HprofBuffer buffer) {
+    buffer.setPosition(0);
+    // "JAVA PROFILE 1.0.3", null terminated.
+    while (buffer.readByte() != 0) {
+    }
+    int idSize = buffer.readInt();
+    if (idSize != 4 && idSize != 8) {
+      throw new IllegalStateException("Unexpected id size " + idSize);
+    }
+    // Timestamp.
+    buffer.readLong();
+    return idSize;
+  }
+
+  /**
+   * Returns the length of a gc root sub record after its tag, or -1 if the tag isn't a root. Thread
+   * objects count as roots here.
+   */
+  static int rootRecordLength(int subTag, int idSize) {
+    switch (subTag) {
+      case ROOT_UNKNOWN:
+      case ROOT_STICKY_CLASS:
+      case ROOT_MONITOR_USED:
+      case ROOT_INTERNED_STRING:
+      case ROOT_FINALIZING:
+      case ROOT_DEBUGGER:
+      case ROOT_REFERENCE_CLEANUP:
+      case ROOT_VM_INTERNAL:
+      case ROOT_UNREACHABLE:
+        return idSize;
+      case ROOT_NATIVE_STACK:
+      case ROOT_THREAD_BLOCK:
+        return idSize + 4;
+      case ROOT_JNI_LOCAL:
+      case ROOT_JAVA_FRAME:
+      case ROOT_JNI_MONITOR:
+      case ROOT_THREAD_OBJECT:
+        return idSize + 8;
+      case ROOT_JNI_GLOBAL:
+        return 2 * idSize;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Groups consecutive heap dump records into chunks of similar sizes, a few per thread so that
+   * uneven chunks still balance. Returns the record index each chunk starts at, followed by the
+   * record count.
+   */
+  private static int[] chunks(long[] starts, long[] ends, int parallelism) {
+    long totalBytes = 0;
+    for (int i = 0; i < starts.length; i++) {
+      totalBytes += ends[i] - starts[i];
+    }
+    long chunkBytes = Math.max(MIN_CHUNK_BYTES, totalBytes / Math.max(1, parallelism * 2));
+    TIntArrayList chunks = new TIntArrayList();
+    chunks.add(0);
+    long bytes = 0;
+    for (int i = 0; i < starts.length; i++) {
+      bytes += ends[i] - starts[i];
+      if (bytes >= chunkBytes && i + 1 < starts.length) {
+        chunks.add(i + 1);
+        bytes = 0;
+      }
+    }
+    chunks.add(starts.length);
+    return chunks.toNativeArray();
+  }
+
+  @Override int nodeCount() {
+    return objectIds.limit();
+  }
+
+  @Override long objectId(int node) {
+    return objectIds.get(node);
+  }
+
+  @Override int nodeOf(long objectId) {
+    int node = binarySearch(objectIds, objectId);
+    return node >= 0 ? node : NO_NODE;
+  }
+
+  @Override byte kind(int node) {
+    return (byte) (objectPositions.get(node) >>> KIND_SHIFT);
+  }
+
+  @Override long arrayLength(int node) {
+    // id, stack trace serial number, element count.
+    buffer.setPosition(position(node) + idSize + 4);
+    return buffer.readInt() & 0xffffffffL;
+  }
+
+  @Override byte arrayElementType(int node) {
+    if (kind(node) == KIND_OBJECT_ARRAY) {
+      return TYPE_OBJECT;
+    }
+    // id, stack trace serial number, element count, element type.
+    buffer.setPosition(position(node) + idSize + 8);
+    return buffer.readByte();
+  }
+
+  @Override int classOrdinal(int node) {
+    switch (kind(node)) {
+      case KIND_CLASS:
+        return classOrdinalOf(objectIds.get(node));
+      case KIND_INSTANCE:
+        // id, stack trace serial number, class id.
+        buffer.setPosition(position(node) + idSize + 4);
+        return classOrdinalOf(readId());
+      case KIND_OBJECT_ARRAY:
+        // id, stack trace serial number, element count, array class id.
+        buffer.setPosition(position(node) + idSize + 8);
+        return classOrdinalOf(readId());
+      default:
+        return -1;
+    }
+  }
+
+  @Override ClassLayout classLayoutAt(int ordinal) {
+    return classLayouts[ordinal];
+  }
+
+  @Override int classCount() {
+    return classLayouts.length;
+  }
+
+  @Override void readEdges(int node, Edges edges) {
+    edges.clear();
+    switch (kind(node)) {
+      case KIND_CLASS: {
+        int ordinal = classOrdinalOf(objectIds.get(node));
+        byte[] types = staticFieldTypes[ordinal];
+        long[] values = staticFieldValues[ordinal];
+        for (int i = 0; i < types.length; i++) {
+          if (types[i] == TYPE_OBJECT) {
+            addEdge(edges, values[i], i);
+          }
+        }
+        break;
+      }
+      case KIND_INSTANCE: {
+        buffer.setPosition(position(node) + idSize + 4);
+        int ordinal = classOrdinalOf(readId());
+        if (ordinal == -1) {
+          return;
+        }
+        // Instance data length.
+        buffer.readInt();
+        byte[] types = instanceFieldTypes[ordinal];
+        for (int i = 0; i < types.length; i++) {
+          if (types[i] == TYPE_OBJECT) {
+            addEdge(edges, readId(), i);
+          } else {
+            skip(buffer, typeSize(types[i]));
+          }
+        }
+        break;
+      }
+      case KIND_OBJECT_ARRAY: {
+        buffer.setPosition(position(node) + idSize + 4);
+        int count = buffer.readInt();
+        // Array class id.
+        readId();
+        for (int i = 0; i < count; i++) {
+          addEdge(edges, readId(), i);
+        }
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  private void addEdge(Edges edges, long objectId, int reference) {
+    if (objectId == 0) {
+      return;
+    }
+    int target = nodeOf(objectId);
+    if (target != NO_NODE) {
+      edges.add(target, reference);
+    }
+  }
+
+  @Override int rootCount() {
+    return rootNodes.length;
+  }
+
+  @Override int rootNode(int root) {
+    return rootNodes[root];
+  }
+
+  @Override RootType rootType(int root) {
+    return rootTypes[root];
+  }
+
+  @Override int rootThreadNode(int root) {
+    return rootThreadNodes[root];
+  }
+
+  @Override String rootThreadName(int root) {
+    return rootThreadNames[root];
+  }
+
+  /** Returns the ordinal of the class with that name, or -1. */
+  int classOrdinal(String className) {
+    for (int ordinal = 0; ordinal < classLayouts.length; ordinal++) {
+      if (classLayouts[ordinal].className.equals(className)) {
+        return ordinal;
+      }
+    }
+    return -1;
+  }
+
+  /** The instances of exactly that class, subclasses excluded. */
+  TIntArrayList instancesOf(int classOrdinal) {
+    long classId = classIds[classOrdinal];
+    TIntArrayList instances = new TIntArrayList();
+    for (int node = 0; node < objectIds.limit(); node++) {
+      if (kind(node) == KIND_INSTANCE) {
+        buffer.setPosition(position(node) + idSize + 4);
+        if (readId() == classId) {
+          instances.add(node);
+        }
+      }
+    }
+    return instances;
+  }
+
+  /**
+   * Index of the first instance field with that name, looking at the class and then its
+   * superclasses like haha's ClassInstance#getValues() does. -1 if there is none.
+   */
+  int instanceFieldIndex(int classOrdinal, String fieldName) {
+    String[] names = classLayouts[classOrdinal].instanceFieldNames;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(fieldName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads an instance field of an instance: an object id for references, the bits of the value
+   * for primitives.
+   */
+  long readInstanceField(int node, int fieldIndex) {
+    buffer.setPosition(position(node) + idSize + 4);
+    byte[] types = instanceFieldTypes[classOrdinalOf(readId())];
+    // Instance data length.
+    buffer.readInt();
+    for (int i = 0; i < fieldIndex; i++) {
+      skip(buffer, typeSize(types[i]));
+    }
+    return readValue(types[fieldIndex]);
+  }
+
+  /** Like {@link HahaHelper#fieldValue}, throws if the instance has no such field. */
+  long fieldValue(int node, String fieldName) {
+    int fieldIndex = instanceFieldIndex(classOrdinal(node), fieldName);
+    if (fieldIndex == -1) {
+      throw new IllegalArgumentException("Field " + fieldName + " does not exists");
+    }
+    return readInstanceField(node, fieldIndex);
+  }
+
+  /** Decodes a String instance, returns null if it can't be decoded. */
+  String readString(int node) {
+    if (node == NO_NODE || kind(node) != KIND_INSTANCE) {
+      return null;
+    }
+    int ordinal = classOrdinal(node);
+    // Without a count field (not an Android String), the whole value array is used.
+    int countField = instanceFieldIndex(ordinal, "count");
+    int count = countField == -1 ? -1 : (int) readInstanceField(node, countField);
+    if (count == 0) {
+      return "";
+    }
+    int valueNode = nodeOf(fieldValue(node, "value"));
+    if (valueNode == NO_NODE || kind(valueNode) != KIND_PRIMITIVE_ARRAY) {
+      return null;
+    }
+    buffer.setPosition(position(valueNode) - 1);
+    if ((buffer.readByte() & 0xff) == PRIMITIVE_ARRAY_NODATA) {
+      // Stripped.
+      return null;
+    }
+    // < API 23, substrings shared the char array of their parent.
+    int offsetField = instanceFieldIndex(ordinal, "offset");
+    int offset = offsetField == -1 ? 0 : (int) readInstanceField(node, offsetField);
+    buffer.setPosition(position(valueNode) + idSize + 4);
+    int length = buffer.readInt();
+    byte type = buffer.readByte();
+    if (count == -1) {
+      count = length;
+    }
+    if (type == TYPE_CHAR) {
+      offset = Math.max(0, Math.min(offset, length));
+      int charCount = Math.min(count, length - offset);
+      skip(buffer, offset * 2L);
+      char[] chars = new char[charCount];
+      for (int i = 0; i < charCount; i++) {
+        chars[i] = buffer.readChar();
+      }
+      return new String(chars);
+    } else if (type == TYPE_BYTE) {
+      // In API 26, Strings are now internally represented as byte arrays.
+      byte[] bytes = new byte[Math.min(count, length)];
+      buffer.read(bytes);
+      return new String(bytes, UTF_8);
+    } else {
+      throw new UnsupportedOperationException("Could not find char array in " + describe(node));
+    }
+  }
+
+  /** Like {@link HahaHelper#threadName}. */
+  String threadName(int threadNode) {
+    String name = readString(nodeOf(fieldValue(threadNode, "name")));
+    if (name == null) {
+      // Sometimes we can't find the String at the expected memory address in the heap dump.
+      // See https://github.com/square/leakcanary/issues/417 .
+      return "Thread name not available";
+    }
+    return name;
+  }
+
+  boolean extendsThread(int classOrdinal) {
+    ClassLayout layout = classLayouts[classOrdinal];
+    while (layout.superOrdinal != -1) {
+      if (layout.className.equals(Thread.class.getName())) {
+        return true;
+      }
+      layout = classLayouts[layout.superOrdinal];
+    }
+    return false;
+  }
+
+  /** The static fields of classes, and the fields of instances and arrays, with their values. */
+  List<LeakReference> describeFields(int node) {
+    List<LeakReference> leakReferences = new ArrayList<>();
+    byte kind = kind(node);
+    int ordinal = classOrdinal(node);
+    if (kind == KIND_OBJECT_ARRAY) {
+      buffer.setPosition(position(node) + idSize + 4);
+      int count = buffer.readInt();
+      readId();
+      long[] values = new long[count];
+      for (int i = 0; i < count; i++) {
+        values[i] = readId();
+      }
+      for (int i = 0; i < count; i++) {
+        leakReferences.add(new LeakReference(ARRAY_ENTRY, Integer.toString(i),
+            valueAsString(TYPE_OBJECT, values[i])));
+      }
+      return leakReferences;
+    }
+    if (ordinal == -1 || kind == KIND_PRIMITIVE_ARRAY) {
+      return leakReferences;
+    }
+    ClassLayout layout = classLayouts[ordinal];
+    byte[] types = staticFieldTypes[ordinal];
+    for (int i = 0; i < types.length; i++) {
+      leakReferences.add(new LeakReference(STATIC_FIELD, layout.staticFieldNames[i],
+          valueAsString(types[i], staticFieldValues[ordinal][i])));
+    }
+    if (kind == KIND_INSTANCE) {
+      types = instanceFieldTypes[ordinal];
+      // Read every value first, describing a value moves the buffer.
+      long[] values = new long[types.length];
+      buffer.setPosition(position(node) + 2L * idSize + 8);
+      for (int i = 0; i < types.length; i++) {
+        values[i] = readValue(types[i]);
+      }
+      for (int i = 0; i < types.length; i++) {
+        leakReferences.add(new LeakReference(INSTANCE_FIELD, layout.instanceFieldNames[i],
+            valueAsString(types[i], values[i])));
+      }
+    }
+    return leakReferences;
+  }
+
+  /** Like {@link HahaHelper#valueAsString}. */
+  String valueAsString(byte type, long value) {
+    switch (type) {
+      case TYPE_OBJECT:
+        int node = value == 0 ? NO_NODE : nodeOf(value);
+        if (node == NO_NODE) {
+          return "null";
+        }
+        ClassLayout layout = kind(node) == KIND_INSTANCE ? classLayout(node) : null;
+        if (layout != null && layout.isString) {
+          return '"' + readString(node) + '"';
+        }
+        return describe(node);
+      case TYPE_BOOLEAN:
+        return Boolean.toString(value != 0);
+      case TYPE_CHAR:
+        return Character.toString((char) value);
+      case TYPE_FLOAT:
+        return Float.toString(Float.intBitsToFloat((int) value));
+      case TYPE_DOUBLE:
+        return Double.toString(Double.longBitsToDouble(value));
+      case TYPE_BYTE:
+        return Byte.toString((byte) value);
+      case TYPE_SHORT:
+        return Short.toString((short) value);
+      case TYPE_INT:
+        return Integer.toString((int) value);
+      case TYPE_LONG:
+        return Long.toString(value);
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+
+  private long position(int node) {
+    return objectPositions.get(node) & POSITION_MASK;
+  }
+
+  private int classOrdinalOf(long classId) {
+    int ordinal = Arrays.binarySearch(classIds, classId);
+    return ordinal >= 0 ? ordinal : -1;
+  }
+
+  private long readId() {
+    return readId(buffer, idSize);
+  }
+
+  private long readValue(byte type) {
+    return readValue(buffer, idSize, type);
+  }
+
+  private int typeSize(byte type) {
+    return typeSize(type, idSize);
+  }
+
+  private String string(long stringId) {
+    int index = binarySearch(stringIds, stringId);
+    if (index < 0) {
+      return null;
+    }
+    buffer.setPosition(stringPositions.get(index));
+    long length = buffer.readInt() & 0xffffffffL;
+    skip(buffer, idSize);
+    byte[] bytes = new byte[(int) (length - idSize)];
+    buffer.read(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  static long readId(HprofBuffer buffer, int idSize) {
+    return idSize == 4 ? buffer.readInt() & 0xffffffffL : buffer.readLong();
+  }
+
+  static long readValue(HprofBuffer buffer, int idSize, byte type) {
+    switch (type) {
+      case TYPE_OBJECT:
+        return readId(buffer, idSize);
+      case TYPE_BOOLEAN:
+      case TYPE_BYTE:
+        return buffer.readByte();
+      case TYPE_CHAR:
+        return buffer.readChar();
+      case TYPE_SHORT:
+        return buffer.readShort();
+      case TYPE_FLOAT:
+      case TYPE_INT:
+        return buffer.readInt();
+      case TYPE_DOUBLE:
+      case TYPE_LONG:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+
+  static int typeSize(byte type, int idSize) {
+    switch (type) {
+      case TYPE_OBJECT:
+        return idSize;
+      case TYPE_BOOLEAN:
+      case TYPE_BYTE:
+        return 1;
+      case TYPE_CHAR:
+      case TYPE_SHORT:
+        return 2;
+      case TYPE_FLOAT:
+      case TYPE_INT:
+        return 4;
+      case TYPE_DOUBLE:
+      case TYPE_LONG:
+        return 8;
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+
+  /** Buffers that hold a file or a pooled buffer are {@link Closeable}. */
+  static void closeQuietly(HprofBuffer buffer) {
+    if (buffer instanceof Closeable) {
+      try {
+        ((Closeable) buffer).close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  static void skip(HprofBuffer buffer, long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+
+  /** Opens another buffer over the same dump, every parallel task reads with its own. */
+  interface BufferSource {
+    HprofBuffer open() throws IOException;
+  }
+
+  /** A class dump record, until the class ordinals are known. */
+  private static final class ClassDump {
+    long id;
+    long superId;
+    long[] staticFieldNameIds;
+    byte[] staticFieldTypes;
+    long[] staticFieldValues;
+    long[] instanceFieldNameIds;
+    byte[] instanceFieldTypes;
+  }
+
+  /** What the heap dump records of a chunk of the dump hold, objects sorted by id. */
+  private static final class HeapTables {
+    long[] objectIds;
+    long[] objectPositions;
+    final List<ClassDump> classDumps = new ArrayList<>();
+    final TLongArrayList rootIds = new TLongArrayList();
+    final List<RootType> rootTypes = new ArrayList<>();
+    final TIntArrayList rootThreadSerials = new TIntArrayList();
+    final Map<Integer, Long> threadIdsBySerial = new HashMap<>();
+
+    /** Merges the tables of two consecutive chunks, keeping the dump order of the roots. */
+    static HeapTables merge(HeapTables first, HeapTables second) {
+      HeapTables merged = new HeapTables();
+      int firstCount = first.objectIds.length;
+      int secondCount = second.objectIds.length;
+      merged.objectIds = new long[firstCount + secondCount];
+      merged.objectPositions = new long[firstCount + secondCount];
+      int i = 0;
+      int j = 0;
+      for (int k = 0; k < merged.objectIds.length; k++) {
+        if (j == secondCount || (i < firstCount && first.objectIds[i] <= second.objectIds[j])) {
+          merged.objectIds[k] = first.objectIds[i];
+          merged.objectPositions[k] = first.objectPositions[i++];
+        } else {
+          merged.objectIds[k] = second.objectIds[j];
+          merged.objectPositions[k] = second.objectPositions[j++];
+        }
+      }
+      merged.classDumps.addAll(first.classDumps);
+      merged.classDumps.addAll(second.classDumps);
+      for (HeapTables tables : new HeapTables[] { first, second }) {
+        for (int root = 0; root < tables.rootIds.size(); root++) {
+          merged.rootIds.add(tables.rootIds.get(root));
+          merged.rootThreadSerials.add(tables.rootThreadSerials.get(root));
+        }
+        merged.rootTypes.addAll(tables.rootTypes);
+        merged.threadIdsBySerial.putAll(tables.threadIdsBySerial);
+      }
+      return merged;
+    }
+  }
+
+  /** Decodes heap dump records into {@link HeapTables}. */
+  private static final class HeapDumpReader {
+    final HprofBuffer buffer;
+    final int idSize;
+    final HeapTables tables = new HeapTables();
+    final TLongArrayList objectIds = new TLongArrayList();
+    final TLongArrayList objectPositions = new TLongArrayList();
+
+    HeapDumpReader(HprofBuffer buffer, int idSize) {
+      this.buffer = buffer;
+      this.idSize = idSize;
+    }
+
+    long readId() {
+      return HprofIndex.readId(buffer, idSize);
+    }
+
+    /** Reads the heap dump records [from, to). */
+    HeapTables read(long[] starts, long[] ends, int from, int to) {
+      for (int i = from; i < to; i++) {
+        buffer.setPosition(starts[i]);
+        indexHeapDump(ends[i]);
+      }
+      tables.objectIds = objectIds.toNativeArray();
+      tables.objectPositions = objectPositions.toNativeArray();
+      objectIds.clear();
+      objectPositions.clear();
+      sortByKey(tables.objectIds, tables.objectPositions);
+      return tables;
+    }
+
+    void indexHeapDump(long end) {
+      while (buffer.position() < end) {
+        int subTag = buffer.readByte() & 0xff;
+        switch (subTag) {
+          case ROOT_UNKNOWN:
+            addRoot(RootType.UNKNOWN, 0);
+            break;
+          case ROOT_JNI_GLOBAL:
+            addRoot(RootType.NATIVE_STATIC, idSize);
+            break;
+          case ROOT_JNI_LOCAL:
+            addRoot(RootType.NATIVE_LOCAL, 8);
+            break;
+          case ROOT_JAVA_FRAME: {
+            long id = readId();
+            int threadSerial = buffer.readInt();
+            // Frame number.
+            buffer.readInt();
+            tables.rootIds.add(id);
+            tables.rootTypes.add(RootType.JAVA_LOCAL);
+            tables.rootThreadSerials.add(threadSerial);
+            break;
+          }
+          case ROOT_NATIVE_STACK:
+            addRoot(RootType.NATIVE_STACK, 4);
+            break;
+          case ROOT_STICKY_CLASS:
+            addRoot(RootType.SYSTEM_CLASS, 0);
+            break;
+          case ROOT_THREAD_BLOCK:
+            addRoot(RootType.THREAD_BLOCK, 4);
+            break;
+          case ROOT_MONITOR_USED:
+            addRoot(RootType.BUSY_MONITOR, 0);
+            break;
+          case ROOT_THREAD_OBJECT: {
+            // Not a gc root for haha either, only maps thread serial numbers to threads.
+            long id = readId();
+            int threadSerial = buffer.readInt();
+            // Stack trace serial number.
+            buffer.readInt();
+            tables.threadIdsBySerial.put(threadSerial, id);
+            break;
+          }
+          case ROOT_INTERNED_STRING:
+            addRoot(RootType.INTERNED_STRING, 0);
+            break;
+          case ROOT_FINALIZING:
+            addRoot(RootType.FINALIZING, 0);
+            break;
+          case ROOT_DEBUGGER:
+            addRoot(RootType.DEBUGGER, 0);
+            break;
+          case ROOT_REFERENCE_CLEANUP:
+            addRoot(RootType.REFERENCE_CLEANUP, 0);
+            break;
+          case ROOT_VM_INTERNAL:
+            addRoot(RootType.VM_INTERNAL, 0);
+            break;
+          case ROOT_JNI_MONITOR:
+            addRoot(RootType.NATIVE_MONITOR, 8);
+            break;
+          case ROOT_UNREACHABLE:
+            addRoot(RootType.UNREACHABLE, 0);
+            break;
+          case CLASS_DUMP:
+            addObject(KIND_CLASS);
+            indexClassDump();
+            break;
+          case INSTANCE_DUMP: {
+            addObject(KIND_INSTANCE);
+            // id, stack trace serial number, class id.
+            skip(buffer, 2L * idSize + 4);
+            long length = buffer.readInt() & 0xffffffffL;
+            skip(buffer, length);
+            break;
+          }
+          case OBJECT_ARRAY_DUMP: {
+            addObject(KIND_OBJECT_ARRAY);
+            skip(buffer, idSize + 4);
+            long count = buffer.readInt() & 0xffffffffL;
+            skip(buffer, idSize + count * idSize);
+            break;
+          }
+          case PRIMITIVE_ARRAY_DUMP: {
+            addObject(KIND_PRIMITIVE_ARRAY);
+            skip(buffer, idSize + 4);
+            long count = buffer.readInt() & 0xffffffffL;
+            byte type = buffer.readByte();
+            skip(buffer, count * typeSize(type, idSize));
+            break;
+          }
+          case PRIMITIVE_ARRAY_NODATA:
+            // id, stack trace serial number, element count, type. An array without its content,
+            // as written by PrimitiveArrayStripper.
+            addObject(KIND_PRIMITIVE_ARRAY);
+            skip(buffer, idSize + 9);
+            break;
+          case HEAP_DUMP_INFO:
+            // Heap id, heap name string id.
+            skip(buffer, 4 + idSize);
+            break;
+          default:
+            throw new IllegalStateException("Unknown heap dump sub record 0x"
+                + Integer.toHexString(subTag) + " at " + (buffer.position() - 1));
+        }
+      }
+    }
+
+    private void addRoot(RootType rootType, int extraBytes) {
+      tables.rootIds.add(readId());
+      tables.rootTypes.add(rootType);
+      tables.rootThreadSerials.add(0);
+      skip(buffer, extraBytes);
+    }
+
+    private void addObject(byte kind) {
+      long position = buffer.position();
+      objectIds.add(readId());
+      buffer.setPosition(position);
+      objectPositions.add(position | ((long) kind << KIND_SHIFT));
+    }
+
+    private void indexClassDump() {
+      ClassDump classDump = new ClassDump();
+      classDump.id = readId();
+      // Stack trace serial number.
+      buffer.readInt();
+      classDump.superId = readId();
+      // Class loader, signers, protection domain, two reserved ids.
+      skip(buffer, 5L * idSize);
+      // Instance size.
+      buffer.readInt();
+      int constantPoolCount = buffer.readShort() & 0xffff;
+      for (int i = 0; i < constantPoolCount; i++) {
+        buffer.readShort();
+        skip(buffer, typeSize(buffer.readByte(), idSize));
+      }
+      int staticFieldCount = buffer.readShort() & 0xffff;
+      classDump.staticFieldNameIds = new long[staticFieldCount];
+      classDump.staticFieldTypes = new byte[staticFieldCount];
+      classDump.staticFieldValues = new long[staticFieldCount];
+      for (int i = 0; i < staticFieldCount; i++) {
+        classDump.staticFieldNameIds[i] = readId();
+        byte type = buffer.readByte();
+        classDump.staticFieldTypes[i] = type;
+        classDump.staticFieldValues[i] = HprofIndex.readValue(buffer, idSize, type);
+      }
+      int instanceFieldCount = buffer.readShort() & 0xffff;
+      classDump.instanceFieldNameIds = new long[instanceFieldCount];
+      classDump.instanceFieldTypes = new byte[instanceFieldCount];
+      for (int i = 0; i < instanceFieldCount; i++) {
+        classDump.instanceFieldNameIds[i] = readId();
+        classDump.instanceFieldTypes[i] = buffer.readByte();
+      }
+      tables.classDumps.add(classDump);
+    }
+
+  }
+
+  /** Reads a range of chunks, splitting it in two until it's a single chunk. */
+  private static final class HeapDumpTask extends RecursiveTask<HeapTables> {
+    private final BufferSource source;
+    private final int idSize;
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] chunks;
+    private final int fromChunk;
+    private final int toChunk;
+
+    HeapDumpTask(BufferSource source, int idSize, long[] starts, long[] ends, int[] chunks,
+        int fromChunk, int toChunk) {
+      this.source = source;
+      this.idSize = idSize;
+      this.starts = starts;
+      this.ends = ends;
+      this.chunks = chunks;
+      this.fromChunk = fromChunk;
+      this.toChunk = toChunk;
+    }
+
+    @Override protected HeapTables compute() {
+      if (toChunk - fromChunk == 1) {
+        HprofBuffer buffer;
+        try {
+          buffer = source.open();
+        } catch (IOException e) {
+          throw new IllegalStateException("Could not open the heap dump", e);
+        }
+        try {
+          return new HeapDumpReader(buffer, idSize).read(starts, ends, chunks[fromChunk],
+              chunks[toChunk]);
+        } finally {
+          closeQuietly(buffer);
+        }
+      }
+      int middle = (fromChunk + toChunk) >>> 1;
+      HeapDumpTask first =
+          new HeapDumpTask(source, idSize, starts, ends, chunks, fromChunk, middle);
+      first.fork();
+      HeapTables second =
+          new HeapDumpTask(source, idSize, starts, ends, chunks, middle, toChunk).compute();
+      return HeapTables.merge(first.join(), second);
+    }
+  }
+
+  /** State of the top level records, and the resolution of the merged heap tables. */
+  private static final class Indexer {
+    final HprofBuffer buffer;
+    final int idSize;
+    final TLongArrayList stringIds = new TLongArrayList();
+    final TLongArrayList stringPositions = new TLongArrayList();
+    final TLongArrayList loadClassIds = new TLongArrayList();
+    final TLongArrayList loadClassNameIds = new TLongArrayList();
+
+    Indexer(HprofBuffer buffer, int idSize) {
+      this.buffer = buffer;
+      this.idSize = idSize;
+    }
+
+    long readId() {
+      return HprofIndex.readId(buffer, idSize);
+    }
+
+    HprofIndex finish(HeapTables heap) {
+      long[] sortedStringIds = stringIds.toNativeArray();
+      long[] sortedStringPositions = stringPositions.toNativeArray();
+      sortByKey(sortedStringIds, sortedStringPositions);
+      long[] sortedObjectIds = heap.objectIds;
+      long[] sortedObjectPositions = heap.objectPositions;
+      List<ClassDump> classDumps = heap.classDumps;
+      long[] classNameKeys = loadClassIds.toNativeArray();
+      long[] classNameIds = loadClassNameIds.toNativeArray();
+      sortByKey(classNameKeys, classNameIds);
+
+      Collections.sort(classDumps, new Comparator<ClassDump>() {
+        @Override public int compare(ClassDump lhs, ClassDump rhs) {
+          return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+        }
+      });
+      long[] classIds = new long[classDumps.size()];
+      for (int ordinal = 0; ordinal < classIds.length; ordinal++) {
+        classIds[ordinal] = classDumps.get(ordinal).id;
+      }
+
+      HprofIndex index = new HprofIndex(buffer, idSize, LongBuffer.wrap(sortedStringIds),
+          LongBuffer.wrap(sortedStringPositions), LongBuffer.wrap(sortedObjectIds),
+          LongBuffer.wrap(sortedObjectPositions), classIds);
+      Map<Long, String> strings = new HashMap<>();
+      for (int ordinal = 0; ordinal < classIds.length; ordinal++) {
+        ClassDump classDump = classDumps.get(ordinal);
+        int nameIndex = Arrays.binarySearch(classNameKeys, classDump.id);
+        String className = nameIndex < 0 ? "Unknown class 0x" + Long.toHexString(classDump.id)
+            : cachedString(index, strings, classNameIds[nameIndex]);
+        // Instance fields of the class first, then of each superclass.
+        int instanceFieldCount = 0;
+        for (ClassDump clazz = classDump; clazz != null;
+            clazz = find(classDumps, classIds, clazz.superId)) {
+          instanceFieldCount += clazz.instanceFieldTypes.length;
+        }
+        String[] instanceFieldNames = new String[instanceFieldCount];
+        byte[] instanceTypes = new byte[instanceFieldCount];
+        int field = 0;
+        for (ClassDump clazz = classDump; clazz != null;
+            clazz = find(classDumps, classIds, clazz.superId)) {
+          for (int i = 0; i < clazz.instanceFieldTypes.length; i++) {
+            instanceFieldNames[field] = cachedString(index, strings, clazz.instanceFieldNameIds[i]);
+            instanceTypes[field] = clazz.instanceFieldTypes[i];
+            field++;
+          }
+        }
+        String[] staticFieldNames = new String[classDump.staticFieldNameIds.length];
+        for (int i = 0; i < staticFieldNames.length; i++) {
+          staticFieldNames[i] = cachedString(index, strings, classDump.staticFieldNameIds[i]);
+        }
+        int superOrdinal = index.classOrdinalOf(classDump.superId);
+        index.classLayouts[ordinal] = new ClassLayout(className, superOrdinal,
+            index.nodeOf(classDump.id), instanceFieldNames, instanceTypes, staticFieldNames,
+            classDump.staticFieldTypes);
+        index.instanceFieldTypes[ordinal] = instanceTypes;
+        index.staticFieldTypes[ordinal] = classDump.staticFieldTypes;
+        index.staticFieldValues[ordinal] = classDump.staticFieldValues;
+      }
+      classDumps.clear();
+
+      // Gc roots. Roots are not nodes, they point to the node they keep alive.
+      RootTable roots = new RootTable();
+      Map<Integer, String> threadNames = new HashMap<>();
+      for (int root = 0; root < heap.rootIds.size(); root++) {
+        int rootNode = index.nodeOf(heap.rootIds.get(root));
+        RootType rootType = heap.rootTypes.get(root);
+        if (rootNode == NO_NODE || roots.contains(rootType, rootNode)) {
+          continue;
+        }
+        int threadNode = NO_NODE;
+        String threadName = null;
+        if (rootType == RootType.JAVA_LOCAL) {
+          Long threadId = heap.threadIdsBySerial.get(heap.rootThreadSerials.get(root));
+          threadNode = threadId == null ? NO_NODE : index.nodeOf(threadId);
+          if (threadNode != NO_NODE) {
+            threadName = threadNames.get(threadNode);
+            if (threadName == null) {
+              threadName = index.threadName(threadNode);
+              threadNames.put(threadNode, threadName);
+            }
+          }
+        }
+        roots.add(rootType, rootNode, threadNode, threadName);
+      }
+      roots.finish();
+      index.rootNodes = roots.rootNodes;
+      index.rootTypes = roots.rootTypes;
+      index.rootThreadNodes = roots.rootThreadNodes;
+      index.rootThreadNames = roots.rootThreadNames;
+      return index;
+    }
+
+    private static ClassDump find(List<ClassDump> classDumps, long[] classIds, long classId) {
+      int ordinal = Arrays.binarySearch(classIds, classId);
+      return ordinal >= 0 ? classDumps.get(ordinal) : null;
+    }
+
+    private static String cachedString(HprofIndex index, Map<Long, String> strings, long id) {
+      String string = strings.get(id);
+      if (string == null) {
+        string = index.string(id);
+        if (string == null) {
+          string = "Unknown string 0x" + Long.toHexString(id);
+        }
+        strings.put(id, string);
+      }
+      return string;
+    }
+  }
+
+  /** Like {@link Arrays#binarySearch(long[], long)}, on a buffer that may be memory mapped. */
+  static int binarySearch(LongBuffer sortedKeys, long key) {
+    int low = 0;
+    int high = sortedKeys.limit() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long middleKey = sortedKeys.get(middle);
+      if (middleKey < key) {
+        low = middle + 1;
+      } else if (middleKey > key) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /** Sorts keys in place, applying the same moves to values. */
+  static void sortByKey(long[] keys, long[] values) {
+    sortByKey(keys, values, 0, keys.length - 1);
+  }
+
+  private static void sortByKey(long[] keys, long[] values, int low, int high) {
+    while (high - low > 16) {
+      // Median of three, object ids are often already mostly sorted.
+      int middle = (low + high) >>> 1;
+      if (keys[middle] < keys[low]) {
+        swap(keys, values, middle, low);
+      }
+      if (keys[high] < keys[low]) {
+        swap(keys, values, high, low);
+      }
+      if (keys[high] < keys[middle]) {
+        swap(keys, values, high, middle);
+      }
+      long pivot = keys[middle];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i, j);
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller half to bound the stack depth.
+      if (j - low < high - i) {
+        sortByKey(keys, values, low, j);
+        low = i;
+      } else {
+        sortByKey(keys, values, i, high);
+        high = j;
+      }
+    }
+    for (int i = low + 1; i <= high; i++) {
+      long key = keys[i];
+      long value = values[i];
+      int j = i - 1;
+      while (j >= low && keys[j] > key) {
+        keys[j + 1] = keys[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      values[j + 1] = value;
+    }
+  }
+
+  private static void swap(long[] keys, long[] values, int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+}
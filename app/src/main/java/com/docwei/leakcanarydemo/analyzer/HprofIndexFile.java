@@ -0,0 +1,282 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import android.util.Log;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Persists an {@link HprofIndex} in a sidecar file next to its heap dump, so that analyzing the
+ * same dump again (a retry after a crash, different {@link ExcludedRefs}) doesn't re-parse it.
+ *
+ * The object and string tables are memory mapped from the sidecar, only the class and root tables
+ * are read into memory. The sidecar starts with a format version and a fingerprint of the dump
+ * (length, last modification time and a CRC32 of its first and last bytes): if either doesn't
+ * match, the dump is indexed again and the sidecar rewritten.
+ */
+final class HprofIndexFile {
+
+  static final String INDEX_SUFFIX = ".index";
+
+  private static final int MAGIC = 0x48505849;
+  /** Bump when the layout of the file changes. 2: roots deduplicated and grouped by type. */
+  private static final int VERSION = 2;
+  /** magic, version, dump length, last modified, crc, id size, 4 counts, padding. */
+  private static final int HEADER_SIZE = 56;
+  /** Bytes at each end of the dump covered by the fingerprint checksum. */
+  private static final int CHECKSUM_BYTES = 64 * 1024;
+
+  static File indexFileFor(File heapDumpFile) {
+    return new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + INDEX_SUFFIX);
+  }
+
+  /**
+   * Returns the index of the dump read from its sidecar if it's up to date, else indexes the dump
+   * held by buffer and writes the sidecar for the next time.
+   */
+  static HprofIndex open(final File heapDumpFile, HprofBuffer buffer) throws IOException {
+    File indexFile = indexFileFor(heapDumpFile);
+    long checksum = checksum(heapDumpFile);
+    if (indexFile.exists()) {
+      HprofIndex index = read(indexFile, heapDumpFile, checksum, buffer);
+      if (index != null) {
+        return index;
+      }
+      Log.d("leak1", "Stale heap dump index, rebuilding " + indexFile);
+    }
+    // Heap dump segments are decoded on every core, each with its own buffer over the dump.
+    HprofIndex.BufferSource source = new HprofIndex.BufferSource() {
+      @Override public HprofBuffer open() throws IOException {
+        return WindowedFileBuffer.open(heapDumpFile);
+      }
+    };
+    HprofIndex index =
+        HprofIndex.build(buffer, source, Runtime.getRuntime().availableProcessors());
+    try {
+      write(index, indexFile, heapDumpFile, checksum);
+    } catch (IOException e) {
+      // The index is only a cache, the analysis can go on without it.
+      Log.d("leak1", "Could not write the heap dump index " + indexFile);
+      indexFile.delete();
+    }
+    return index;
+  }
+
+  private static void write(HprofIndex index, File indexFile, File heapDumpFile, long checksum)
+      throws IOException {
+    // Written aside then renamed, a crash never leaves a truncated index with a valid header.
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      int objectCount = index.objectIds.limit();
+      int stringCount = index.stringIds.limit();
+      int classCount = index.classIds.length;
+      int rootCount = index.rootNodes.length;
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(heapDumpFile.length());
+      out.writeLong(heapDumpFile.lastModified());
+      out.writeLong(checksum);
+      out.writeInt(index.idSize);
+      out.writeInt(objectCount);
+      out.writeInt(stringCount);
+      out.writeInt(classCount);
+      out.writeInt(rootCount);
+      out.writeInt(0);
+
+      // Tables that are mapped back, 8 byte aligned.
+      writeLongs(out, index.objectIds);
+      writeLongs(out, index.objectPositions);
+      writeLongs(out, index.stringIds);
+      writeLongs(out, index.stringPositions);
+
+      for (int ordinal = 0; ordinal < classCount; ordinal++) {
+        HeapGraph.ClassLayout layout = index.classLayouts[ordinal];
+        out.writeLong(index.classIds[ordinal]);
+        out.writeUTF(layout.className);
+        out.writeInt(layout.superOrdinal);
+        out.writeInt(layout.classNode);
+        byte[] instanceFieldTypes = index.instanceFieldTypes[ordinal];
+        out.writeInt(instanceFieldTypes.length);
+        for (int i = 0; i < instanceFieldTypes.length; i++) {
+          out.writeUTF(layout.instanceFieldNames[i]);
+          out.writeByte(instanceFieldTypes[i]);
+        }
+        byte[] staticFieldTypes = index.staticFieldTypes[ordinal];
+        long[] staticFieldValues = index.staticFieldValues[ordinal];
+        out.writeInt(staticFieldTypes.length);
+        for (int i = 0; i < staticFieldTypes.length; i++) {
+          out.writeUTF(layout.staticFieldNames[i]);
+          out.writeByte(staticFieldTypes[i]);
+          out.writeLong(staticFieldValues[i]);
+        }
+      }
+      for (int root = 0; root < rootCount; root++) {
+        out.writeInt(index.rootNodes[root]);
+        out.writeByte(index.rootTypes[root].ordinal());
+        out.writeInt(index.rootThreadNodes[root]);
+        String threadName = index.rootThreadNames[root];
+        out.writeBoolean(threadName != null);
+        if (threadName != null) {
+          out.writeUTF(threadName);
+        }
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+    if (!tmpFile.renameTo(indexFile)) {
+      tmpFile.delete();
+      throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+    }
+  }
+
+  /** Returns null if the sidecar doesn't match the dump or this version. */
+  private static HprofIndex read(File indexFile, File heapDumpFile, long checksum,
+      HprofBuffer buffer) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        return null;
+      }
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      header.flip();
+      if (header.getInt() != MAGIC
+          || header.getInt() != VERSION
+          || header.getLong() != heapDumpFile.length()
+          || header.getLong() != heapDumpFile.lastModified()
+          || header.getLong() != checksum) {
+        return null;
+      }
+      int idSize = header.getInt();
+      int objectCount = header.getInt();
+      int stringCount = header.getInt();
+      int classCount = header.getInt();
+      int rootCount = header.getInt();
+
+      long position = HEADER_SIZE;
+      LongBuffer objectIds = map(channel, position, objectCount);
+      position += 8L * objectCount;
+      LongBuffer objectPositions = map(channel, position, objectCount);
+      position += 8L * objectCount;
+      LongBuffer stringIds = map(channel, position, stringCount);
+      position += 8L * stringCount;
+      LongBuffer stringPositions = map(channel, position, stringCount);
+      position += 8L * stringCount;
+
+      channel.position(position);
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      long[] classIds = new long[classCount];
+      HeapGraph.ClassLayout[] layouts = new HeapGraph.ClassLayout[classCount];
+      byte[][] instanceFieldTypes = new byte[classCount][];
+      byte[][] staticFieldTypes = new byte[classCount][];
+      long[][] staticFieldValues = new long[classCount][];
+      for (int ordinal = 0; ordinal < classCount; ordinal++) {
+        classIds[ordinal] = in.readLong();
+        String className = in.readUTF();
+        int superOrdinal = in.readInt();
+        int classNode = in.readInt();
+        int instanceFieldCount = in.readInt();
+        String[] instanceFieldNames = new String[instanceFieldCount];
+        instanceFieldTypes[ordinal] = new byte[instanceFieldCount];
+        for (int i = 0; i < instanceFieldCount; i++) {
+          instanceFieldNames[i] = in.readUTF();
+          instanceFieldTypes[ordinal][i] = in.readByte();
+        }
+        int staticFieldCount = in.readInt();
+        String[] staticFieldNames = new String[staticFieldCount];
+        staticFieldTypes[ordinal] = new byte[staticFieldCount];
+        staticFieldValues[ordinal] = new long[staticFieldCount];
+        for (int i = 0; i < staticFieldCount; i++) {
+          staticFieldNames[i] = in.readUTF();
+          staticFieldTypes[ordinal][i] = in.readByte();
+          staticFieldValues[ordinal][i] = in.readLong();
+        }
+        layouts[ordinal] = new HeapGraph.ClassLayout(className, superOrdinal, classNode,
+            instanceFieldNames, instanceFieldTypes[ordinal], staticFieldNames,
+            staticFieldTypes[ordinal]);
+      }
+
+      HprofIndex index = new HprofIndex(buffer, idSize, stringIds, stringPositions, objectIds,
+          objectPositions, classIds);
+      System.arraycopy(layouts, 0, index.classLayouts, 0, classCount);
+      System.arraycopy(instanceFieldTypes, 0, index.instanceFieldTypes, 0, classCount);
+      System.arraycopy(staticFieldTypes, 0, index.staticFieldTypes, 0, classCount);
+      System.arraycopy(staticFieldValues, 0, index.staticFieldValues, 0, classCount);
+
+      RootType[] rootTypeValues = RootType.values();
+      index.rootNodes = new int[rootCount];
+      index.rootTypes = new RootType[rootCount];
+      index.rootThreadNodes = new int[rootCount];
+      index.rootThreadNames = new String[rootCount];
+      for (int root = 0; root < rootCount; root++) {
+        index.rootNodes[root] = in.readInt();
+        index.rootTypes[root] = rootTypeValues[in.readByte()];
+        index.rootThreadNodes[root] = in.readInt();
+        index.rootThreadNames[root] = in.readBoolean() ? in.readUTF() : null;
+      }
+      return index;
+    } catch (IOException | RuntimeException e) {
+      // Truncated or corrupted, treated as stale.
+      return null;
+    } finally {
+      // Mappings stay valid once the file is closed.
+      file.close();
+    }
+  }
+
+  private static LongBuffer map(FileChannel channel, long position, int count)
+      throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * count).asLongBuffer();
+  }
+
+  private static void writeLongs(DataOutputStream out, LongBuffer values) throws IOException {
+    for (int i = 0, size = values.limit(); i < size; i++) {
+      out.writeLong(values.get(i));
+    }
+  }
+
+  /** CRC32 of the first and last {@link #CHECKSUM_BYTES} of the dump. */
+  private static long checksum(File heapDumpFile) throws IOException {
+    CRC32 crc = new CRC32();
+    RandomAccessFile file = new RandomAccessFile(heapDumpFile, "r");
+    try {
+      long length = file.length();
+      byte[] bytes = new byte[(int) Math.min(CHECKSUM_BYTES, length)];
+      file.readFully(bytes);
+      crc.update(bytes);
+      if (length > CHECKSUM_BYTES) {
+        bytes = new byte[(int) Math.min(CHECKSUM_BYTES, length - CHECKSUM_BYTES)];
+        file.seek(length - bytes.length);
+        file.readFully(bytes);
+        crc.update(bytes);
+      }
+    } finally {
+      file.close();
+    }
+    return crc.getValue();
+  }
+
+  private HprofIndexFile() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,268 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TLongArrayList;
+
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.CLASS_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.HEAP_DUMP_INFO;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.INSTANCE_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.PRIMITIVE_ARRAY_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.PRIMITIVE_ARRAY_NODATA;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_HEAP_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_HEAP_DUMP_SEGMENT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_LOAD_CLASS;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_STRING;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_LONG;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_OBJECT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.readId;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.rootRecordLength;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.skip;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.typeSize;
+
+/**
+ * Tells whether a heap dump is a false alarm without indexing it.
+ *
+ * The watched objects may be collected between the retained check and the dump. A single pass over
+ * the hprof records decodes only the strings, class dumps and {@link KeyedWeakReference} instances
+ * it needs and skips every other record, then reads the key and referent of those instances.
+ */
+final class KeyedReferenceScanner {
+
+  private static final byte[] KEY_FIELD = bytes("key");
+  private static final byte[] REFERENT_FIELD = bytes("referent");
+
+  /**
+   * Returns true if the weak reference of every key was found in the dump with a null referent.
+   * Returns false if a referent is still set, or if the scan can't tell: the full analysis decides.
+   */
+  static boolean allReferentsCleared(HprofBuffer buffer, long[] keys) {
+    return allReferentsCleared(buffer, KeyedWeakReference.class.getName(), keys);
+  }
+
+  static boolean allReferentsCleared(HprofBuffer buffer, String referenceClassName,
+      long[] keys) {
+    try {
+      return new KeyedReferenceScanner(buffer, bytes(referenceClassName)).scan(keys);
+    } catch (RuntimeException e) {
+      // Unknown record or truncated dump, the analysis will report it.
+      return false;
+    }
+  }
+
+  private static final class ClassFields {
+    final long superId;
+    final long[] nameIds;
+    final byte[] types;
+
+    ClassFields(long superId, long[] nameIds, byte[] types) {
+      this.superId = superId;
+      this.nameIds = nameIds;
+      this.types = types;
+    }
+  }
+
+  private final HprofBuffer buffer;
+  private final byte[] referenceClassName;
+  private int idSize;
+  private final Set<Long> classNameIds = new HashSet<>();
+  private final Set<Long> keyNameIds = new HashSet<>();
+  private final Set<Long> referentNameIds = new HashSet<>();
+  private long referenceClassId;
+  private final Map<Long, ClassFields> classFields = new HashMap<>();
+  /** Positions of the field values of the reference instances. */
+  private final TLongArrayList instancePositions = new TLongArrayList();
+
+  private KeyedReferenceScanner(HprofBuffer buffer, byte[] referenceClassName) {
+    this.buffer = buffer;
+    this.referenceClassName = referenceClassName;
+  }
+
+  private boolean scan(long[] keys) {
+    idSize = HprofIndex.readHeader(buffer);
+    while (buffer.hasRemaining()) {
+      int tag = buffer.readByte() & 0xff;
+      // Time offset.
+      buffer.readInt();
+      long length = buffer.readInt() & 0xffffffffL;
+      switch (tag) {
+        case TAG_STRING:
+          readString(length - idSize);
+          break;
+        case TAG_LOAD_CLASS:
+          // Class serial number.
+          buffer.readInt();
+          long classId = readId(buffer, idSize);
+          // Stack trace serial number.
+          buffer.readInt();
+          if (classNameIds.contains(readId(buffer, idSize))) {
+            referenceClassId = classId;
+          }
+          break;
+        case TAG_HEAP_DUMP:
+        case TAG_HEAP_DUMP_SEGMENT:
+          if (!scanHeapDump(buffer.position() + length)) {
+            return false;
+          }
+          break;
+        default:
+          skip(buffer, length);
+      }
+    }
+
+    int keyOffset = -1;
+    int referentOffset = -1;
+    int offset = 0;
+    for (long classId = referenceClassId; classId != 0; ) {
+      ClassFields fields = classFields.get(classId);
+      if (fields == null) {
+        return false;
+      }
+      for (int i = 0; i < fields.types.length; i++) {
+        long nameId = fields.nameIds[i];
+        if (keyOffset == -1 && fields.types[i] == TYPE_LONG && keyNameIds.contains(nameId)) {
+          keyOffset = offset;
+        } else if (referentOffset == -1
+            && fields.types[i] == TYPE_OBJECT
+            && referentNameIds.contains(nameId)) {
+          referentOffset = offset;
+        }
+        offset += typeSize(fields.types[i], idSize);
+      }
+      classId = fields.superId;
+    }
+    if (keyOffset == -1 || referentOffset == -1) {
+      return false;
+    }
+
+    Set<Long> remainingKeys = new HashSet<>();
+    for (long key : keys) {
+      remainingKeys.add(key);
+    }
+    for (int i = 0, size = instancePositions.size(); i < size; i++) {
+      long position = instancePositions.get(i);
+      buffer.setPosition(position + keyOffset);
+      if (!remainingKeys.remove(buffer.readLong())) {
+        continue;
+      }
+      buffer.setPosition(position + referentOffset);
+      if (readId(buffer, idSize) != 0) {
+        return false;
+      }
+    }
+    return remainingKeys.isEmpty();
+  }
+
+  /** Only reads the strings that can name the reference class or its fields. */
+  private void readString(long byteCount) {
+    long id = readId(buffer, idSize);
+    if (byteCount != referenceClassName.length
+        && byteCount != KEY_FIELD.length
+        && byteCount != REFERENT_FIELD.length) {
+      skip(buffer, byteCount);
+      return;
+    }
+    byte[] bytes = new byte[(int) byteCount];
+    buffer.read(bytes);
+    if (Arrays.equals(bytes, referenceClassName)) {
+      classNameIds.add(id);
+    } else if (Arrays.equals(bytes, KEY_FIELD)) {
+      keyNameIds.add(id);
+    } else if (Arrays.equals(bytes, REFERENT_FIELD)) {
+      referentNameIds.add(id);
+    }
+  }
+
+  /** Returns false if the reference instances can't be recognized. */
+  private boolean scanHeapDump(long end) {
+    while (buffer.position() < end) {
+      int subTag = buffer.readByte() & 0xff;
+      int rootLength = rootRecordLength(subTag, idSize);
+      if (rootLength >= 0) {
+        skip(buffer, rootLength);
+        continue;
+      }
+      switch (subTag) {
+        case CLASS_DUMP:
+          readClassDump();
+          break;
+        case INSTANCE_DUMP: {
+          // Id, stack trace serial number.
+          skip(buffer, idSize + 4);
+          long classId = readId(buffer, idSize);
+          long length = buffer.readInt() & 0xffffffffL;
+          if (classId == referenceClassId) {
+            instancePositions.add(buffer.position());
+          } else if (referenceClassId == 0) {
+            // The class is loaded before its instances are dumped, anything else is unexpected.
+            return false;
+          }
+          skip(buffer, length);
+          break;
+        }
+        case OBJECT_ARRAY_DUMP: {
+          skip(buffer, idSize + 4);
+          long count = buffer.readInt() & 0xffffffffL;
+          skip(buffer, idSize + count * idSize);
+          break;
+        }
+        case PRIMITIVE_ARRAY_DUMP: {
+          skip(buffer, idSize + 4);
+          long count = buffer.readInt() & 0xffffffffL;
+          byte type = buffer.readByte();
+          skip(buffer, count * typeSize(type, idSize));
+          break;
+        }
+        case PRIMITIVE_ARRAY_NODATA:
+          skip(buffer, idSize + 9);
+          break;
+        case HEAP_DUMP_INFO:
+          skip(buffer, 4 + idSize);
+          break;
+        default:
+          throw new IllegalStateException("Unknown heap dump sub record 0x"
+              + Integer.toHexString(subTag) + " at " + (buffer.position() - 1));
+      }
+    }
+    return true;
+  }
+
+  private void readClassDump() {
+    long classId = readId(buffer, idSize);
+    // Stack trace serial number.
+    buffer.readInt();
+    long superId = readId(buffer, idSize);
+    // Class loader, signers, protection domain, two reserved ids, instance size.
+    skip(buffer, 5L * idSize + 4);
+    int constantPoolCount = buffer.readShort() & 0xffff;
+    for (int i = 0; i < constantPoolCount; i++) {
+      // Constant pool index.
+      buffer.readShort();
+      skip(buffer, typeSize(buffer.readByte(), idSize));
+    }
+    int staticFieldCount = buffer.readShort() & 0xffff;
+    for (int i = 0; i < staticFieldCount; i++) {
+      skip(buffer, idSize);
+      skip(buffer, typeSize(buffer.readByte(), idSize));
+    }
+    int fieldCount = buffer.readShort() & 0xffff;
+    long[] nameIds = new long[fieldCount];
+    byte[] types = new byte[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      nameIds[i] = readId(buffer, idSize);
+      types[i] = buffer.readByte();
+    }
+    classFields.put(classId, new ClassFields(superId, nameIds, types));
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(HprofIndex.UTF_8);
+  }
+}
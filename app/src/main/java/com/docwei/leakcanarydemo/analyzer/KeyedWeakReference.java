@@ -18,9 +18,13 @@ package com.docwei.leakcanarydemo.analyzer;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 public final class KeyedWeakReference extends WeakReference<Object> {
-  public final String key;
-  public KeyedWeakReference(Object referent, String key,ReferenceQueue<Object> referenceQueue) {
+  public final long key;
+  /** {@link android.os.SystemClock#uptimeMillis()} when the referent started being watched. */
+  public final long watchUptimeMillis;
+  public KeyedWeakReference(Object referent, long key, long watchUptimeMillis,
+      ReferenceQueue<Object> referenceQueue) {
     super(referent,referenceQueue);
     this.key = key;
+    this.watchUptimeMillis = watchUptimeMillis;
   }
 }
\ No newline at end of file
@@ -15,19 +15,29 @@
  */
 package com.docwei.leakcanarydemo.analyzer;
 
-import com.squareup.haha.perflib.Instance;
-
 final class LeakNode {
   /** May be null. */
   final Exclusion exclusion;
-  final Instance instance;
+  /** Node in the {@link HeapGraph}, {@link HeapGraph#NO_NODE} for the gc root marker. */
+  final int node;
   final LeakNode parent;
   final LeakReference leakReference;
+  /** Number of excluded references crossed from the gc root to this node. */
+  final int excludedCount;
+  /** Number of references from the gc root to this node. */
+  final int depth;
 
-  LeakNode(Exclusion exclusion, Instance instance, LeakNode parent, LeakReference leakReference) {
+  LeakNode(Exclusion exclusion, int node, LeakNode parent, LeakReference leakReference) {
     this.exclusion = exclusion;
-    this.instance = instance;
+    this.node = node;
     this.parent = parent;
     this.leakReference = leakReference;
+    if (parent == null) {
+      excludedCount = exclusion != null ? 1 : 0;
+      depth = 0;
+    } else {
+      excludedCount = parent.excludedCount + (exclusion != null ? 1 : 0);
+      depth = parent.depth + 1;
+    }
   }
 }
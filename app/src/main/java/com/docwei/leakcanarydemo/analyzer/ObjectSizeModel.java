@@ -0,0 +1,232 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_BOOLEAN;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_BYTE;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_CHAR;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_DOUBLE;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_FLOAT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_INT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_LONG;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_OBJECT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_SHORT;
+
+/**
+ * How many bytes the runtime allocates for an object, as opposed to the bytes of its fields in the
+ * hprof file. Used for every shallow size of a {@link HeapGraph}.
+ *
+ * ART objects start with a header (class pointer and lock word), references are 32 bit even in 64
+ * bit processes, and objects are 8 byte aligned. Fields are laid out per class, from
+ * java.lang.Object down: references first, then primitives from the largest to the smallest, with
+ * the gap before an 8 byte field filled by smaller ones. Since Marshmallow the characters of a
+ * String are stored inline and the value array of the dump doesn't exist in the heap. Since Oreo
+ * they are a byte each for Latin-1 strings, dumped as a byte array.
+ */
+final class ObjectSizeModel {
+
+  /** Lollipop: Strings point to a separate char array. */
+  static final ObjectSizeModel LOLLIPOP = new Builder().stringsInline(false)
+      .compressedStrings(false)
+      .classHeaderBytes(112)
+      .build();
+
+  /**
+   * Marshmallow and Nougat: String characters are inline, two bytes each. A byte array value in
+   * the dump is still sized at two bytes a character.
+   */
+  static final ObjectSizeModel MARSHMALLOW = new Builder().stringsInline(true)
+      .compressedStrings(false)
+      .classHeaderBytes(120)
+      .build();
+
+  /**
+   * Oreo and later: String characters are inline, Latin-1 ones compressed to a byte. Its classes
+   * have the header of Marshmallow's.
+   */
+  static final ObjectSizeModel OREO = new Builder().stringsInline(true)
+      .compressedStrings(true)
+      .classHeaderBytes(120)
+      .build();
+
+  static ObjectSizeModel forSdk(int sdkInt) {
+    if (sdkInt >= 26) {
+      return OREO;
+    } else if (sdkInt >= 23) {
+      return MARSHMALLOW;
+    }
+    return LOLLIPOP;
+  }
+
+  /** Class pointer and lock word. */
+  final int objectHeaderBytes;
+  final int referenceBytes;
+  final int objectAlignment;
+  /** Object header and array length. */
+  final int arrayHeaderBytes;
+  /** Object header, count and hash of a String, before its inline characters. */
+  final int stringHeaderBytes;
+  /** Fixed part of a class object: its fields, method tables and such, before the statics. */
+  final int classHeaderBytes;
+  final boolean stringsInline;
+  /** Whether an inline String dumped with a byte array value takes a byte per character. */
+  final boolean compressedStrings;
+
+  private ObjectSizeModel(Builder builder) {
+    this.objectHeaderBytes = builder.objectHeaderBytes;
+    this.referenceBytes = builder.referenceBytes;
+    this.objectAlignment = builder.objectAlignment;
+    this.arrayHeaderBytes = builder.arrayHeaderBytes;
+    this.stringHeaderBytes = builder.stringHeaderBytes;
+    this.classHeaderBytes = builder.classHeaderBytes;
+    this.stringsInline = builder.stringsInline;
+    this.compressedStrings = builder.compressedStrings;
+  }
+
+  /**
+   * End of the fields of a class and its superclasses, header included and not aligned.
+   *
+   * @param superFieldsEnd what this method returned for the superclass, 0 for java.lang.Object
+   * whose fields, when they are dumped, are the header itself.
+   * @param declaredTypes hprof types of the instance fields the class declares, in the first
+   * declaredCount entries.
+   */
+  long fieldsEnd(long superFieldsEnd, byte[] declaredTypes, int declaredCount) {
+    long offset = superFieldsEnd;
+    int references = 0;
+    // Count of the primitive fields by size in bytes.
+    int[] counts = new int[9];
+    for (int i = 0; i < declaredCount; i++) {
+      byte type = declaredTypes[i];
+      if (type == TYPE_OBJECT) {
+        references++;
+      } else {
+        counts[primitiveSize(type)]++;
+      }
+    }
+    if (references > 0) {
+      offset = align(offset, referenceBytes) + (long) references * referenceBytes;
+    }
+    if (counts[8] > 0) {
+      // The gap before the first 8 byte field takes the largest smaller fields that fit.
+      for (int size = 4; size >= 1 && offset % 8 != 0; size /= 2) {
+        while (counts[size] > 0 && offset % size == 0 && offset % 8 + size <= 8
+            && offset % 8 != 0) {
+          offset += size;
+          counts[size]--;
+        }
+      }
+    }
+    for (int size = 8; size >= 1; size /= 2) {
+      if (counts[size] > 0) {
+        offset = align(offset, size) + (long) counts[size] * size;
+      }
+    }
+    return superFieldsEnd == 0 ? Math.max(offset, objectHeaderBytes) : offset;
+  }
+
+  long instanceSize(long fieldsEnd) {
+    return align(fieldsEnd, objectAlignment);
+  }
+
+  long arraySize(byte elementType, long length) {
+    int elementSize = elementType == TYPE_OBJECT ? referenceBytes : primitiveSize(elementType);
+    // 8 byte elements start 8 byte aligned.
+    long dataStart = align(arrayHeaderBytes, Math.min(elementSize, 8));
+    return align(dataStart + length * elementSize, objectAlignment);
+  }
+
+  /**
+   * Size of a String with inline characters, one byte each if its value is a byte array and the
+   * release compresses strings.
+   */
+  long inlineStringSize(long length, boolean byteValue) {
+    boolean compressed = compressedStrings && byteValue;
+    return align(stringHeaderBytes + length * (compressed ? 1 : 2), objectAlignment);
+  }
+
+  long classObjectSize(byte[] staticFieldTypes) {
+    long size = classHeaderBytes;
+    for (byte type : staticFieldTypes) {
+      size += type == TYPE_OBJECT ? referenceBytes : primitiveSize(type);
+    }
+    return align(size, objectAlignment);
+  }
+
+  private static long align(long offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  private static int primitiveSize(byte type) {
+    switch (type) {
+      case TYPE_BOOLEAN:
+      case TYPE_BYTE:
+        return 1;
+      case TYPE_CHAR:
+      case TYPE_SHORT:
+        return 2;
+      case TYPE_FLOAT:
+      case TYPE_INT:
+        return 4;
+      case TYPE_DOUBLE:
+      case TYPE_LONG:
+        return 8;
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+
+  /** Starts from the layout shared by every ART release, for custom runtimes. */
+  static final class Builder {
+    int objectHeaderBytes = 8;
+    int referenceBytes = 4;
+    int objectAlignment = 8;
+    int arrayHeaderBytes = 12;
+    int stringHeaderBytes = 16;
+    int classHeaderBytes = 120;
+    boolean stringsInline = true;
+    boolean compressedStrings = true;
+
+    Builder objectHeaderBytes(int objectHeaderBytes) {
+      this.objectHeaderBytes = objectHeaderBytes;
+      return this;
+    }
+
+    Builder referenceBytes(int referenceBytes) {
+      this.referenceBytes = referenceBytes;
+      return this;
+    }
+
+    Builder objectAlignment(int objectAlignment) {
+      this.objectAlignment = objectAlignment;
+      return this;
+    }
+
+    Builder arrayHeaderBytes(int arrayHeaderBytes) {
+      this.arrayHeaderBytes = arrayHeaderBytes;
+      return this;
+    }
+
+    Builder stringHeaderBytes(int stringHeaderBytes) {
+      this.stringHeaderBytes = stringHeaderBytes;
+      return this;
+    }
+
+    Builder classHeaderBytes(int classHeaderBytes) {
+      this.classHeaderBytes = classHeaderBytes;
+      return this;
+    }
+
+    Builder stringsInline(boolean stringsInline) {
+      this.stringsInline = stringsInline;
+      return this;
+    }
+
+    Builder compressedStrings(boolean compressedStrings) {
+      this.compressedStrings = compressedStrings;
+      return this;
+    }
+
+    ObjectSizeModel build() {
+      return new ObjectSizeModel(this);
+    }
+  }
+}
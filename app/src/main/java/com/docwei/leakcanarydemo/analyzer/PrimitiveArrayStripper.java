@@ -0,0 +1,399 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.CLASS_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.HEAP_DUMP_INFO;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.INSTANCE_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.PRIMITIVE_ARRAY_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.PRIMITIVE_ARRAY_NODATA;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_HEAP_DUMP;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_HEAP_DUMP_SEGMENT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_LOAD_CLASS;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TAG_STRING;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.TYPE_OBJECT;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.readId;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.rootRecordLength;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.skip;
+import static com.docwei.leakcanarydemo.analyzer.HprofIndex.typeSize;
+
+/**
+ * Rewrites a heap dump without the content of its large primitive arrays: bitmap pixels and
+ * other buffers are most of the bytes of a dump, and path finding never reads them.
+ *
+ * A first pass finds the value arrays of the Strings, which are kept whatever their size since
+ * thread names and the like are read from them, and the primitive arrays of at least
+ * minStrippedBytes of data. A second pass copies every record but the content of those arrays,
+ * zeroed or removed depending on the {@link Mode}, and shortens the heap dump records when
+ * content is removed.
+ */
+final class PrimitiveArrayStripper {
+
+  /** What a stripped array becomes. */
+  enum Mode {
+    /**
+     * A PRIMITIVE ARRAY NODATA record: id, element count and type without the elements. Array
+     * sizes stay right for {@link HprofIndex}, but haha and most hprof tools can't read it.
+     */
+    NO_DATA,
+    /** An array of length 0, readable by any hprof parser. Its size is lost. */
+    EMPTY,
+    /**
+     * The array with its length and zeroes for content: a standard hprof, readable by haha and
+     * hprof tools, with the right sizes. The dump isn't smaller, but compresses to almost
+     * nothing where it was stripped.
+     */
+    ZEROED
+  }
+
+  static final int DEFAULT_MIN_STRIPPED_BYTES = 1024;
+
+  private static final byte[] VALUE_FIELD = bytes("value");
+  private static final int COPY_BUFFER_BYTES = 64 * 1024;
+  private static final byte[] ZEROES = new byte[COPY_BUFFER_BYTES];
+
+  /**
+   * Writes the stripped dump to destination and returns how many bytes of content were removed
+   * or zeroed. Throws an
+   * {@link IllegalStateException} if the dump can't be understood, the destination is then
+   * incomplete.
+   */
+  static long strip(HprofBuffer source, File destination, Mode mode, int minStrippedBytes)
+      throws IOException {
+    return strip(source, destination, String.class.getName(), mode, minStrippedBytes);
+  }
+
+  static long strip(HprofBuffer source, File destination, String stringClassName, Mode mode,
+      int minStrippedBytes) throws IOException {
+    PrimitiveArrayStripper stripper =
+        new PrimitiveArrayStripper(source, bytes(stringClassName), mode, minStrippedBytes);
+    stripper.scan();
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(destination), COPY_BUFFER_BYTES));
+    try {
+      stripper.write(out);
+    } finally {
+      out.close();
+    }
+    return stripper.removedBytes;
+  }
+
+  private final HprofBuffer buffer;
+  private final byte[] stringClassName;
+  private final Mode mode;
+  private final int minStrippedBytes;
+  private int idSize;
+  private long headerLength;
+
+  private final TLongHashSet stringClassNameIds = new TLongHashSet();
+  private final TLongHashSet valueNameIds = new TLongHashSet();
+  private long stringClassId;
+  /** Offset of the value field in the field values of a String, -1 until its class is dumped. */
+  private int valueOffset = -1;
+  /** Positions of the field values of the String instances. */
+  private final TLongArrayList stringPositions = new TLongArrayList();
+  /** Arrays large enough to be stripped, their data size and their heap dump record. */
+  private final TLongArrayList candidateIds = new TLongArrayList();
+  private final TLongArrayList candidateBytes = new TLongArrayList();
+  private final TIntArrayList candidateRecords = new TIntArrayList();
+  private final TLongHashSet strippedIds = new TLongHashSet();
+  /** Bytes removed from each heap dump record, in file order. */
+  private long[] recordRemovedBytes;
+  private long removedBytes;
+  private final byte[] copyBuffer = new byte[COPY_BUFFER_BYTES];
+
+  private PrimitiveArrayStripper(HprofBuffer buffer, byte[] stringClassName, Mode mode,
+      int minStrippedBytes) {
+    this.buffer = buffer;
+    this.stringClassName = stringClassName;
+    this.mode = mode;
+    this.minStrippedBytes = minStrippedBytes;
+  }
+
+  private void scan() {
+    idSize = HprofIndex.readHeader(buffer);
+    headerLength = buffer.position();
+    int heapDumpRecord = 0;
+    while (buffer.hasRemaining()) {
+      int tag = buffer.readByte() & 0xff;
+      // Time offset.
+      buffer.readInt();
+      long length = buffer.readInt() & 0xffffffffL;
+      switch (tag) {
+        case TAG_STRING:
+          readString(length - idSize);
+          break;
+        case TAG_LOAD_CLASS:
+          // Class serial number.
+          buffer.readInt();
+          long classId = readId(buffer, idSize);
+          // Stack trace serial number.
+          buffer.readInt();
+          if (stringClassNameIds.contains(readId(buffer, idSize))) {
+            stringClassId = classId;
+          }
+          break;
+        case TAG_HEAP_DUMP:
+        case TAG_HEAP_DUMP_SEGMENT:
+          scanHeapDump(buffer.position() + length, heapDumpRecord++);
+          break;
+        default:
+          skip(buffer, length);
+      }
+    }
+    if (valueOffset == -1) {
+      throw new IllegalStateException("No String class dump with a value field");
+    }
+
+    // Every array a String points to is kept, the other candidates are stripped.
+    TLongHashSet stringValues = new TLongHashSet();
+    for (int i = 0, size = stringPositions.size(); i < size; i++) {
+      buffer.setPosition(stringPositions.get(i) + valueOffset);
+      stringValues.add(readId(buffer, idSize));
+    }
+    recordRemovedBytes = new long[heapDumpRecord];
+    for (int i = 0, size = candidateIds.size(); i < size; i++) {
+      long id = candidateIds.get(i);
+      if (!stringValues.contains(id)) {
+        strippedIds.add(id);
+        if (mode != Mode.ZEROED) {
+          recordRemovedBytes[candidateRecords.get(i)] += candidateBytes.get(i);
+        }
+        removedBytes += candidateBytes.get(i);
+      }
+    }
+  }
+
+  /** Only reads the strings that can name the String class or its value field. */
+  private void readString(long byteCount) {
+    long id = readId(buffer, idSize);
+    if (byteCount != stringClassName.length && byteCount != VALUE_FIELD.length) {
+      skip(buffer, byteCount);
+      return;
+    }
+    byte[] bytes = new byte[(int) byteCount];
+    buffer.read(bytes);
+    if (Arrays.equals(bytes, stringClassName)) {
+      stringClassNameIds.add(id);
+    } else if (Arrays.equals(bytes, VALUE_FIELD)) {
+      valueNameIds.add(id);
+    }
+  }
+
+  private void scanHeapDump(long end, int heapDumpRecord) {
+    while (buffer.position() < end) {
+      int subTag = buffer.readByte() & 0xff;
+      int rootLength = rootRecordLength(subTag, idSize);
+      if (rootLength >= 0) {
+        skip(buffer, rootLength);
+        continue;
+      }
+      switch (subTag) {
+        case CLASS_DUMP: {
+          long classId = readId(buffer, idSize);
+          int offset = skipClassDump(classId == stringClassId && stringClassId != 0);
+          if (offset >= 0) {
+            valueOffset = offset;
+          }
+          break;
+        }
+        case INSTANCE_DUMP: {
+          // Id, stack trace serial number.
+          skip(buffer, idSize + 4);
+          long classId = readId(buffer, idSize);
+          long length = buffer.readInt() & 0xffffffffL;
+          if (classId == stringClassId) {
+            stringPositions.add(buffer.position());
+          }
+          skip(buffer, length);
+          break;
+        }
+        case OBJECT_ARRAY_DUMP: {
+          skip(buffer, idSize + 4);
+          long count = buffer.readInt() & 0xffffffffL;
+          skip(buffer, idSize + count * idSize);
+          break;
+        }
+        case PRIMITIVE_ARRAY_DUMP: {
+          long id = readId(buffer, idSize);
+          // Stack trace serial number.
+          buffer.readInt();
+          long count = buffer.readInt() & 0xffffffffL;
+          long byteCount = count * typeSize(buffer.readByte(), idSize);
+          if (byteCount > 0 && byteCount >= minStrippedBytes) {
+            candidateIds.add(id);
+            candidateBytes.add(byteCount);
+            candidateRecords.add(heapDumpRecord);
+          }
+          skip(buffer, byteCount);
+          break;
+        }
+        case PRIMITIVE_ARRAY_NODATA:
+          skip(buffer, idSize + 9);
+          break;
+        case HEAP_DUMP_INFO:
+          skip(buffer, 4 + idSize);
+          break;
+        default:
+          throw new IllegalStateException("Unknown heap dump sub record 0x"
+              + Integer.toHexString(subTag) + " at " + (buffer.position() - 1));
+      }
+    }
+  }
+
+  /**
+   * Skips the rest of a class dump, after the class id. If isStringClass, returns the offset of
+   * the value field in the field values of a String, the fields it declares coming first.
+   */
+  private int skipClassDump(boolean isStringClass) {
+    // Stack trace serial number, super class, class loader, signers, protection domain, two
+    // reserved ids, instance size.
+    skip(buffer, 4 + 6L * idSize + 4);
+    int constantPoolCount = buffer.readShort() & 0xffff;
+    for (int i = 0; i < constantPoolCount; i++) {
+      // Constant pool index.
+      buffer.readShort();
+      skip(buffer, typeSize(buffer.readByte(), idSize));
+    }
+    int staticFieldCount = buffer.readShort() & 0xffff;
+    for (int i = 0; i < staticFieldCount; i++) {
+      skip(buffer, idSize);
+      skip(buffer, typeSize(buffer.readByte(), idSize));
+    }
+    int fieldCount = buffer.readShort() & 0xffff;
+    int valueOffset = -1;
+    int offset = 0;
+    for (int i = 0; i < fieldCount; i++) {
+      long nameId = readId(buffer, idSize);
+      byte type = buffer.readByte();
+      if (isStringClass && valueOffset == -1 && type == TYPE_OBJECT
+          && valueNameIds.contains(nameId)) {
+        valueOffset = offset;
+      }
+      offset += typeSize(type, idSize);
+    }
+    return valueOffset;
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    copy(out, 0, headerLength);
+    int heapDumpRecord = 0;
+    buffer.setPosition(headerLength);
+    while (buffer.hasRemaining()) {
+      long start = buffer.position();
+      int tag = buffer.readByte() & 0xff;
+      int time = buffer.readInt();
+      long length = buffer.readInt() & 0xffffffffL;
+      long end = buffer.position() + length;
+      if (tag != TAG_HEAP_DUMP && tag != TAG_HEAP_DUMP_SEGMENT) {
+        copy(out, start, end);
+        continue;
+      }
+      out.writeByte(tag);
+      out.writeInt(time);
+      out.writeInt((int) (length - recordRemovedBytes[heapDumpRecord++]));
+      writeHeapDump(out, end);
+    }
+  }
+
+  private void writeHeapDump(DataOutputStream out, long end) throws IOException {
+    while (buffer.position() < end) {
+      long start = buffer.position();
+      int subTag = buffer.readByte() & 0xff;
+      int rootLength = rootRecordLength(subTag, idSize);
+      if (rootLength >= 0) {
+        skip(buffer, rootLength);
+      } else {
+        switch (subTag) {
+          case CLASS_DUMP:
+            skip(buffer, idSize);
+            skipClassDump(false);
+            break;
+          case INSTANCE_DUMP: {
+            skip(buffer, 2L * idSize + 4);
+            long length = buffer.readInt() & 0xffffffffL;
+            skip(buffer, length);
+            break;
+          }
+          case OBJECT_ARRAY_DUMP: {
+            skip(buffer, idSize + 4);
+            long count = buffer.readInt() & 0xffffffffL;
+            skip(buffer, idSize + count * idSize);
+            break;
+          }
+          case PRIMITIVE_ARRAY_DUMP: {
+            long id = readId(buffer, idSize);
+            int stackSerial = buffer.readInt();
+            int count = buffer.readInt();
+            byte type = buffer.readByte();
+            long byteCount = (count & 0xffffffffL) * typeSize(type, idSize);
+            if (strippedIds.contains(id)) {
+              writeStrippedArray(out, id, stackSerial, count, type, byteCount);
+              skip(buffer, byteCount);
+              continue;
+            }
+            skip(buffer, byteCount);
+            break;
+          }
+          case PRIMITIVE_ARRAY_NODATA:
+            skip(buffer, idSize + 9);
+            break;
+          case HEAP_DUMP_INFO:
+            skip(buffer, 4 + idSize);
+            break;
+          default:
+            throw new IllegalStateException("Unknown heap dump sub record 0x"
+                + Integer.toHexString(subTag) + " at " + start);
+        }
+      }
+      copy(out, start, buffer.position());
+    }
+  }
+
+  private void writeStrippedArray(DataOutputStream out, long id, int stackSerial, int count,
+      byte type, long byteCount) throws IOException {
+    out.writeByte(mode == Mode.NO_DATA ? PRIMITIVE_ARRAY_NODATA : PRIMITIVE_ARRAY_DUMP);
+    if (idSize == 4) {
+      out.writeInt((int) id);
+    } else {
+      out.writeLong(id);
+    }
+    out.writeInt(stackSerial);
+    out.writeInt(mode == Mode.EMPTY ? 0 : count);
+    out.writeByte(type);
+    if (mode == Mode.ZEROED) {
+      for (long remaining = byteCount; remaining > 0; ) {
+        int zeroes = (int) Math.min(remaining, ZEROES.length);
+        out.write(ZEROES, 0, zeroes);
+        remaining -= zeroes;
+      }
+    }
+  }
+
+  /** Copies [start, end) of the dump, and leaves the buffer at end. */
+  private void copy(DataOutputStream out, long start, long end) throws IOException {
+    buffer.setPosition(start);
+    for (long remaining = end - start; remaining > 0; ) {
+      int count = (int) Math.min(remaining, copyBuffer.length);
+      buffer.readSubSequence(copyBuffer, 0, count);
+      out.write(copyBuffer, 0, count);
+      remaining -= count;
+    }
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(HprofIndex.UTF_8);
+  }
+}
@@ -0,0 +1,124 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.RootType;
+
+import java.util.BitSet;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * Estimates the retained size of a leaking instance without a {@link DominatorTree}: the shallow
+ * size of the objects reachable from it, minus the ones the gc roots reach without going through
+ * it. Both traversals share a node budget. Once it's spent the estimate is marked truncated: the
+ * objects not reached yet are counted as retained, when they might not be.
+ *
+ * Like {@link DominatorTree#ignoredBitmapRetainedSize(int)}, bitmaps only held by a native root
+ * count as retained by the leak when the leak is what holds them from Java.
+ */
+final class RetainedSizeEstimator {
+
+  private static final String BITMAP_CLASS_NAME = "android.graphics.Bitmap";
+
+  static final class Estimate {
+    final long retainedSize;
+    /** False if the traversals were cut by the node budget. */
+    final boolean exact;
+
+    Estimate(long retainedSize, boolean exact) {
+      this.retainedSize = retainedSize;
+      this.exact = exact;
+    }
+  }
+
+  private final HeapGraph graph;
+  private final HeapGraph.Edges edges = new HeapGraph.Edges();
+  private final TIntArrayList queue = new TIntArrayList();
+
+  RetainedSizeEstimator(HeapGraph graph) {
+    this.graph = graph;
+  }
+
+  Estimate estimate(int leakingNode, int nodeBudget) {
+    int visitedCount = 0;
+
+    // The objects reachable from the leak.
+    BitSet subgraph = new BitSet(graph.nodeCount());
+    TIntArrayList subgraphNodes = new TIntArrayList();
+    queue.clear();
+    queue.add(leakingNode);
+    subgraph.set(leakingNode);
+    boolean exact = true;
+    for (int i = 0; i < queue.size(); i++) {
+      if (visitedCount++ == nodeBudget) {
+        exact = false;
+        break;
+      }
+      int node = queue.get(i);
+      subgraphNodes.add(node);
+      graph.readEdges(node, edges);
+      for (int e = edges.start; e < edges.end; e++) {
+        int target = edges.targets[e];
+        if (!subgraph.get(target)) {
+          subgraph.set(target);
+          queue.add(target);
+        }
+      }
+    }
+    // Only what has been visited counts, not what was queued when the budget ran out.
+    subgraph.clear();
+    for (int i = 0; i < subgraphNodes.size(); i++) {
+      subgraph.set(subgraphNodes.get(i));
+    }
+
+    // Everything the gc roots reach without going through the leak isn't retained by it. Stops
+    // as soon as the whole subgraph has been reached that way.
+    int remaining = subgraphNodes.size() - 1;
+    BitSet visited = new BitSet(graph.nodeCount());
+    visited.set(leakingNode);
+    queue.clear();
+    for (int root = 0; root < graph.rootCount(); root++) {
+      int node = graph.rootNode(root);
+      if (!visited.get(node) && !isNativeBitmapRoot(root, node)) {
+        visited.set(node);
+        queue.add(node);
+        if (subgraph.get(node)) {
+          subgraph.clear(node);
+          remaining--;
+        }
+      }
+    }
+    for (int i = 0; i < queue.size() && remaining > 0; i++) {
+      if (visitedCount++ >= nodeBudget) {
+        exact = false;
+        break;
+      }
+      graph.readEdges(queue.get(i), edges);
+      for (int e = edges.start; e < edges.end; e++) {
+        int target = edges.targets[e];
+        if (!visited.get(target)) {
+          visited.set(target);
+          queue.add(target);
+          if (subgraph.get(target)) {
+            subgraph.clear(target);
+            remaining--;
+          }
+        }
+      }
+    }
+    queue.clear();
+
+    long retainedSize = 0;
+    for (int node = subgraph.nextSetBit(0); node >= 0; node = subgraph.nextSetBit(node + 1)) {
+      retainedSize += graph.shallowSize(node);
+    }
+    return new Estimate(retainedSize, exact);
+  }
+
+  private boolean isNativeBitmapRoot(int root, int node) {
+    if (graph.rootType(root) != RootType.UNKNOWN || graph.kind(node) != HeapGraph.KIND_INSTANCE) {
+      return false;
+    }
+    HeapGraph.ClassLayout layout = graph.classLayout(node);
+    return layout != null && BITMAP_CLASS_NAME.equals(layout.className);
+  }
+}
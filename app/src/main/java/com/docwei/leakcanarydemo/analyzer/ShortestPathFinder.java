@@ -15,26 +15,23 @@
  */
 package com.docwei.leakcanarydemo.analyzer;
 
-import com.squareup.haha.perflib.ArrayInstance;
-import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
-import com.squareup.haha.perflib.Field;
-import com.squareup.haha.perflib.HahaSpy;
-import com.squareup.haha.perflib.Instance;
-import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.RootType;
-import com.squareup.haha.perflib.Snapshot;
-import com.squareup.haha.perflib.Type;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 
-import static com.docwei.leakcanarydemo.analyzer.HahaHelper.isPrimitiveOrWrapperArray;
-import static com.docwei.leakcanarydemo.analyzer.HahaHelper.isPrimitiveWrapper;
-import static com.docwei.leakcanarydemo.analyzer.HahaHelper.threadName;
+import gnu.trove.TIntArrayList;
+
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.KIND_CLASS;
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.KIND_INSTANCE;
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.KIND_OBJECT_ARRAY;
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.KIND_PRIMITIVE_ARRAY;
+import static com.docwei.leakcanarydemo.analyzer.HeapGraph.NO_NODE;
 import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.INSTANCE_FIELD;
 import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.LOCAL;
@@ -43,101 +40,156 @@ import static com.docwei.leakcanarydemo.analyzer.LeakTraceElement.Type.STATIC_FI
 /**
  * Not thread safe.
  *
- * Finds the shortest path from a leaking reference to a gc root, ignoring excluded
- * refs first and then including the ones that are not "always ignorable" as needed if no path is
- * found.
+ * Finds the shortest path from a leaking reference to a gc root. Every reference matching an
+ * exclusion that is not "always ignorable" costs one, always ignorable ones are never followed,
+ * and the search returns the path crossing the fewest excluded references, then the one with the
+ * fewest hops. Nodes are popped in (cost, depth) order from buckets, so this takes a single pass
+ * instead of exploring the whole heap again when only an excluded path exists. Several leaking
+ * references can be searched for in the same traversal.
+ *
+ * Runs on a {@link HeapGraph}: nodes are dense ints, so the visited set is a bitset and the
+ * traversal only records, for each queued node, its parent node and the reference it was reached
+ * through. {@link LeakNode}s, {@link LeakReference}s and their strings are only built for the
+ * paths that reach a leaking reference.
  */
 final class ShortestPathFinder {
 
+  private static final int NOT_QUEUED = Integer.MAX_VALUE;
+  /** Key of the gc root marker, the children of roots are at depth 1. */
+  private static final int ROOT_KEY = 0;
+
   private final ExcludedRefs excludedRefs;
-  private final Deque<LeakNode> toVisitQueue;
-  private final Deque<LeakNode> toVisitIfNoPathQueue;
-  private final LinkedHashSet<Instance> toVisitSet;
-  private final LinkedHashSet<Instance> toVisitIfNoPathSet;
-  private final LinkedHashSet<Instance> visitedSet;
+  private final BucketQueue toVisitQueue;
+  private final BitSet visitedSet;
+  private final HeapGraph.Edges edges;
+  /** Best (excluded count, depth) key a node was queued with, packed by {@link #key}. */
+  private int[] queuedKeys;
+  /** Parent of each queued node, {@link HeapGraph#NO_NODE} for children of gc roots. */
+  private int[] parents;
+  /** Reference each queued node was reached through, or a negative {@link #rootReference}. */
+  private int[] parentReferences;
+  /** Resolved exclusions by class ordinal, filled lazily during a search. */
+  private ClassExclusions[] exclusionsByClass;
+  private HeapGraph graph;
   private boolean canIgnoreStrings;
 
   ShortestPathFinder(ExcludedRefs excludedRefs) {
     this.excludedRefs = excludedRefs;
-    toVisitQueue = new ArrayDeque<>();
-    toVisitIfNoPathQueue = new ArrayDeque<>();
-    toVisitSet = new LinkedHashSet<>();
-    toVisitIfNoPathSet = new LinkedHashSet<>();
-    visitedSet = new LinkedHashSet<>();
+    toVisitQueue = new BucketQueue();
+    visitedSet = new BitSet();
+    edges = new HeapGraph.Edges();
   }
 
   static final class Result {
     final LeakNode leakingNode;
     final boolean excludingKnownLeaks;
+    /** The exclusions matched by the references of the path, from the gc root to the leak. */
+    final List<Exclusion> crossedExclusions;
 
-    Result(LeakNode leakingNode, boolean excludingKnownLeaks) {
+    Result(LeakNode leakingNode) {
       this.leakingNode = leakingNode;
-      this.excludingKnownLeaks = excludingKnownLeaks;
+      List<Exclusion> exclusions = new ArrayList<>();
+      for (LeakNode node = leakingNode; node != null; node = node.parent) {
+        if (node.exclusion != null) {
+          exclusions.add(0, node.exclusion);
+        }
+      }
+      this.crossedExclusions = Collections.unmodifiableList(exclusions);
+      this.excludingKnownLeaks = !exclusions.isEmpty();
     }
   }
 
-  Result findPath(Snapshot snapshot, Instance leakingRef) {
+  Result findPath(HeapGraph graph, int leakingNode) {
+    Result result = findPaths(graph, new int[] { leakingNode }).get(leakingNode);
+    return result != null ? result : new Result(null);
+  }
+
+  /**
+   * Finds the shortest path to each of the target nodes in a single traversal from the gc roots,
+   * stopping as soon as every target has been reached. Targets that can't be reached from the gc
+   * roots have no entry in the returned map.
+   */
+  Map<Integer, Result> findPaths(HeapGraph graph, int[] targets) {
     clearState();
-    canIgnoreStrings = !isString(leakingRef);
-
-    enqueueGcRoots(snapshot);
-
-    boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
-    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
-      LeakNode node;
-      if (!toVisitQueue.isEmpty()) {
-        node = toVisitQueue.poll();
-      } else {
-        node = toVisitIfNoPathQueue.poll();
-        if (node.exclusion == null) {
-          throw new IllegalStateException("Expected node to have an exclusion " + node);
-        }
-        excludingKnownLeaks = true;
+    this.graph = graph;
+    int nodeCount = graph.nodeCount();
+    queuedKeys = new int[nodeCount];
+    Arrays.fill(queuedKeys, NOT_QUEUED);
+    parents = new int[nodeCount];
+    parentReferences = new int[nodeCount];
+    exclusionsByClass = new ClassExclusions[graph.classCount()];
+    canIgnoreStrings = true;
+    BitSet remainingTargets = new BitSet(nodeCount);
+    for (int target : targets) {
+      remainingTargets.set(target);
+      if (isString(target)) {
+        canIgnoreStrings = false;
       }
+    }
+    int remainingCount = remainingTargets.cardinality();
 
-      // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
-        break;
-      }
+    enqueueGcRoots();
 
+    Map<Integer, Result> results = new LinkedHashMap<>();
+    int node;
+    while (remainingCount > 0 && (node = toVisitQueue.poll()) != NO_NODE) {
+      // A node may have been queued again with a better key, only its first pop counts.
       if (checkSeen(node)) {
         continue;
       }
 
-      if (node.instance instanceof RootObj) {
-        visitRootObj(node);
-      } else if (node.instance instanceof ClassObj) {
-        visitClassObj(node);
-      } else if (node.instance instanceof ClassInstance) {
-        visitClassInstance(node);
-      } else if (node.instance instanceof ArrayInstance) {
-        visitArrayInstance(node);
-      } else {
-        throw new IllegalStateException("Unexpected type for " + node.instance);
+      // Termination, once every target has been found.
+      if (remainingTargets.get(node)) {
+        remainingTargets.clear(node);
+        remainingCount--;
+        results.put(node, new Result(buildLeakNode(node)));
+        if (remainingCount == 0) {
+          break;
+        }
+      }
+
+      switch (graph.kind(node)) {
+        case KIND_CLASS:
+          visitClassObj(node);
+          break;
+        case KIND_INSTANCE:
+          visitClassInstance(node);
+          break;
+        case KIND_OBJECT_ARRAY:
+          visitArrayInstance(node);
+          break;
+        case KIND_PRIMITIVE_ARRAY:
+          break;
+        default:
+          throw new IllegalStateException("Unexpected type for node " + node);
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
+    clearState();
+    return results;
   }
 
   private void clearState() {
     toVisitQueue.clear();
-    toVisitIfNoPathQueue.clear();
-    toVisitSet.clear();
-    toVisitIfNoPathSet.clear();
     visitedSet.clear();
+    graph = null;
+    queuedKeys = null;
+    parents = null;
+    parentReferences = null;
+    exclusionsByClass = null;
   }
 
-  private void enqueueGcRoots(Snapshot snapshot) {
-    for (RootObj rootObj : HahaSpy.allGcRoots(snapshot)) {
-      switch (rootObj.getRootType()) {
+  private void enqueueGcRoots() {
+    // Roots are grouped by type, a type is handled once instead of once per root.
+    for (RootType rootType : RootType.values()) {
+      int firstRoot = graph.firstRoot(rootType);
+      int endRoot = graph.endRoot(rootType);
+      switch (rootType) {
         case JAVA_LOCAL:
-          Instance thread = HahaSpy.allocatingThread(rootObj);
-          String threadName = threadName(thread);
-          Exclusion params = excludedRefs.threadNames.get(threadName);
-          if (params == null || !params.alwaysExclude) {
-            enqueue(params, null, rootObj, null);
+          for (int root = firstRoot; root < endRoot; root++) {
+            Exclusion params = threadExclusion(root);
+            if (params == null || !params.alwaysExclude) {
+              enqueue(params, NO_NODE, ROOT_KEY, graph.rootNode(root), rootReference(root));
+            }
           }
           break;
         case INTERNED_STRING:
@@ -164,162 +216,359 @@ final class ShortestPathFinder {
           // Input or output parameters in native code.
         case NATIVE_STACK:
         case JAVA_STATIC:
-          enqueue(null, null, rootObj, null);
+          for (int root = firstRoot; root < endRoot; root++) {
+            enqueue(null, NO_NODE, ROOT_KEY, graph.rootNode(root), rootReference(root));
+          }
           break;
         default:
-          throw new UnsupportedOperationException("Unknown root type:" + rootObj.getRootType());
+          if (firstRoot != endRoot) {
+            throw new UnsupportedOperationException("Unknown root type:" + rootType);
+          }
       }
     }
   }
 
-  private boolean checkSeen(LeakNode node) {
-    return !visitedSet.add(node.instance);
+  private Exclusion threadExclusion(int root) {
+    return excludedRefs.threadNames.get(graph.rootThreadName(root));
   }
 
-  private void visitRootObj(LeakNode node) {
-    RootObj rootObj = (RootObj) node.instance;
-    Instance child = rootObj.getReferredInstance();
-
-    if (rootObj.getRootType() == RootType.JAVA_LOCAL) {
-      Instance holder = HahaSpy.allocatingThread(rootObj);
-      // We switch the parent node with the thread instance that holds
-      // the local reference.
-      Exclusion exclusion = null;
-      if (node.exclusion != null) {
-        exclusion = node.exclusion;
-      }
-      LeakNode parent = new LeakNode(null, holder, null, null);
-      enqueue(exclusion, parent, child, new LeakReference(LOCAL, null, null));
-    } else {
-      enqueue(null, node, child, null);
+  private boolean checkSeen(int node) {
+    if (visitedSet.get(node)) {
+      return true;
     }
+    visitedSet.set(node);
+    return false;
   }
 
-  private void visitClassObj(LeakNode node) {
-    ClassObj classObj = (ClassObj) node.instance;
-    Map<String, Exclusion> ignoredStaticFields =
-        excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
-    for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-      Field field = entry.getKey();
-      if (field.getType() != Type.OBJECT) {
-        continue;
-      }
-      String fieldName = field.getName();
-      if (fieldName.equals("$staticOverhead")) {
-        continue;
-      }
-      Instance child = (Instance) entry.getValue();
-      boolean visit = true;
-      String fieldValue = entry.getValue() == null ? "null" : entry.getValue().toString();
-      LeakReference leakReference = new LeakReference(STATIC_FIELD, fieldName, fieldValue);
-      if (ignoredStaticFields != null) {
-        Exclusion params = ignoredStaticFields.get(fieldName);
-        if (params != null) {
-          visit = false;
-          if (!params.alwaysExclude) {
-            enqueue(params, node, child, leakReference);
-          }
-        }
-      }
-      if (visit) {
-        enqueue(null, node, child, leakReference);
-      }
+  private void visitClassObj(int node) {
+    ClassExclusions exclusions = classExclusions(graph.classOrdinal(node));
+    int key = queuedKeys[node];
+    graph.readEdges(node, edges);
+    for (int i = edges.start; i < edges.end; i++) {
+      int reference = edges.references[i];
+      enqueue(exclusions.staticFieldExclusions[reference], node, key, edges.targets[i], reference);
     }
   }
 
-  private void visitClassInstance(LeakNode node) {
-    ClassInstance classInstance = (ClassInstance) node.instance;
-    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
-    ClassObj superClassObj = classInstance.getClassObj();
-    Exclusion classExclusion = null;
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (classExclusion == null || !classExclusion.alwaysExclude) {
-          classExclusion = params;
-        }
-      }
-      Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
-      if (classIgnoredFields != null) {
-        ignoredFields.putAll(classIgnoredFields);
-      }
-      superClassObj = superClassObj.getSuperClassObj();
+  private void visitClassInstance(int node) {
+    int classOrdinal = graph.classOrdinal(node);
+    if (classOrdinal == -1) {
+      return;
     }
-
-    if (classExclusion != null && classExclusion.alwaysExclude) {
+    ClassExclusions exclusions = classExclusions(classOrdinal);
+    if (exclusions.alwaysExcluded) {
       return;
     }
+    int key = queuedKeys[node];
+    graph.readEdges(node, edges);
+    for (int i = edges.start; i < edges.end; i++) {
+      int reference = edges.references[i];
+      enqueue(exclusions.instanceFieldExclusions[reference], node, key, edges.targets[i],
+          reference);
+    }
+  }
 
-    for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
-      Exclusion fieldExclusion = classExclusion;
-      Field field = fieldValue.getField();
-      if (field.getType() != Type.OBJECT) {
-        continue;
-      }
-      Instance child = (Instance) fieldValue.getValue();
-      String fieldName = field.getName();
-      Exclusion params = ignoredFields.get(fieldName);
-      // If we found a field exclusion and it's stronger than a class exclusion
-      if (params != null && (fieldExclusion == null || (params.alwaysExclude
-          && !fieldExclusion.alwaysExclude))) {
-        fieldExclusion = params;
-      }
-      String value = fieldValue.getValue() == null ? "null" : fieldValue.getValue().toString();
-      enqueue(fieldExclusion, node, child, new LeakReference(INSTANCE_FIELD, fieldName, value));
+  private void visitArrayInstance(int node) {
+    int key = queuedKeys[node];
+    graph.readEdges(node, edges);
+    for (int i = edges.start; i < edges.end; i++) {
+      enqueue(null, node, key, edges.targets[i], edges.references[i]);
     }
   }
 
-  private void visitArrayInstance(LeakNode node) {
-    ArrayInstance arrayInstance = (ArrayInstance) node.instance;
-    Type arrayType = arrayInstance.getArrayType();
-    if (arrayType == Type.OBJECT) {
-      Object[] values = arrayInstance.getValues();
-      for (int i = 0; i < values.length; i++) {
-        Instance child = (Instance) values[i];
-        String name = Integer.toString(i);
-        String value = child == null ? "null" : child.toString();
-        enqueue(null, node, child, new LeakReference(ARRAY_ENTRY, name, value));
-      }
+  /**
+   * Returns the exclusions of a class, resolved the first time one of its instances or the class
+   * itself is visited. The hot loop then only does array lookups by field index.
+   */
+  private ClassExclusions classExclusions(int classOrdinal) {
+    ClassExclusions exclusions = exclusionsByClass[classOrdinal];
+    if (exclusions == null) {
+      exclusions = new ClassExclusions(excludedRefs, graph, classOrdinal);
+      exclusionsByClass[classOrdinal] = exclusions;
     }
+    return exclusions;
   }
 
-  private void enqueue(Exclusion exclusion, LeakNode parent, Instance child,
-      LeakReference leakReference) {
-    if (child == null) {
+  private void enqueue(Exclusion exclusion, int parent, int parentKey, int child,
+      int parentReference) {
+    if (child == NO_NODE) {
       return;
     }
-    if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
+    if (exclusion != null && exclusion.alwaysExclude) {
       return;
     }
-    // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
+    if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
       return;
     }
-    boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
+    if (canIgnoreStrings && isString(child)) {
       return;
     }
-    if (canIgnoreStrings && isString(child)) {
+    if (visitedSet.get(child)) {
       return;
     }
-    if (visitedSet.contains(child)) {
+    int excludedCount = excludedCount(parentKey) + (exclusion != null ? 1 : 0);
+    int depth = depth(parentKey) + 1;
+    int key = key(excludedCount, depth);
+    // Skip if already queued with a path at least as good.
+    if (key >= queuedKeys[child]) {
       return;
     }
-    LeakNode childNode = new LeakNode(exclusion, child, parent, leakReference);
-    if (visitNow) {
-      toVisitSet.add(child);
-      toVisitQueue.add(childNode);
+    queuedKeys[child] = key;
+    parents[child] = parent;
+    parentReferences[child] = parentReference;
+    toVisitQueue.add(excludedCount, depth, child);
+  }
+
+  /**
+   * Builds the {@link LeakNode} chain of a path from the recorded parents, resolving field names,
+   * values and exclusions of its references.
+   */
+  private LeakNode buildLeakNode(int target) {
+    TIntArrayList path = new TIntArrayList();
+    for (int node = target; node != NO_NODE; node = parents[node]) {
+      path.add(node);
+    }
+    int first = path.get(path.size() - 1);
+    int root = rootOf(parentReferences[first]);
+    LeakNode leakNode;
+    if (graph.rootType(root) == RootType.JAVA_LOCAL) {
+      // We switch the parent node with the thread instance that holds
+      // the local reference.
+      LeakNode thread = new LeakNode(null, graph.rootThreadNode(root), null, null);
+      leakNode = new LeakNode(threadExclusion(root), first, thread,
+          new LeakReference(LOCAL, null, null));
     } else {
-      toVisitIfNoPathSet.add(child);
-      toVisitIfNoPathQueue.add(childNode);
+      // Roots are not nodes of the graph, the path of a root's child starts at a root marker.
+      LeakNode rootNode = new LeakNode(null, NO_NODE, null, null);
+      leakNode = new LeakNode(null, first, rootNode, null);
+    }
+    for (int i = path.size() - 2; i >= 0; i--) {
+      int node = path.get(i);
+      int parent = path.get(i + 1);
+      int reference = parentReferences[node];
+      HeapGraph.ClassLayout layout = graph.classLayout(parent);
+      String value = graph.describe(node);
+      Exclusion exclusion;
+      LeakReference leakReference;
+      switch (graph.kind(parent)) {
+        case KIND_CLASS:
+          exclusion = classExclusions(graph.classOrdinal(parent)).staticFieldExclusions[reference];
+          leakReference =
+              new LeakReference(STATIC_FIELD, layout.staticFieldNames[reference], value);
+          break;
+        case KIND_INSTANCE:
+          exclusion =
+              classExclusions(graph.classOrdinal(parent)).instanceFieldExclusions[reference];
+          leakReference =
+              new LeakReference(INSTANCE_FIELD, layout.instanceFieldNames[reference], value);
+          break;
+        default:
+          exclusion = null;
+          leakReference = new LeakReference(ARRAY_ENTRY, Integer.toString(reference), value);
+          break;
+      }
+      leakNode = new LeakNode(exclusion, node, leakNode, leakReference);
+    }
+    return leakNode;
+  }
+
+  /** Orders keys by excluded count first, then by depth. */
+  private static int key(int excludedCount, int depth) {
+    return (Math.min(excludedCount, 0x7f) << 24) | Math.min(depth, 0xffffff);
+  }
+
+  private static int excludedCount(int key) {
+    return key >>> 24;
+  }
+
+  private static int depth(int key) {
+    return key & 0xffffff;
+  }
+
+  /** Encodes the index of a gc root as a negative parent reference. */
+  private static int rootReference(int root) {
+    return -root - 1;
+  }
+
+  private static int rootOf(int rootReference) {
+    return -rootReference - 1;
+  }
+
+  private boolean isPrimitiveOrWrapperArray(int node) {
+    byte kind = graph.kind(node);
+    if (kind == KIND_PRIMITIVE_ARRAY) {
+      return true;
     }
+    if (kind != KIND_OBJECT_ARRAY) {
+      return false;
+    }
+    HeapGraph.ClassLayout layout = graph.classLayout(node);
+    return layout != null && layout.isPrimitiveWrapper;
   }
 
-  private boolean isString(Instance instance) {
-    return instance.getClassObj() != null && instance.getClassObj()
-        .getClassName()
-        .equals(String.class.getName());
+  private boolean isPrimitiveWrapper(int node) {
+    if (graph.kind(node) != KIND_INSTANCE) {
+      return false;
+    }
+    HeapGraph.ClassLayout layout = graph.classLayout(node);
+    return layout != null && layout.isPrimitiveWrapper;
+  }
+
+  private boolean isString(int node) {
+    if (graph.kind(node) != KIND_INSTANCE) {
+      return false;
+    }
+    HeapGraph.ClassLayout layout = graph.classLayout(node);
+    return layout != null && layout.isString;
+  }
+
+  /**
+   * The exclusions that apply to the references held by a class and its instances: the strongest
+   * of the class exclusions of the class hierarchy, combined with the field exclusions, stored by
+   * field index.
+   */
+  private static final class ClassExclusions {
+    private static final Exclusion STATIC_OVERHEAD;
+
+    static {
+      ExcludedRefs.ParamsBuilder builder = new ExcludedRefs.ParamsBuilder("static field $staticOverhead");
+      builder.alwaysExclude = true;
+      STATIC_OVERHEAD = new Exclusion(builder);
+    }
+
+    /** True if an always excluded class matches, instances then hold no reference worth following. */
+    final boolean alwaysExcluded;
+    /** Indexed like {@link HeapGraph.ClassLayout#instanceFieldNames}, null entries are not excluded. */
+    final Exclusion[] instanceFieldExclusions;
+    /** Indexed like {@link HeapGraph.ClassLayout#staticFieldNames}, null entries are not excluded. */
+    final Exclusion[] staticFieldExclusions;
+
+    ClassExclusions(ExcludedRefs excludedRefs, HeapGraph graph, int classOrdinal) {
+      HeapGraph.ClassLayout layout = graph.classLayoutAt(classOrdinal);
+      Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
+      HeapGraph.ClassLayout superClassLayout = layout;
+      Exclusion classExclusion = null;
+      while (superClassLayout != null) {
+        Exclusion params = excludedRefs.classNames.get(superClassLayout.className);
+        if (params != null) {
+          // true overrides null or false.
+          if (classExclusion == null || !classExclusion.alwaysExclude) {
+            classExclusion = params;
+          }
+        }
+        Map<String, Exclusion> classIgnoredFields =
+            excludedRefs.fieldNameByClassName.get(superClassLayout.className);
+        if (classIgnoredFields != null) {
+          ignoredFields.putAll(classIgnoredFields);
+        }
+        superClassLayout = superClassLayout.superOrdinal == -1 ? null
+            : graph.classLayoutAt(superClassLayout.superOrdinal);
+      }
+      alwaysExcluded = classExclusion != null && classExclusion.alwaysExclude;
+
+      instanceFieldExclusions = new Exclusion[layout.instanceFieldNames.length];
+      for (int i = 0; i < instanceFieldExclusions.length; i++) {
+        Exclusion fieldExclusion = classExclusion;
+        Exclusion params = ignoredFields.get(layout.instanceFieldNames[i]);
+        // If we found a field exclusion and it's stronger than a class exclusion
+        if (params != null && (fieldExclusion == null || (params.alwaysExclude
+            && !fieldExclusion.alwaysExclude))) {
+          fieldExclusion = params;
+        }
+        instanceFieldExclusions[i] = fieldExclusion;
+      }
+
+      Map<String, Exclusion> ignoredStaticFields =
+          excludedRefs.staticFieldNameByClassName.get(layout.className);
+      staticFieldExclusions = new Exclusion[layout.staticFieldNames.length];
+      for (int i = 0; i < staticFieldExclusions.length; i++) {
+        String fieldName = layout.staticFieldNames[i];
+        if (fieldName.equals("$staticOverhead")) {
+          staticFieldExclusions[i] = STATIC_OVERHEAD;
+        } else if (ignoredStaticFields != null) {
+          staticFieldExclusions[i] = ignoredStaticFields.get(fieldName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Nodes bucketed by excluded count then depth. Nodes are always added with a key at least as
+   * large as the one of the last polled node, so the cursor only ever moves forward.
+   */
+  private static final class BucketQueue {
+    private final List<List<IntQueue>> buckets = new ArrayList<>();
+    private int size;
+    private int excludedCount;
+    private int depth;
+
+    void add(int excludedCount, int depth, int node) {
+      while (buckets.size() <= excludedCount) {
+        buckets.add(new ArrayList<IntQueue>());
+      }
+      List<IntQueue> byDepth = buckets.get(excludedCount);
+      while (byDepth.size() <= depth) {
+        byDepth.add(new IntQueue());
+      }
+      byDepth.get(depth).add(node);
+      size++;
+    }
+
+    /** Returns {@link HeapGraph#NO_NODE} when empty. */
+    int poll() {
+      if (size == 0) {
+        return NO_NODE;
+      }
+      while (true) {
+        List<IntQueue> byDepth = buckets.get(excludedCount);
+        while (depth < byDepth.size()) {
+          IntQueue queue = byDepth.get(depth);
+          if (!queue.isEmpty()) {
+            size--;
+            return queue.poll();
+          }
+          depth++;
+        }
+        excludedCount++;
+        depth = 0;
+      }
+    }
+
+    void clear() {
+      buckets.clear();
+      size = 0;
+      excludedCount = 0;
+      depth = 0;
+    }
+  }
+
+  /** FIFO of ints backed by a growing array. */
+  private static final class IntQueue {
+    private int[] elements = new int[16];
+    private int head;
+    private int tail;
+
+    void add(int value) {
+      if (tail == elements.length) {
+        if (head > elements.length / 2) {
+          System.arraycopy(elements, head, elements, 0, tail - head);
+        } else {
+          int[] grown = new int[elements.length * 2];
+          System.arraycopy(elements, head, grown, 0, tail - head);
+          elements = grown;
+        }
+        tail -= head;
+        head = 0;
+      }
+      elements[tail++] = value;
+    }
+
+    int poll() {
+      return elements[head++];
+    }
+
+    boolean isEmpty() {
+      return head == tail;
+    }
   }
 }
@@ -0,0 +1,316 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * {@link HprofBuffer} over a heap dump of any size, read through fixed size windows of the file.
+ * A single {@link java.nio.MappedByteBuffer} can't go past 2GB, dumps of large heaps do.
+ *
+ * Reads that fit in the current window are absolute gets on it, reads that straddle two windows
+ * are assembled byte by byte. Windows are either memory mapped ({@link Strategy#MAPPED}, mapped on
+ * first use then kept) or a direct buffer filled with positional channel reads
+ * ({@link Strategy#CHANNEL}, one buffer per open file, taken from a small pool). A
+ * {@link HprofArchive} is read whatever the strategy, a window is one of its inflated blocks.
+ */
+abstract class WindowedFileBuffer implements HprofBuffer, Closeable {
+
+  enum Strategy {
+    MAPPED,
+    CHANNEL;
+
+    /**
+     * Mapping is the fastest for the random reads of path finding, but every mapped window takes
+     * address space. A 32 bit process can't map a dump of a few GB next to its own heap.
+     */
+    static Strategy forFile(File file) {
+      boolean is64Bit = System.getProperty("os.arch", "").contains("64");
+      return is64Bit || file.length() <= MAX_32_BIT_MAPPED_BYTES ? MAPPED : CHANNEL;
+    }
+  }
+
+  static final int MAPPED_WINDOW_BYTES = 1 << 30;
+  static final int CHANNEL_WINDOW_BYTES = 256 * 1024;
+  private static final long MAX_32_BIT_MAPPED_BYTES = 512L * 1024 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+  static WindowedFileBuffer open(File file) throws IOException {
+    return open(file, Strategy.forFile(file));
+  }
+
+  static WindowedFileBuffer open(File file, Strategy strategy) throws IOException {
+    return open(file, strategy,
+        strategy == Strategy.MAPPED ? MAPPED_WINDOW_BYTES : CHANNEL_WINDOW_BYTES);
+  }
+
+  static WindowedFileBuffer open(File file, Strategy strategy, int windowBytes)
+      throws IOException {
+    FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+    if (HprofArchive.isArchive(channel)) {
+      return new Archive(channel, HprofArchive.Table.read(channel));
+    }
+    switch (strategy) {
+      case MAPPED:
+        return new Mapped(channel, windowBytes);
+      case CHANNEL:
+        return new Channel(channel, windowBytes);
+      default:
+        throw new IllegalArgumentException("Unknown strategy " + strategy);
+    }
+  }
+
+  final FileChannel channel;
+  final long length;
+  private long position;
+  /** The current window, covering [windowStart, windowStart + windowLimit) of the file. */
+  private ByteBuffer window;
+  private long windowStart;
+  private int windowLimit;
+
+  /** length is the length of the dump, not of the file for archives. */
+  WindowedFileBuffer(FileChannel channel, long length) {
+    this.channel = channel;
+    this.length = length;
+  }
+
+  /** Start in the file of the window holding the byte at position. */
+  abstract long windowStart(long position);
+
+  /** Returns the window starting at windowStart, limited to the bytes it holds. */
+  abstract ByteBuffer loadWindow(long windowStart) throws IOException;
+
+  @Override public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override public byte readByte() {
+    int offset = offset(1);
+    if (offset < 0) {
+      throw new BufferUnderflowException();
+    }
+    position++;
+    return window.get(offset);
+  }
+
+  @Override public void read(byte[] bytes) {
+    readSubSequence(bytes, 0, bytes.length);
+  }
+
+  @Override public void readSubSequence(byte[] bytes, int start, int length) {
+    while (length > 0) {
+      if (offset(1) < 0) {
+        throw new BufferUnderflowException();
+      }
+      int offset = (int) (position - windowStart);
+      int count = Math.min(length, windowLimit - offset);
+      ByteBuffer slice = window.duplicate();
+      slice.position(offset);
+      slice.get(bytes, start, count);
+      position += count;
+      start += count;
+      length -= count;
+    }
+  }
+
+  @Override public char readChar() {
+    return (char) readShort();
+  }
+
+  @Override public short readShort() {
+    int offset = offset(2);
+    if (offset >= 0) {
+      position += 2;
+      return window.getShort(offset);
+    }
+    return (short) ((readByte() & 0xff) << 8 | (readByte() & 0xff));
+  }
+
+  @Override public int readInt() {
+    int offset = offset(4);
+    if (offset >= 0) {
+      position += 4;
+      return window.getInt(offset);
+    }
+    return (readShort() & 0xffff) << 16 | (readShort() & 0xffff);
+  }
+
+  @Override public long readLong() {
+    int offset = offset(8);
+    if (offset >= 0) {
+      position += 8;
+      return window.getLong(offset);
+    }
+    return (readInt() & 0xffffffffL) << 32 | (readInt() & 0xffffffffL);
+  }
+
+  @Override public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override public void setPosition(long position) {
+    this.position = position;
+  }
+
+  @Override public long position() {
+    return position;
+  }
+
+  @Override public boolean hasRemaining() {
+    return position < length;
+  }
+
+  @Override public long remaining() {
+    return length - position;
+  }
+
+  /**
+   * Offset of the current position in the current window if the next byteCount bytes are all in
+   * it, loading the window of the position if needed. -1 if they straddle two windows or go past
+   * the end of the file.
+   */
+  private int offset(int byteCount) {
+    long offset = position - windowStart;
+    if (window == null || offset < 0 || offset >= windowLimit) {
+      if (position >= length) {
+        return -1;
+      }
+      windowStart = windowStart(position);
+      try {
+        window = loadWindow(windowStart);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read the heap dump at " + position, e);
+      }
+      windowLimit = window.limit();
+      offset = position - windowStart;
+    }
+    return offset + byteCount <= windowLimit ? (int) offset : -1;
+  }
+
+  /** Maps the file in windows of windowSize bytes, mapped on first use. */
+  private static final class Mapped extends WindowedFileBuffer {
+    private final int windowSize;
+    private final ByteBuffer[] windows;
+
+    Mapped(FileChannel channel, int windowSize) throws IOException {
+      super(channel, channel.size());
+      this.windowSize = windowSize;
+      windows = new ByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+    }
+
+    @Override long windowStart(long position) {
+      return position - position % windowSize;
+    }
+
+    @Override ByteBuffer loadWindow(long windowStart) throws IOException {
+      int index = (int) (windowStart / windowSize);
+      ByteBuffer window = windows[index];
+      if (window == null) {
+        long size = Math.min(windowSize, length - windowStart);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+        windows[index] = window;
+      }
+      return window;
+    }
+  }
+
+  /** Reads windowSize bytes at a time into a pooled direct buffer. */
+  private static final class Channel extends WindowedFileBuffer {
+    private final int alignment;
+    private ByteBuffer buffer;
+
+    Channel(FileChannel channel, int windowSize) throws IOException {
+      super(channel, channel.size());
+      alignment = Math.max(1, Math.min(4096, windowSize / 2));
+      synchronized (bufferPool) {
+        buffer = bufferPool.poll();
+      }
+      if (buffer == null || buffer.capacity() != windowSize) {
+        buffer = ByteBuffer.allocateDirect(windowSize);
+      }
+    }
+
+    @Override long windowStart(long position) {
+      // Aligned on a page, short backward seeks while decoding a record don't reload.
+      return position - position % alignment;
+    }
+
+    @Override ByteBuffer loadWindow(long windowStart) throws IOException {
+      buffer.clear();
+      while (buffer.hasRemaining() && windowStart + buffer.position() < length) {
+        if (channel.read(buffer, windowStart + buffer.position()) < 0) {
+          break;
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    @Override public void close() throws IOException {
+      super.close();
+      if (buffer != null) {
+        synchronized (bufferPool) {
+          if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.push(buffer);
+          }
+        }
+        buffer = null;
+      }
+    }
+  }
+
+  /**
+   * Reads a {@link HprofArchive}, a window per block. The last few inflated blocks are kept: a
+   * record straddling two blocks, or a seek back to the record being decoded, doesn't inflate
+   * them again.
+   */
+  private static final class Archive extends WindowedFileBuffer {
+    private static final int CACHED_BLOCKS = 4;
+
+    private final HprofArchive.Table table;
+    private final int[] cachedBlocks = new int[CACHED_BLOCKS];
+    private final ByteBuffer[] cachedWindows = new ByteBuffer[CACHED_BLOCKS];
+    private int nextEviction;
+
+    Archive(FileChannel channel, HprofArchive.Table table) {
+      super(channel, table.length);
+      this.table = table;
+      Arrays.fill(cachedBlocks, -1);
+    }
+
+    @Override long windowStart(long position) {
+      return position - position % table.blockSize;
+    }
+
+    @Override ByteBuffer loadWindow(long windowStart) throws IOException {
+      int block = (int) (windowStart / table.blockSize);
+      for (int i = 0; i < CACHED_BLOCKS; i++) {
+        if (cachedBlocks[i] == block) {
+          return cachedWindows[i];
+        }
+      }
+      int slot = nextEviction;
+      nextEviction = (nextEviction + 1) % CACHED_BLOCKS;
+      ByteBuffer window = cachedWindows[slot];
+      byte[] bytes = window == null ? new byte[table.blockSize] : window.array();
+      int size = table.inflate(channel, block, bytes);
+      window = ByteBuffer.wrap(bytes, 0, size);
+      cachedBlocks[slot] = block;
+      cachedWindows[slot] = window;
+      return window;
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class AnalysisSchedulerTest {
+
+  private final FakeClock clock = new FakeClock();
+  private final FakeConstraints constraints = new FakeConstraints();
+  private File queueDirectory;
+  private File dumpDirectory;
+
+  @Before public void setUp() throws IOException {
+    queueDirectory = newDirectory("queue");
+    dumpDirectory = newDirectory("dumps");
+  }
+
+  @After public void tearDown() {
+    deleteDirectory(queueDirectory);
+    deleteDirectory(dumpDirectory);
+  }
+
+  @Test public void idleIsRequiredWhenAsked() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy().requireDeviceIdle(true));
+    scheduler.enqueue(heapDump("a", 100));
+    assertFalse(scheduler.canRunNow());
+    assertNull(scheduler.next());
+    constraints.idle = true;
+    assertTrue(scheduler.canRunNow());
+    assertNotNull(scheduler.next());
+  }
+
+  @Test public void chargingIsRequiredWhenAsked() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy().requireCharging(true));
+    scheduler.enqueue(heapDump("a", 100));
+    assertNull(scheduler.next());
+    constraints.charging = true;
+    assertNotNull(scheduler.next());
+  }
+
+  @Test public void backgroundIsRequiredByDefault() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(AnalysisPolicy.builder().memoryBudgetBytes(1000));
+    scheduler.enqueue(heapDump("a", 100));
+    assertNull(scheduler.next());
+    constraints.background = true;
+    assertNotNull(scheduler.next());
+  }
+
+  @Test public void unrequiredConstraintsDontGate() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy());
+    scheduler.enqueue(heapDump("a", 100));
+    assertNotNull(scheduler.next());
+  }
+
+  @Test public void runsAtMostMaxConcurrentAnalyses() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy().maxConcurrentAnalyses(2));
+    scheduler.enqueue(heapDump("a", 100));
+    scheduler.enqueue(heapDump("b", 100));
+    scheduler.enqueue(heapDump("c", 100));
+    AnalysisJob a = scheduler.next();
+    assertNotNull(scheduler.next());
+    assertNull(scheduler.next());
+    scheduler.onSucceeded(a);
+    assertEquals("c_pending.hprof", scheduler.next().heapDump.heapDumpFile.getName());
+  }
+
+  @Test public void jobOverTheMemoryBudgetWaitsInOrder() throws IOException {
+    // Half the size of the dump each: 500, 300 and 100 against a budget of 1000.
+    AnalysisScheduler scheduler = newScheduler(policy().maxConcurrentAnalyses(3));
+    scheduler.enqueue(heapDump("a", 1000));
+    scheduler.enqueue(heapDump("b", 1200));
+    scheduler.enqueue(heapDump("c", 200));
+    AnalysisJob a = scheduler.next();
+    assertEquals(500, a.memoryBytes);
+    // b doesn't fit next to a, and c isn't let past it.
+    assertNull(scheduler.next());
+    scheduler.onSucceeded(a);
+    assertEquals("b_pending.hprof", scheduler.next().heapDump.heapDumpFile.getName());
+    assertEquals("c_pending.hprof", scheduler.next().heapDump.heapDumpFile.getName());
+  }
+
+  @Test public void jobOverTheWholeBudgetRunsAlone() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy().maxConcurrentAnalyses(2));
+    scheduler.enqueue(heapDump("a", 4000));
+    scheduler.enqueue(heapDump("b", 100));
+    assertNotNull(scheduler.next());
+    assertNull(scheduler.next());
+  }
+
+  @Test public void backoffDoublesUpToMax() throws IOException {
+    AnalysisScheduler scheduler =
+        newScheduler(policy().maxAttempts(10).backoffMillis(100, 1000));
+    scheduler.enqueue(heapDump("a", 100));
+    long[] expected = { 100, 200, 400, 800, 1000, 1000 };
+    for (long backoff : expected) {
+      AnalysisJob job = scheduler.next();
+      scheduler.onFailed(job);
+      assertEquals(backoff, scheduler.nextCheckDelayMillis());
+      assertNull(scheduler.next());
+      clock.now += backoff - 1;
+      assertNull(scheduler.next());
+      clock.now += 1;
+    }
+  }
+
+  @Test public void policyBackoffDoublesUpToMax() {
+    AnalysisPolicy policy = policy().backoffMillis(100, 1000).build();
+    assertEquals(100, policy.backoffMillis(1));
+    assertEquals(200, policy.backoffMillis(2));
+    assertEquals(800, policy.backoffMillis(4));
+    assertEquals(1000, policy.backoffMillis(5));
+    assertEquals(1000, policy.backoffMillis(60));
+  }
+
+  @Test public void givesUpAfterMaxAttempts() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy().maxAttempts(2).backoffMillis(100, 100));
+    HeapDump heapDump = heapDump("a", 100);
+    scheduler.enqueue(heapDump);
+    scheduler.onFailed(scheduler.next());
+    assertTrue(heapDump.heapDumpFile.exists());
+    clock.now += 100;
+    AnalysisJob last = scheduler.next();
+    assertEquals(2, last.attempts);
+    scheduler.onFailed(last);
+    assertEquals(0, scheduler.queuedCount());
+    assertEquals(-1, scheduler.nextCheckDelayMillis());
+    assertFalse(heapDump.heapDumpFile.exists());
+    assertEquals(0, newScheduler(policy()).queuedCount());
+  }
+
+  @Test public void succeededJobIsRemoved() throws IOException {
+    AnalysisScheduler scheduler = newScheduler(policy());
+    scheduler.enqueue(heapDump("a", 100));
+    scheduler.onSucceeded(scheduler.next());
+    assertEquals(0, scheduler.queuedCount());
+    assertEquals(0, newScheduler(policy()).queuedCount());
+  }
+
+  @Test public void jobRunningWhenTheProcessDiedIsRetried() throws IOException {
+    AnalysisPolicy.Builder policy = policy().maxAttempts(3);
+    AnalysisScheduler dead = newScheduler(policy);
+    dead.enqueue(heapDump("a", 100));
+    dead.enqueue(heapDump("b", 100));
+    assertEquals(1, dead.next().attempts);
+
+    AnalysisScheduler restarted = newScheduler(policy);
+    assertEquals(2, restarted.queuedCount());
+    assertEquals(2, restarted.queuedHeapDumpFiles().size());
+    AnalysisJob retried = restarted.next();
+    assertEquals("a_pending.hprof", retried.heapDump.heapDumpFile.getName());
+    // The attempt that died was counted before running.
+    assertEquals(2, retried.attempts);
+  }
+
+  @Test public void jobThatDiedOnItsLastAttemptIsDropped() throws IOException {
+    AnalysisPolicy.Builder policy = policy().maxAttempts(1);
+    AnalysisScheduler dead = newScheduler(policy);
+    HeapDump heapDump = heapDump("a", 100);
+    dead.enqueue(heapDump);
+    dead.enqueue(heapDump("b", 100));
+    dead.next();
+
+    AnalysisScheduler restarted = newScheduler(policy);
+    assertEquals(1, restarted.queuedCount());
+    assertFalse(heapDump.heapDumpFile.exists());
+    assertEquals("b_pending.hprof", restarted.next().heapDump.heapDumpFile.getName());
+  }
+
+  /** No constraint required, room for two 500 byte jobs. */
+  private static AnalysisPolicy.Builder policy() {
+    return AnalysisPolicy.builder()
+        .requireAppInBackground(false)
+        .memoryBudgetBytes(1000);
+  }
+
+  private AnalysisScheduler newScheduler(AnalysisPolicy.Builder policy) {
+    return new AnalysisScheduler(new AnalysisJobQueue(queueDirectory), policy.build(), clock,
+        constraints);
+  }
+
+  private HeapDump heapDump(String name, int length) throws IOException {
+    File file = new File(dumpDirectory, name + "_pending.hprof");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[length]);
+    } finally {
+      out.close();
+    }
+    // Enqueued in order.
+    clock.now++;
+    return HeapDump.builder()
+        .heapDumpFile(file)
+        .referenceKeys(1)
+        .excludedRefs(ExcludedRefs.builder().build())
+        .reachabilityInspectorClasses(
+            Collections.<Class<? extends Reachability.Inspector>>emptyList())
+        .build();
+  }
+
+  private static File newDirectory(String prefix) throws IOException {
+    File directory = File.createTempFile(prefix, "");
+    directory.delete();
+    directory.mkdirs();
+    return directory;
+  }
+
+  private static void deleteDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  static final class FakeClock implements AnalysisScheduler.Clock {
+    long now = 1000;
+
+    @Override public long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  static final class FakeConstraints implements AnalysisScheduler.Constraints {
+    boolean idle;
+    boolean charging;
+    boolean background;
+
+    @Override public boolean isDeviceIdle() {
+      return idle;
+    }
+
+    @Override public boolean isCharging() {
+      return charging;
+    }
+
+    @Override public boolean isAppInBackground() {
+      return background;
+    }
+  }
+}
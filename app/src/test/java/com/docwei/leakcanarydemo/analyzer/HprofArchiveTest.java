@@ -0,0 +1,149 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class HprofArchiveTest {
+
+  /** Three full blocks and a partial one. */
+  private static final int LENGTH = 3 * HprofArchive.BLOCK_BYTES + 12345;
+
+  private File directory;
+  private File dump;
+  private File archive;
+  private byte[] bytes;
+
+  @Before public void setUp() throws IOException {
+    directory = File.createTempFile("archive", "");
+    directory.delete();
+    directory.mkdirs();
+    dump = new File(directory, "dump_pending.hprof");
+    archive = HprofArchive.archiveFileFor(dump);
+    // Random runs between zeroed ones, like a dump with stripped arrays.
+    bytes = new byte[LENGTH];
+    Random random = new Random(42);
+    for (int start = 0; start < LENGTH; start += 8192) {
+      if (random.nextBoolean()) {
+        byte[] run = new byte[Math.min(8192, LENGTH - start)];
+        random.nextBytes(run);
+        System.arraycopy(run, 0, bytes, start, run.length);
+      }
+    }
+    FileOutputStream out = new FileOutputStream(dump);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  @After public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test public void archiveIsNamedAfterTheDump() {
+    assertEquals(new File(directory, "dump.hprofz"), archive);
+  }
+
+  @Test public void onlyArchivesAreRecognized() throws IOException {
+    HprofArchive.compress(dump, archive);
+    assertTrue(HprofArchive.isArchive(archive));
+    assertFalse(HprofArchive.isArchive(dump));
+    assertTrue(archive.length() < dump.length());
+  }
+
+  @Test public void readsAcrossBlocks() throws IOException {
+    HprofArchive.compress(dump, archive);
+    ByteBuffer expected = ByteBuffer.wrap(bytes);
+    WindowedFileBuffer buffer = WindowedFileBuffer.open(archive);
+    try {
+      assertEquals(LENGTH, buffer.remaining());
+      for (int block = 1; block <= 3; block++) {
+        int boundary = block * HprofArchive.BLOCK_BYTES;
+        for (int before = 1; before < 8; before++) {
+          int position = boundary - before;
+          buffer.setPosition(position);
+          assertEquals(expected.getLong(position), buffer.readLong());
+          buffer.setPosition(position);
+          if (before < 4) {
+            assertEquals(expected.getInt(position), buffer.readInt());
+          }
+          buffer.setPosition(position);
+          if (before < 2) {
+            assertEquals(expected.getShort(position), buffer.readShort());
+          }
+        }
+        // A run of bytes over the boundary, then a seek back into the block before.
+        byte[] run = new byte[20000];
+        buffer.setPosition(boundary - 10000);
+        buffer.readSubSequence(run, 0, run.length);
+        assertArrayEquals(slice(boundary - 10000, run.length), run);
+        buffer.setPosition(boundary - 10);
+        assertEquals(bytes[boundary - 10], buffer.readByte());
+      }
+      buffer.setPosition(LENGTH - 1);
+      assertEquals(bytes[LENGTH - 1], buffer.readByte());
+      assertFalse(buffer.hasRemaining());
+    } finally {
+      buffer.close();
+    }
+  }
+
+  @Test public void readsLikeTheDump() throws IOException {
+    HprofArchive.compress(dump, archive);
+    WindowedFileBuffer archived = WindowedFileBuffer.open(archive);
+    WindowedFileBuffer raw = WindowedFileBuffer.open(dump);
+    try {
+      Random random = new Random(7);
+      for (int i = 0; i < 2000; i++) {
+        long position = (long) (random.nextDouble() * (LENGTH - 8));
+        archived.setPosition(position);
+        raw.setPosition(position);
+        assertEquals(raw.readLong(), archived.readLong());
+      }
+    } finally {
+      archived.close();
+      raw.close();
+    }
+  }
+
+  @Test public void decompressGivesBackTheDump() throws IOException {
+    HprofArchive.compress(dump, archive);
+    File restored = new File(directory, "restored.hprof");
+    HprofArchive.decompress(archive, restored);
+    assertEquals(LENGTH, restored.length());
+    byte[] restoredBytes = new byte[LENGTH];
+    RandomAccessFile in = new RandomAccessFile(restored, "r");
+    try {
+      in.readFully(restoredBytes);
+    } finally {
+      in.close();
+    }
+    assertArrayEquals(bytes, restoredBytes);
+  }
+
+  private byte[] slice(int start, int length) {
+    byte[] slice = new byte[length];
+    System.arraycopy(bytes, start, slice, 0, length);
+    return slice;
+  }
+}
@@ -0,0 +1,202 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import com.squareup.haha.perflib.RootType;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ShortestPathFinderTest {
+
+  private static final String NODE = "com.example.Node";
+  private static final String HOLDER = "com.example.Holder";
+
+  private final ExcludedRefs excludedRefs = ExcludedRefs.builder()
+      .instanceField(NODE, "cache")
+      .reason("Test")
+      .build();
+
+  @Test public void inheritedFieldExclusionIsCrossedLast() {
+    FanOutGraph graph = new FanOutGraph(1000);
+    ShortestPathFinder.Result result =
+        new ShortestPathFinder(excludedRefs).findPath(graph, graph.leak());
+    assertNotNull(result.leakingNode);
+    assertTrue(result.excludingKnownLeaks);
+    assertEquals(1, result.crossedExclusions.size());
+    // Only reachable through the cache field Holder inherits from Node.
+    assertEquals(FanOutGraph.FIRST_INSTANCE, result.leakingNode.parent.node);
+  }
+
+  /**
+   * Exclusions are resolved once per class: what visiting an instance allocates doesn't grow
+   * with the instance count, beyond the int arrays of the search and its queue. A map per visited
+   * instance, as before, is over 56 bytes each.
+   */
+  @Test public void visitingInstancesAllocatesNothingPerInstance() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      // Not a HotSpot based JVM, nothing to count allocations with.
+      return;
+    }
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    FanOutGraph small = new FanOutGraph(20000);
+    FanOutGraph large = new FanOutGraph(200000);
+    // Warms up the search so that the counted runs don't count class loading or compilation.
+    for (int i = 0; i < 5; i++) {
+      allocatedBytes(allocations, small);
+      allocatedBytes(allocations, large);
+    }
+    long extraBytes = allocatedBytes(allocations, large) - allocatedBytes(allocations, small);
+    long bytesPerInstance = extraBytes / (large.instanceCount - small.instanceCount);
+    // queuedKeys, parents and parentReferences take 12 bytes a node, the queue grown by doubling
+    // up to 16 more, the visited bit sets a bit.
+    assertTrue("Allocated " + bytesPerInstance + " bytes per visited instance",
+        bytesPerInstance < 32);
+  }
+
+  private long allocatedBytes(com.sun.management.ThreadMXBean allocations, FanOutGraph graph) {
+    ShortestPathFinder finder = new ShortestPathFinder(excludedRefs);
+    long threadId = Thread.currentThread().getId();
+    long before = allocations.getThreadAllocatedBytes(threadId);
+    ShortestPathFinder.Result result = finder.findPath(graph, graph.leak());
+    long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+    assertNotNull(result.leakingNode);
+    return allocated;
+  }
+
+  /**
+   * A static root holding an array of instances alternating between Node and Holder, which extends
+   * Node. Each instance holds the next one, and the first one holds the leak through its excluded
+   * cache field: every instance is visited before the leak is reached.
+   */
+  static final class FanOutGraph extends HeapGraph {
+    static final int NODE_CLASS = 0;
+    static final int HOLDER_CLASS = 1;
+    static final int ARRAY = 2;
+    static final int FIRST_INSTANCE = 3;
+
+    private static final byte[] NODE_TYPES = { HprofIndex.TYPE_OBJECT, HprofIndex.TYPE_OBJECT };
+    private static final byte[] HOLDER_TYPES =
+        { HprofIndex.TYPE_OBJECT, HprofIndex.TYPE_OBJECT, HprofIndex.TYPE_OBJECT };
+
+    private final ClassLayout[] layouts = {
+        new ClassLayout(NODE, -1, NODE_CLASS, new String[] { "next", "cache" }, NODE_TYPES,
+            new String[0], new byte[0]),
+        new ClassLayout(HOLDER, NODE_CLASS, HOLDER_CLASS,
+            new String[] { "owner", "next", "cache" }, HOLDER_TYPES, new String[0], new byte[0]),
+    };
+    final int instanceCount;
+    /** The elements of the array, shared by every read like the tables of a real index. */
+    private final int[] arrayTargets;
+    private final int[] arrayReferences;
+
+    FanOutGraph(int instanceCount) {
+      this.instanceCount = instanceCount;
+      arrayTargets = new int[instanceCount];
+      arrayReferences = new int[instanceCount];
+      for (int i = 0; i < instanceCount; i++) {
+        arrayTargets[i] = FIRST_INSTANCE + i;
+        arrayReferences[i] = i;
+      }
+    }
+
+    /** A Node reachable only through the cache field of the first instance. */
+    int leak() {
+      return FIRST_INSTANCE + instanceCount;
+    }
+
+    @Override int nodeCount() {
+      return leak() + 1;
+    }
+
+    @Override long objectId(int node) {
+      return node + 1000L;
+    }
+
+    @Override int nodeOf(long objectId) {
+      int node = (int) (objectId - 1000L);
+      return node >= 0 && node < nodeCount() ? node : NO_NODE;
+    }
+
+    @Override byte kind(int node) {
+      if (node < ARRAY) {
+        return KIND_CLASS;
+      }
+      return node == ARRAY ? KIND_OBJECT_ARRAY : KIND_INSTANCE;
+    }
+
+    @Override long arrayLength(int node) {
+      return instanceCount;
+    }
+
+    @Override byte arrayElementType(int node) {
+      return HprofIndex.TYPE_OBJECT;
+    }
+
+    @Override int classOrdinal(int node) {
+      if (node < ARRAY) {
+        return node;
+      }
+      if (node == ARRAY) {
+        return -1;
+      }
+      return node == leak() ? NODE_CLASS : (node - FIRST_INSTANCE) % 2 == 0 ? HOLDER_CLASS
+          : NODE_CLASS;
+    }
+
+    @Override ClassLayout classLayoutAt(int ordinal) {
+      return layouts[ordinal];
+    }
+
+    @Override int classCount() {
+      return layouts.length;
+    }
+
+    @Override void readEdges(int node, Edges edges) {
+      if (node == ARRAY) {
+        edges.wrap(arrayTargets, arrayReferences, 0, instanceCount);
+        return;
+      }
+      edges.clear();
+      if (kind(node) != KIND_INSTANCE || node == leak()) {
+        return;
+      }
+      // Holder declares owner first, the fields it inherits from Node follow.
+      int fieldOffset = classOrdinal(node) == HOLDER_CLASS ? 1 : 0;
+      if (fieldOffset == 1) {
+        edges.add(ARRAY, 0);
+      }
+      if (node + 1 < leak()) {
+        edges.add(node + 1, fieldOffset);
+      }
+      if (node == FIRST_INSTANCE) {
+        edges.add(leak(), fieldOffset + 1);
+      }
+    }
+
+    @Override int rootCount() {
+      return 1;
+    }
+
+    @Override int rootNode(int root) {
+      return ARRAY;
+    }
+
+    @Override RootType rootType(int root) {
+      return RootType.JAVA_STATIC;
+    }
+
+    @Override int rootThreadNode(int root) {
+      return NO_NODE;
+    }
+
+    @Override String rootThreadName(int root) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.docwei.leakcanarydemo.analyzer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times the {@link WindowedFileBuffer.Strategy strategies} over files of 100MB, 1GB and 3GB: a
+ * sequential pass of longs over the whole file, then longs that straddle every window boundary,
+ * then random reads. The files are sparse, only the longs read across boundaries are written, so
+ * they cost little disk but as many page faults and channel reads as a dump of that size.
+ */
+@Ignore("Benchmark, run by hand: writes sparse files of up to 3GB")
+public final class WindowedFileBufferBenchmark {
+
+  private static final long MB = 1024 * 1024;
+  private static final int RANDOM_READS = 100000;
+
+  private File file;
+
+  @Before public void setUp() throws IOException {
+    file = File.createTempFile("windowed", ".hprof");
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void read100Mb() throws IOException {
+    benchmark(100 * MB);
+  }
+
+  @Test public void read1Gb() throws IOException {
+    benchmark(1024 * MB);
+  }
+
+  @Test public void read3Gb() throws IOException {
+    benchmark(3072 * MB);
+  }
+
+  private void benchmark(long length) throws IOException {
+    long markerSum = writeSparseFile(length);
+    for (WindowedFileBuffer.Strategy strategy : WindowedFileBuffer.Strategy.values()) {
+      // The first pass warms the page cache, the second is timed.
+      for (int pass = 0; pass < 2; pass++) {
+        WindowedFileBuffer buffer = WindowedFileBuffer.open(file, strategy);
+        try {
+          long start = System.nanoTime();
+          assertEquals(markerSum, readSequentially(buffer));
+          long sequentialMs = (System.nanoTime() - start) / 1000000;
+
+          start = System.nanoTime();
+          int boundaries = 0;
+          for (long boundary = WindowedFileBuffer.CHANNEL_WINDOW_BYTES; boundary < length;
+              boundary += WindowedFileBuffer.CHANNEL_WINDOW_BYTES) {
+            buffer.setPosition(boundary - 3);
+            assertEquals(marker(boundary - 3), buffer.readLong());
+            boundaries++;
+          }
+          long straddlingMs = (System.nanoTime() - start) / 1000000;
+
+          Random random = new Random(42);
+          start = System.nanoTime();
+          long sum = 0;
+          for (int i = 0; i < RANDOM_READS; i++) {
+            buffer.setPosition((long) (random.nextDouble() * (length - 8)));
+            sum += buffer.readLong();
+          }
+          long randomMs = (System.nanoTime() - start) / 1000000;
+          if (pass == 1) {
+            System.out.println(strategy + " " + length / MB + "MB: sequential " + sequentialMs
+                + "ms, " + boundaries + " straddling reads " + straddlingMs + "ms, "
+                + RANDOM_READS + " random reads " + randomMs + "ms (" + sum + ")");
+          }
+        } finally {
+          buffer.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a marker long across each channel window boundary, 1GB mapped windows included, of a
+   * sparse file of the given length. Returns the sum of the longs at 8 byte aligned positions.
+   */
+  private long writeSparseFile(long length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    FileChannel channel = randomAccessFile.getChannel();
+    try {
+      randomAccessFile.setLength(length);
+      ByteBuffer bytes = ByteBuffer.allocate(8);
+      for (long boundary = WindowedFileBuffer.CHANNEL_WINDOW_BYTES; boundary < length;
+          boundary += WindowedFileBuffer.CHANNEL_WINDOW_BYTES) {
+        bytes.clear();
+        bytes.putLong(0, marker(boundary - 3));
+        channel.write(bytes, boundary - 3);
+      }
+    } finally {
+      channel.close();
+    }
+    // Aligned reads see each marker split over two longs: its first 3 bytes end one, its last 5
+    // start the next.
+    long sum = 0;
+    for (long boundary = WindowedFileBuffer.CHANNEL_WINDOW_BYTES; boundary < length;
+        boundary += WindowedFileBuffer.CHANNEL_WINDOW_BYTES) {
+      long marker = marker(boundary - 3);
+      sum += marker >>> 40;
+      sum += marker << 24;
+    }
+    return sum;
+  }
+
+  private static long readSequentially(WindowedFileBuffer buffer) {
+    long sum = 0;
+    buffer.setPosition(0);
+    while (buffer.remaining() >= 8) {
+      sum += buffer.readLong();
+    }
+    return sum;
+  }
+
+  private static long marker(long position) {
+    return position * 31 + 7;
+  }
+}